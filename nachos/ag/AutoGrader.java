@@ -197,6 +197,16 @@ public class AutoGrader {
 	privilege.tcb.authorizeDestroy(currentThread);
     }
 
+    /**
+     * Notify the autograder that the idle thread is about to yield with no
+     * other thread ready. Skips the simulated clock ahead to just before the
+     * next pending interrupt, charging the ticks the idle thread would
+     * otherwise spend yielding.
+     */
+    public void idleThreadWaiting() {
+	privilege.interrupt.skipIdleTicks();
+    }
+
     /**
      * Notify the autograder that a timer interrupt occurred and was handled by
      * software if a timer interrupt handler was installed. Called by the
@@ -0,0 +1,69 @@
+package nachos.filesys;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+import nachos.machine.*;
+
+/**
+ * A disk scheduler that sweeps the head from the low tracks to the high
+ * tracks, serving the requests it passes in sector order, and then returns
+ * to the lowest waiting request to start the next sweep (circular SCAN).
+ * Every request is served within two sweeps, and no part of the disk waits
+ * longer than another.
+ */
+public class CScanDiskScheduler extends DiskScheduler {
+    /**
+     * Allocate a new C-SCAN disk scheduler.
+     */
+    public CScanDiskScheduler() {
+    }
+
+    public void add(DiskRequest request) {
+	request.sequence = numArrived++;
+	waiting.add(request);
+    }
+
+    public DiskRequest next(int headTrack) {
+	if (waiting.isEmpty())
+	    return null;
+
+	DiskRequest request = waiting.ceiling(firstOnTrack(headTrack));
+	if (request == null)
+	    request = waiting.first();
+
+	waiting.remove(request);
+	return request;
+    }
+
+    /**
+     * Remove a waiting request, so that it can be served out of order.
+     *
+     * @param	request	the request.
+     */
+    protected void remove(DiskRequest request) {
+	Lib.assertTrue(waiting.remove(request));
+    }
+
+    private DiskRequest firstOnTrack(int track) {
+	DiskRequest probe = new DiskRequest(false,
+					    track*Disk.SectorsPerTrack, 1,
+					    null, 0);
+	probe.sequence = -1;
+	return probe;
+    }
+
+    private long numArrived = 0;
+
+    private TreeSet<DiskRequest> waiting =
+	new TreeSet<DiskRequest>(new Comparator<DiskRequest>() {
+		public int compare(DiskRequest r1, DiskRequest r2) {
+		    if (r1.sector != r2.sector)
+			return (r1.sector < r2.sector) ? -1 : 1;
+		    else if (r1.sequence != r2.sequence)
+			return (r1.sequence < r2.sequence) ? -1 : 1;
+		    else
+			return 0;
+		}
+	    });
+}
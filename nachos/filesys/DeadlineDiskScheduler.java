@@ -0,0 +1,62 @@
+package nachos.filesys;
+
+import java.util.LinkedList;
+
+import nachos.machine.*;
+
+/**
+ * A C-SCAN disk scheduler that also gives every request a deadline, and
+ * serves the oldest request first once its deadline has passed. Reads get a
+ * shorter deadline than writes, since a thread is usually waiting on a read
+ * while a write is often the buffer cache writing back. The deadlines, in
+ * ticks, are given by the <tt>DeadlineDiskScheduler.readExpire</tt> and
+ * <tt>DeadlineDiskScheduler.writeExpire</tt> keys.
+ */
+public class DeadlineDiskScheduler extends CScanDiskScheduler {
+    /**
+     * Allocate a new deadline disk scheduler.
+     */
+    public DeadlineDiskScheduler() {
+	readExpire = Config.getInteger("DeadlineDiskScheduler.readExpire",
+				       10000);
+	writeExpire = Config.getInteger("DeadlineDiskScheduler.writeExpire",
+					50000);
+    }
+
+    public void add(DiskRequest request) {
+	super.add(request);
+	(request.write ? writes : reads).add(request);
+    }
+
+    public DiskRequest next(int headTrack) {
+	long time = Machine.timer().getTime();
+
+	DiskRequest request = expired(reads, readExpire, time);
+	if (request == null)
+	    request = expired(writes, writeExpire, time);
+
+	if (request != null) {
+	    remove(request);
+	}
+	else {
+	    request = super.next(headTrack);
+	    if (request != null)
+		(request.write ? writes : reads).remove(request);
+	}
+
+	return request;
+    }
+
+    private DiskRequest expired(LinkedList<DiskRequest> queue, long expire,
+				long time) {
+	if (queue.isEmpty() || queue.getFirst().arrivalTime + expire > time)
+	    return null;
+
+	return queue.removeFirst();
+    }
+
+    private long readExpire, writeExpire;
+    /** The waiting reads and writes, oldest first. */
+    private LinkedList<DiskRequest> reads = new LinkedList<DiskRequest>();
+    private LinkedList<DiskRequest> writes = new LinkedList<DiskRequest>();
+}
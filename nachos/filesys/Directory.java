@@ -0,0 +1,165 @@
+package nachos.filesys;
+
+import java.util.Arrays;
+
+import nachos.machine.*;
+
+/**
+ * The directory of a disk file system: a hash table of fixed-size entries,
+ * each mapping a file name to an inode, stored as the data of inode 0. A name
+ * is hashed to its home slot and probed for linearly from there, so looking
+ * up a name usually touches a single entry. A removed entry is left as a
+ * marker, so that names placed past it can still be found.
+ *
+ * <p>
+ * The whole table is kept in memory; a change writes back only the sector
+ * holding the changed entry.
+ */
+class Directory {
+    /**
+     * Allocate a new, empty directory.
+     *
+     * @param	numEntries	the number of entries in the table.
+     */
+    Directory(int numEntries) {
+	this.numEntries = numEntries;
+	names = new String[numEntries];
+	inumbers = new int[numEntries];
+    }
+
+    /**
+     * Look up a name.
+     *
+     * @param	name	the name of the file.
+     * @return	the inode of the file, or -1 if there is no such file.
+     */
+    int lookup(String name) {
+	int slot = find(name);
+	return (slot == -1) ? -1 : inumbers[slot];
+    }
+
+    /**
+     * Add a name. The name must not already be in the directory.
+     *
+     * @param	name	the name of the file.
+     * @param	inumber	the inode of the file.
+     * @return	the slot the name was placed in, or -1 if the directory is
+     *		full.
+     */
+    int add(String name, int inumber) {
+	Lib.assertTrue(find(name) == -1 && inumber > 0);
+
+	int slot = home(name);
+	for (int i=0; i<numEntries; i++) {
+	    if (inumbers[slot] == empty || inumbers[slot] == removed) {
+		names[slot] = name;
+		inumbers[slot] = inumber;
+		return slot;
+	    }
+
+	    slot = (slot+1) % numEntries;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Remove a name.
+     *
+     * @param	name	the name of the file.
+     * @return	the slot the name was in, or -1 if there is no such file.
+     */
+    int remove(String name) {
+	int slot = find(name);
+	if (slot != -1) {
+	    names[slot] = null;
+	    inumbers[slot] = removed;
+	}
+
+	return slot;
+    }
+
+    /**
+     * Test whether a name fits in a directory entry.
+     *
+     * @param	name	the name to test.
+     * @return	<tt>true</tt> if the name can be stored.
+     */
+    static boolean checkName(String name) {
+	if (name == null || name.length() == 0)
+	    return false;
+
+	byte[] bytes = name.getBytes();
+	if (bytes.length > maxNameLength)
+	    return false;
+
+	for (int i=0; i<bytes.length; i++) {
+	    if (bytes[i] == 0)
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Load one entry.
+     *
+     * @param	slot	the slot of the entry.
+     * @param	buf	the buffer holding the entry.
+     * @param	offset	the offset of the entry in the buffer.
+     */
+    void decode(int slot, byte[] buf, int offset) {
+	inumbers[slot] = Lib.bytesToInt(buf, offset);
+	if (inumbers[slot] > 0)
+	    names[slot] = Lib.bytesToString(buf, offset+4, maxNameLength);
+	else
+	    names[slot] = null;
+    }
+
+    /**
+     * Store one entry.
+     *
+     * @param	slot	the slot of the entry.
+     * @param	buf	the buffer to store the entry in.
+     * @param	offset	the offset of the entry in the buffer.
+     */
+    void encode(int slot, byte[] buf, int offset) {
+	Arrays.fill(buf, offset, offset+entrySize, (byte) 0);
+
+	Lib.bytesFromInt(buf, offset, inumbers[slot]);
+	if (names[slot] != null) {
+	    byte[] bytes = names[slot].getBytes();
+	    System.arraycopy(bytes, 0, buf, offset+4, bytes.length);
+	}
+    }
+
+    private int find(String name) {
+	int slot = home(name);
+	for (int i=0; i<numEntries; i++) {
+	    if (inumbers[slot] == empty)
+		return -1;
+	    if (inumbers[slot] != removed && names[slot].equals(name))
+		return slot;
+
+	    slot = (slot+1) % numEntries;
+	}
+
+	return -1;
+    }
+
+    private int home(String name) {
+	return (name.hashCode() & 0x7FFFFFFF) % numEntries;
+    }
+
+    private int numEntries;
+    private String[] names;
+    private int[] inumbers;
+
+    private static final int empty = 0;
+    private static final int removed = -1;
+
+    /** The size of a directory entry on disk, in bytes. */
+    static final int entrySize = 64;
+    /** The longest name a directory entry can hold, in bytes. */
+    static final int maxNameLength = entrySize - 4;
+}
@@ -0,0 +1,658 @@
+package nachos.filesys;
+
+import java.util.Arrays;
+import java.util.StringTokenizer;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A Nachos file system kept on the simulated disk, or, if the machine has no
+ * disk, inside a single disk image, which is a file on the stub file system.
+ * The disk is an array of sectors laid out as
+ *
+ * <ul>
+ * <li>the superblock, in sector 0, giving the size of everything else;
+ * <li>the free map, one bit per sector;
+ * <li>the inode table, several inodes to a sector;
+ * <li>the data sectors, starting with the directory, which is the data of
+ * inode 0.
+ * </ul>
+ *
+ * <p>
+ * A file is stored in a few extents (contiguous runs of sectors), and a file
+ * that grows extends its last extent in place when it can, so reading or
+ * writing a large file takes one disk operation per run of up to
+ * <tt>maxRun</tt> sectors rather than one per sector. The free map, the inode
+ * table and the directory are kept in memory once the disk is mounted, and
+ * every change to them is written through to the disk before the operation
+ * that made it returns.
+ *
+ * <p>
+ * The metadata is protected by one lock, but reading and writing the data of
+ * a file only holds a lock on that file, so threads using different files
+ * can have disk requests outstanding at the same time.
+ *
+ * <p>
+ * The image is named by the <tt>DiskFileSystem.image</tt> key. If the disk or
+ * image does not hold a file system, it is formatted with the number of
+ * inodes given by the <tt>DiskFileSystem.numInodes</tt> key, and an image
+ * with the number of sectors given by the <tt>DiskFileSystem.numSectors</tt>
+ * key.
+ */
+public class DiskFileSystem implements FileSystem {
+    /**
+     * Allocate a new disk file system, kept on the simulated disk if the
+     * machine has one, and otherwise in the image named by the
+     * <tt>DiskFileSystem.image</tt> key on the stub file system.
+     */
+    public DiskFileSystem() {
+	this(Config.getInteger("DiskFileSystem.numInodes", 256));
+
+	if (Machine.disk() != null) {
+	    disk = new SynchDisk(Machine.disk());
+	    numSectors = disk.getNumSectors();
+	}
+	else {
+	    host = Machine.stubFileSystem();
+	    imageName = Config.getString("DiskFileSystem.image", "nachos.disk");
+	    numSectors = Config.getInteger("DiskFileSystem.numSectors", 8192);
+	    Lib.assertTrue(host != null);
+	}
+    }
+
+    /**
+     * Allocate a new disk file system kept on a disk. The disk is not read
+     * until the file system is first used, since reading it takes time and
+     * so must be done by a thread.
+     *
+     * @param	disk		the disk.
+     * @param	numInodes	the number of inodes to format the disk with.
+     */
+    public DiskFileSystem(SynchDisk disk, int numInodes) {
+	this(numInodes);
+
+	this.disk = disk;
+	numSectors = disk.getNumSectors();
+    }
+
+    /**
+     * Allocate a new disk file system kept in an image. The image is not
+     * opened until the file system is first used.
+     *
+     * @param	host		the file system holding the image.
+     * @param	imageName	the name of the image.
+     * @param	numSectors	the number of sectors to format the image with.
+     * @param	numInodes	the number of inodes to format the image with.
+     */
+    public DiskFileSystem(FileSystem host, String imageName, int numSectors,
+			  int numInodes) {
+	this(numInodes);
+
+	Lib.assertTrue(host != null);
+
+	this.host = host;
+	this.imageName = imageName;
+	this.numSectors = numSectors;
+    }
+
+    private DiskFileSystem(int numInodes) {
+	Lib.assertTrue(numInodes > 1);
+
+	this.numInodes = numInodes;
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+	if (!Directory.checkName(name))
+	    return null;
+
+	acquire();
+
+	Inode inode;
+	int inumber = directory.lookup(name);
+
+	if (inumber == -1) {
+	    if (!truncate || (inode = createFile(name)) == null) {
+		lock.release();
+		return null;
+	    }
+
+	    truncate = false;
+	}
+	else {
+	    inode = inodes[inumber];
+	}
+
+	inode.numOpen++;
+
+	lock.release();
+
+	if (truncate) {
+	    inode.lock.acquire();
+	    lock.acquire();
+
+	    inode.length = 0;
+	    inode.shrink(freeMap, 0);
+	    writeInode(inode);
+	    writeFreeMap();
+
+	    lock.release();
+	    inode.lock.release();
+	}
+
+	return new DiskOpenFile(name, inode);
+    }
+
+    public boolean remove(String name) {
+	if (!Directory.checkName(name))
+	    return false;
+
+	acquire();
+
+	int inumber = directory.lookup(name);
+	if (inumber == -1) {
+	    lock.release();
+	    return false;
+	}
+
+	writeEntry(directory.remove(name));
+
+	// an open file keeps its sectors until it is last closed
+	Inode inode = inodes[inumber];
+	if (inode.numOpen > 0)
+	    inode.removed = true;
+	else
+	    freeInode(inode);
+
+	lock.release();
+	return true;
+    }
+
+    /**
+     * Return the number of free sectors.
+     *
+     * @return	the number of free sectors.
+     */
+    public int getNumFreeSectors() {
+	acquire();
+	int numFree = freeMap.getNumFree();
+	lock.release();
+
+	return numFree;
+    }
+
+    private class DiskOpenFile extends OpenFileWithPosition {
+	DiskOpenFile(String name, Inode inode) {
+	    super(DiskFileSystem.this, name);
+
+	    this.inode = inode;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (inode == null || pos < 0 || length < 0 ||
+		offset < 0 || offset+length > buf.length)
+		return -1;
+
+	    inode.lock.acquire();
+
+	    int end = Math.min(pos+length, inode.length);
+	    int amount = 0;
+	    if (pos < end)
+		amount = readData(inode, pos, buf, offset, end-pos);
+
+	    inode.lock.release();
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (inode == null || pos < 0 || length < 0 ||
+		offset < 0 || offset+length > buf.length)
+		return -1;
+
+	    inode.lock.acquire();
+
+	    int amount = writeData(inode, pos, buf, offset, length);
+
+	    inode.lock.release();
+	    return (amount == 0 && length > 0) ? -1 : amount;
+	}
+
+	public int length() {
+	    return (inode == null) ? -1 : inode.length;
+	}
+
+	public void close() {
+	    if (inode == null)
+		return;
+
+	    lock.acquire();
+
+	    // once the file is not open, nothing else can be using its data
+	    if (--inode.numOpen == 0) {
+		if (inode.removed) {
+		    inode.removed = false;
+		    freeInode(inode);
+		}
+		else {
+		    // give back the sectors allocated ahead of writes
+		    int needed = Lib.divRoundUp(inode.length, sectorSize);
+		    if (inode.getNumSectors() > needed) {
+			inode.shrink(freeMap, needed);
+			writeInode(inode);
+			writeFreeMap();
+		    }
+		}
+	    }
+
+	    lock.release();
+
+	    inode = null;
+	}
+
+	private Inode inode;
+    }
+
+    /**
+     * Read from a file, one disk operation per contiguous run of sectors.
+     * The range must lie within the file, and the file's lock must be held.
+     */
+    private int readData(Inode inode, int pos, byte[] buf, int offset,
+			 int length) {
+	int end = pos+length;
+	int[] run = new int[2];
+	byte[] buffer = new byte[Math.min(maxRun*sectorSize,
+					  length + 2*sectorSize)];
+
+	while (pos < end) {
+	    int index = pos / sectorSize;
+	    int skip = pos % sectorSize;
+
+	    inode.map(index, run);
+	    int count = Math.min(Math.min(run[1], buffer.length/sectorSize),
+				 Lib.divRoundUp(end, sectorSize) - index);
+	    int amount = Math.min(count*sectorSize - skip, end-pos);
+
+	    readSectors(run[0], count, buffer, 0);
+	    System.arraycopy(buffer, skip, buf, offset, amount);
+
+	    pos += amount;
+	    offset += amount;
+	}
+
+	return length;
+    }
+
+    /**
+     * Write to a file, allocating sectors as needed, one disk operation per
+     * contiguous run of sectors. Partial sectors at either end of a run are
+     * read first, unless they lie past the end of the file. The file's lock
+     * must be held, and the file system's must not.
+     *
+     * @return	the number of bytes written, which is less than
+     *		<tt>length</tt> only if the disk is full.
+     */
+    private int writeData(Inode inode, int pos, byte[] buf, int offset,
+			  int length) {
+	// the sectors past the end of the file hold garbage, so a write past
+	// the end must first zero the gap
+	while (inode.length < pos) {
+	    int gap = Math.min(pos - inode.length, zeros.length);
+	    if (writeData(inode, inode.length, zeros, 0, gap) < gap)
+		return 0;
+	}
+
+	lock.acquire();
+
+	int numSectors = inode.getNumSectors();
+	int end = pos+length;
+
+	if (!inode.grow(freeMap, Lib.divRoundUp(end, sectorSize)))
+	    end = Math.min(end, inode.getNumSectors()*sectorSize);
+
+	lock.release();
+
+	int[] run = new int[2];
+	int written = Math.max(0, end-pos);
+	byte[] buffer = new byte[Math.min(maxRun*sectorSize,
+					  length + 2*sectorSize)];
+
+	while (pos < end) {
+	    int index = pos / sectorSize;
+	    int skip = pos % sectorSize;
+
+	    inode.map(index, run);
+	    int count = Math.min(Math.min(run[1], buffer.length/sectorSize),
+				 Lib.divRoundUp(end, sectorSize) - index);
+	    int amount = Math.min(count*sectorSize - skip, end-pos);
+
+	    if (skip != 0)
+		fillSector(inode, index, run[0], buffer, 0);
+	    if ((skip+amount) % sectorSize != 0 && (count > 1 || skip == 0))
+		fillSector(inode, index+count-1, run[0]+count-1, buffer,
+			   count-1);
+
+	    System.arraycopy(buf, offset, buffer, skip, amount);
+	    writeSectors(run[0], count, buffer, 0);
+
+	    pos += amount;
+	    offset += amount;
+	    inode.length = Math.max(inode.length, pos);
+	}
+
+	if (written > 0 || inode.getNumSectors() != numSectors) {
+	    lock.acquire();
+	    writeInode(inode);
+	    writeFreeMap();
+	    lock.release();
+	}
+
+	return written;
+    }
+
+    /**
+     * Load a sector that is only partly overwritten into a buffer: read it
+     * if it holds part of the file, and otherwise zero it.
+     */
+    private void fillSector(Inode inode, int index, int sector, byte[] buffer,
+			    int slot) {
+	if (index*sectorSize < inode.length)
+	    readSectors(sector, 1, buffer, slot*sectorSize);
+	else
+	    Arrays.fill(buffer, slot*sectorSize, (slot+1)*sectorSize,
+			(byte) 0);
+    }
+
+    /**
+     * Create an empty file. The name must not already be in the directory.
+     *
+     * @return	the inode of the file, or <tt>null</tt> if there is no free
+     *		inode or directory entry.
+     */
+    private Inode createFile(String name) {
+	for (int i=1; i<numInodes; i++) {
+	    if (!inodes[i].inUse) {
+		int slot = directory.add(name, i);
+		if (slot == -1)
+		    return null;
+
+		inodes[i].inUse = true;
+		inodes[i].length = 0;
+		writeInode(inodes[i]);
+		writeEntry(slot);
+		return inodes[i];
+	    }
+	}
+
+	return null;
+    }
+
+    private void freeInode(Inode inode) {
+	inode.shrink(freeMap, 0);
+	inode.length = 0;
+	inode.inUse = false;
+
+	writeInode(inode);
+	writeFreeMap();
+    }
+
+    /**
+     * Acquire the file system lock, mounting the disk first if this is the
+     * first time the file system is used.
+     */
+    private void acquire() {
+	lock.acquire();
+
+	if (!mounted) {
+	    mount();
+	    mounted = true;
+
+	    lock.release();
+	    preload();
+	    lock.acquire();
+	}
+    }
+
+    /**
+     * Load the free map, the inode table and the directory, formatting the
+     * disk first if it does not hold a file system.
+     */
+    private void mount() {
+	String diskName = "disk";
+	if (disk == null) {
+	    diskName = imageName;
+	    image = host.open(imageName, false);
+	    if (image == null)
+		image = host.open(imageName, true);
+	    Lib.assertTrue(image != null, "unable to open disk image "
+			   + imageName);
+	}
+
+	// an image may hold a file system of any size, but the file system
+	// on a disk must fill the disk
+	byte[] superblock = new byte[sectorSize];
+	readSectors(0, 1, superblock, 0);
+	if (Lib.bytesToInt(superblock, 0) == magic &&
+	    (disk == null || Lib.bytesToInt(superblock, 4) == numSectors)) {
+	    numSectors = Lib.bytesToInt(superblock, 4);
+	    numInodes = Lib.bytesToInt(superblock, 8);
+	    numEntries = Lib.bytesToInt(superblock, 12);
+	    layOut();
+	    load();
+
+	    Lib.debug(dbgFilesys, "mounted " + diskName + ": "
+		      + freeMap.getNumFree() + "/" + numSectors
+		      + " sectors free");
+	}
+	else {
+	    numEntries = numInodes*2;
+	    layOut();
+	    format(superblock);
+
+	    Lib.debug(dbgFilesys, "formatted " + diskName + ": "
+		      + numSectors + " sectors, " + numInodes + " inodes");
+	}
+    }
+
+    /**
+     * Copy the files named by the <tt>DiskFileSystem.preload</tt> key, a
+     * comma-separated list, from the stub file system onto the disk, unless
+     * the disk already has them. This is how executables get onto a freshly
+     * formatted disk.
+     */
+    private void preload() {
+	String names = Config.getString("DiskFileSystem.preload");
+	if (names == null || Machine.stubFileSystem() == null)
+	    return;
+
+	StringTokenizer st = new StringTokenizer(names, ",");
+	while (st.hasMoreTokens()) {
+	    String name = st.nextToken();
+	    if (!Directory.checkName(name))
+		continue;
+
+	    lock.acquire();
+	    boolean exists = directory.lookup(name) != -1;
+	    lock.release();
+
+	    OpenFile file = null;
+	    if (!exists)
+		file = Machine.stubFileSystem().open(name, false);
+	    if (file == null)
+		continue;
+
+	    byte[] contents = Lib.loadFile(file);
+	    file.close();
+
+	    OpenFile copy = null;
+	    if (contents != null)
+		copy = open(name, true);
+	    if (copy == null)
+		continue;
+
+	    copy.write(contents, 0, contents.length);
+	    copy.close();
+
+	    Lib.debug(dbgFilesys, "preloaded " + name + ": "
+		      + contents.length + " bytes");
+	}
+    }
+
+    private void layOut() {
+	freeMapSector = 1;
+	inodeSector = freeMapSector + FreeMap.getNumMapSectors(numSectors);
+	dataSector = inodeSector + Lib.divRoundUp(numInodes, inodesPerSector);
+
+	Lib.assertTrue(numInodes > 1 && dataSector < numSectors);
+
+	freeMap = new FreeMap(numSectors);
+	directory = new Directory(numEntries);
+	inodes = new Inode[numInodes];
+	for (int i=0; i<numInodes; i++)
+	    inodes[i] = new Inode(i);
+    }
+
+    private void format(byte[] superblock) {
+	freeMap.free(dataSector, numSectors - dataSector);
+
+	int directorySectors =
+	    Lib.divRoundUp(numEntries*Directory.entrySize, sectorSize);
+
+	// the directory is the first file, so it is one extent at the start
+	// of the data sectors
+	Inode root = inodes[0];
+	root.inUse = true;
+	Lib.assertTrue(root.grow(freeMap, directorySectors) &&
+		       root.getNumExtents() == 1);
+	root.length = directorySectors*sectorSize;
+
+	Arrays.fill(superblock, (byte) 0);
+	Lib.bytesFromInt(superblock, 0, magic);
+	Lib.bytesFromInt(superblock, 4, numSectors);
+	Lib.bytesFromInt(superblock, 8, numInodes);
+	Lib.bytesFromInt(superblock, 12, numEntries);
+	writeSectors(0, 1, superblock, 0);
+
+	writeFreeMap();
+
+	// the inode table and the directory start out zeroed
+	int end = dataSector + directorySectors;
+	for (int sector=inodeSector; sector<end; sector+=maxRun)
+	    writeSectors(sector, Math.min(maxRun, end-sector), zeros, 0);
+
+	writeInode(root);
+    }
+
+    private void load() {
+	byte[] buffer = new byte[maxRun*sectorSize];
+
+	for (int sector=freeMapSector; sector<inodeSector; sector++) {
+	    readSectors(sector, 1, buffer, 0);
+	    freeMap.decode(sector-freeMapSector, buffer, 0);
+	}
+
+	for (int sector=inodeSector; sector<dataSector; sector+=maxRun) {
+	    int count = Math.min(maxRun, dataSector-sector);
+	    readSectors(sector, count, buffer, 0);
+
+	    int first = (sector-inodeSector)*inodesPerSector;
+	    for (int i=0; i<count*inodesPerSector; i++) {
+		if (first+i < numInodes)
+		    inodes[first+i].decode(buffer, i*Inode.size);
+	    }
+	}
+
+	byte[] entries = new byte[numEntries*Directory.entrySize];
+	readData(inodes[0], 0, entries, 0, entries.length);
+	for (int slot=0; slot<numEntries; slot++)
+	    directory.decode(slot, entries, slot*Directory.entrySize);
+    }
+
+    private void writeInode(Inode inode) {
+	int first = inode.inumber - inode.inumber%inodesPerSector;
+	for (int i=0; i<inodesPerSector && first+i<numInodes; i++)
+	    inodes[first+i].encode(sector, i*Inode.size);
+
+	writeSectors(inodeSector + inode.inumber/inodesPerSector, 1, sector,
+		     0);
+    }
+
+    private void writeFreeMap() {
+	int index;
+	while ((index = freeMap.nextChanged()) != -1) {
+	    freeMap.encode(index, sector, 0);
+	    writeSectors(freeMapSector + index, 1, sector, 0);
+	}
+    }
+
+    private void writeEntry(int slot) {
+	int perSector = sectorSize/Directory.entrySize;
+	int first = slot - slot%perSector;
+	for (int i=0; i<perSector; i++)
+	    directory.encode(first+i, sector, i*Directory.entrySize);
+
+	int[] run = new int[2];
+	inodes[0].map(slot/perSector, run);
+	writeSectors(run[0], 1, sector, 0);
+    }
+
+    private void readSectors(int first, int count, byte[] buf, int offset) {
+	Lib.assertTrue(first >= 0 && count > 0 && first+count <= numSectors);
+
+	if (disk != null) {
+	    disk.readSectors(first, count, buf, offset);
+	    return;
+	}
+
+	int length = count*sectorSize;
+	int amount = image.read(first*sectorSize, buf, offset, length);
+	Lib.assertTrue(amount != -1, "unable to read disk image");
+
+	// sectors past the end of the image have never been written
+	if (amount < length)
+	    Arrays.fill(buf, offset+amount, offset+length, (byte) 0);
+    }
+
+    private void writeSectors(int first, int count, byte[] buf, int offset) {
+	Lib.assertTrue(first >= 0 && count > 0 && first+count <= numSectors);
+
+	if (disk != null) {
+	    disk.writeSectors(first, count, buf, offset);
+	    return;
+	}
+
+	int length = count*sectorSize;
+	Lib.assertTrue(image.write(first*sectorSize, buf, offset, length)
+		       == length, "unable to write disk image");
+    }
+
+    /** The disk, or <tt>null</tt> if the file system is in an image. */
+    private SynchDisk disk = null;
+    private FileSystem host = null;
+    private String imageName = null;
+    private OpenFile image = null;
+    private boolean mounted = false;
+
+    private int numSectors, numInodes, numEntries;
+    private int freeMapSector, inodeSector, dataSector;
+
+    private FreeMap freeMap;
+    private Directory directory;
+    private Inode[] inodes;
+
+    /** Holds a metadata sector being written. */
+    private byte[] sector = new byte[sectorSize];
+    private byte[] zeros = new byte[maxRun*sectorSize];
+
+    /** Protects the free map, the inode table and the directory. */
+    private Lock lock = new Lock();
+
+    /** The size of a sector, in bytes. */
+    static final int sectorSize = Disk.SectorSize;
+    /** The most sectors read or written with one disk operation. */
+    static final int maxRun = 32;
+
+    private static final int inodesPerSector = sectorSize/Inode.size;
+    private static final int magic = 0x4E414653;
+
+    private static final char dbgFilesys = 'f';
+}
@@ -0,0 +1,41 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A request to read or write a run of sectors, waiting in a
+ * <tt>SynchDisk</tt> for the disk.
+ */
+public class DiskRequest {
+    DiskRequest(boolean write, int sector, int count, byte[] data,
+		int offset) {
+	this.write = write;
+	this.sector = sector;
+	this.count = count;
+	this.data = data;
+	this.offset = offset;
+
+	track = Disk.trackOf(sector);
+	arrivalTime = Machine.timer().getTime();
+    }
+
+    /** Whether this is a write. */
+    public final boolean write;
+    /** The first sector of the run. */
+    public final int sector;
+    /** The number of sectors in the run. */
+    public final int count;
+    /** The track holding the first sector. */
+    public final int track;
+    /** The time the request was made. */
+    public final long arrivalTime;
+
+    /** The order the request reached its scheduler in, to break ties. */
+    long sequence;
+
+    final byte[] data;
+    final int offset;
+    /** Signalled when the request completes. */
+    final Semaphore done = new Semaphore(0);
+}
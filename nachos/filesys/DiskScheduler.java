@@ -0,0 +1,34 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+
+/**
+ * Decides the order in which a <tt>SynchDisk</tt> serves the requests waiting
+ * for the disk. A request is added when it arrives while the disk is busy,
+ * and when the disk finishes a request the scheduler picks the next one.
+ *
+ * <p>
+ * Methods are called with interrupts disabled.
+ */
+public abstract class DiskScheduler {
+    /**
+     * Allocate a new disk scheduler.
+     */
+    public DiskScheduler() {
+    }
+
+    /**
+     * Add a request to the waiting requests.
+     *
+     * @param	request	the request.
+     */
+    public abstract void add(DiskRequest request);
+
+    /**
+     * Remove and return the request to serve next.
+     *
+     * @param	headTrack	the track the disk head is over.
+     * @return	the next request, or <tt>null</tt> if none are waiting.
+     */
+    public abstract DiskRequest next(int headTrack);
+}
@@ -0,0 +1,27 @@
+package nachos.filesys;
+
+import java.util.LinkedList;
+
+import nachos.machine.*;
+
+/**
+ * A disk scheduler that serves requests in the order they arrive. It is fair,
+ * but pays for every seek between requests from unrelated files.
+ */
+public class FCFSDiskScheduler extends DiskScheduler {
+    /**
+     * Allocate a new FCFS disk scheduler.
+     */
+    public FCFSDiskScheduler() {
+    }
+
+    public void add(DiskRequest request) {
+	waiting.add(request);
+    }
+
+    public DiskRequest next(int headTrack) {
+	return waiting.isEmpty() ? null : waiting.removeFirst();
+    }
+
+    private LinkedList<DiskRequest> waiting = new LinkedList<DiskRequest>();
+}
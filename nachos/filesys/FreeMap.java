@@ -0,0 +1,188 @@
+package nachos.filesys;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import nachos.machine.*;
+
+/**
+ * The map of free sectors of a disk file system, one bit per sector, stored
+ * on disk right after the superblock. Sectors are handed out in extents
+ * (contiguous runs), and a file that grows tries to extend its last extent
+ * in place first, so large files written sequentially stay contiguous.
+ *
+ * <p>
+ * The map remembers which of its sectors have changed since they were last
+ * written back, so only those need to be written.
+ */
+class FreeMap {
+    /**
+     * Allocate a new free map with every sector in use.
+     *
+     * @param	numSectors	the number of sectors on the disk.
+     */
+    FreeMap(int numSectors) {
+	this.numSectors = numSectors;
+    }
+
+    /**
+     * Return the number of sectors needed to store a free map.
+     *
+     * @param	numSectors	the number of sectors on the disk.
+     * @return	the number of sectors in the map.
+     */
+    static int getNumMapSectors(int numSectors) {
+	return Lib.divRoundUp(numSectors, bitsPerSector);
+    }
+
+    /**
+     * Mark a run of sectors free.
+     *
+     * @param	first	the first sector of the run.
+     * @param	count	the number of sectors.
+     */
+    void free(int first, int count) {
+	Lib.assertTrue(first >= 0 && count >= 0 && first+count <= numSectors);
+
+	for (int i=first; i<first+count; i++) {
+	    Lib.assertTrue(!free.get(i));
+	    free.set(i);
+	}
+
+	numFree += count;
+	touch(first, count);
+    }
+
+    /**
+     * Take sectors that follow a run, so that the run can be extended in
+     * place.
+     *
+     * @param	next	the sector right after the run.
+     * @param	count	the most sectors to take.
+     * @return	the number of sectors taken, starting at <tt>next</tt>.
+     */
+    int extend(int next, int count) {
+	if (next >= numSectors || !free.get(next))
+	    return 0;
+
+	int end = free.nextClearBit(next);
+	end = Math.min(Math.min(end, numSectors), next+count);
+
+	take(next, end-next);
+	return end-next;
+    }
+
+    /**
+     * Allocate an extent. The first free run long enough is used; if no run
+     * is long enough, the longest free run is used instead, so the caller may
+     * get fewer sectors than it asked for.
+     *
+     * @param	count	the number of sectors wanted.
+     * @param	extent	a two-element array to store the first sector and
+     *			length of the extent in.
+     * @return	<tt>true</tt> if any sectors were allocated.
+     */
+    boolean allocate(int count, int[] extent) {
+	int bestFirst = -1, bestLength = 0;
+
+	for (int first=free.nextSetBit(0); first!=-1 && first<numSectors; ) {
+	    int end = Math.min(free.nextClearBit(first), numSectors);
+	    if (end - first >= count) {
+		bestFirst = first;
+		bestLength = count;
+		break;
+	    }
+	    if (end - first > bestLength) {
+		bestFirst = first;
+		bestLength = end - first;
+	    }
+
+	    first = free.nextSetBit(end);
+	}
+
+	if (bestFirst == -1)
+	    return false;
+
+	take(bestFirst, bestLength);
+	extent[0] = bestFirst;
+	extent[1] = bestLength;
+	return true;
+    }
+
+    /**
+     * Return the number of free sectors.
+     *
+     * @return	the number of free sectors.
+     */
+    int getNumFree() {
+	return numFree;
+    }
+
+    /**
+     * Load one sector of the map.
+     *
+     * @param	index	the sector of the map.
+     * @param	buf	the buffer holding the sector.
+     * @param	offset	the offset of the sector in the buffer.
+     */
+    void decode(int index, byte[] buf, int offset) {
+	int first = index*bitsPerSector;
+	for (int i=0; i<bitsPerSector && first+i<numSectors; i++) {
+	    boolean isFree = (buf[offset + i/8] & (1 << (i%8))) != 0;
+	    if (isFree != free.get(first+i))
+		numFree += isFree ? 1 : -1;
+	    free.set(first+i, isFree);
+	}
+    }
+
+    /**
+     * Store one sector of the map.
+     *
+     * @param	index	the sector of the map.
+     * @param	buf	the buffer to store the sector in.
+     * @param	offset	the offset of the sector in the buffer.
+     */
+    void encode(int index, byte[] buf, int offset) {
+	Arrays.fill(buf, offset, offset+DiskFileSystem.sectorSize, (byte) 0);
+
+	int first = index*bitsPerSector;
+	for (int i=0; i<bitsPerSector && first+i<numSectors; i++) {
+	    if (free.get(first+i))
+		buf[offset + i/8] |= (byte) (1 << (i%8));
+	}
+    }
+
+    /**
+     * Return the first map sector that has changed since it was last
+     * written back, and mark it clean.
+     *
+     * @return	the index of a changed map sector, or -1 if there is none.
+     */
+    int nextChanged() {
+	int index = changed.nextSetBit(0);
+	if (index != -1)
+	    changed.clear(index);
+
+	return index;
+    }
+
+    private void take(int first, int count) {
+	free.clear(first, first+count);
+	numFree -= count;
+	touch(first, count);
+    }
+
+    private void touch(int first, int count) {
+	if (count > 0)
+	    changed.set(first/bitsPerSector, (first+count-1)/bitsPerSector + 1);
+    }
+
+    private int numSectors;
+    private int numFree = 0;
+    /** The free sectors. */
+    private BitSet free = new BitSet();
+    /** The map sectors that have changed. */
+    private BitSet changed = new BitSet();
+
+    private static final int bitsPerSector = DiskFileSystem.sectorSize*8;
+}
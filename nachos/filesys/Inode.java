@@ -0,0 +1,199 @@
+package nachos.filesys;
+
+import java.util.Arrays;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * The header of a file on a disk file system: its length and the extents
+ * (contiguous runs of sectors) holding its data, in file order. Inodes are
+ * kept in a fixed table on disk, several to a sector, and are named by their
+ * index in the table. Inode 0 is the root directory.
+ *
+ * <p>
+ * A file may have more sectors allocated than its length needs, since a
+ * growing file allocates ahead of its writes; the extra sectors are freed
+ * when the file is last closed.
+ */
+class Inode {
+    /**
+     * Allocate a new, unused inode.
+     *
+     * @param	inumber	the index of the inode in the inode table.
+     */
+    Inode(int inumber) {
+	this.inumber = inumber;
+    }
+
+    /**
+     * Load this inode.
+     *
+     * @param	buf	the buffer holding the inode.
+     * @param	offset	the offset of the inode in the buffer.
+     */
+    void decode(byte[] buf, int offset) {
+	inUse = Lib.bytesToInt(buf, offset+0) != 0;
+	length = Lib.bytesToInt(buf, offset+4);
+	numExtents = Lib.bytesToInt(buf, offset+8);
+
+	Lib.assertTrue(length >= 0 && numExtents >= 0 &&
+		       numExtents <= maxExtents);
+
+	numSectors = 0;
+	for (int i=0; i<numExtents; i++) {
+	    first[i] = Lib.bytesToInt(buf, offset+12+i*8);
+	    count[i] = Lib.bytesToInt(buf, offset+16+i*8);
+	    numSectors += count[i];
+	}
+    }
+
+    /**
+     * Store this inode.
+     *
+     * @param	buf	the buffer to store the inode in.
+     * @param	offset	the offset of the inode in the buffer.
+     */
+    void encode(byte[] buf, int offset) {
+	Arrays.fill(buf, offset, offset+size, (byte) 0);
+
+	Lib.bytesFromInt(buf, offset+0, inUse ? 1 : 0);
+	Lib.bytesFromInt(buf, offset+4, length);
+	Lib.bytesFromInt(buf, offset+8, numExtents);
+
+	for (int i=0; i<numExtents; i++) {
+	    Lib.bytesFromInt(buf, offset+12+i*8, first[i]);
+	    Lib.bytesFromInt(buf, offset+16+i*8, count[i]);
+	}
+    }
+
+    /**
+     * Find the disk sector holding a sector of this file, and the number of
+     * sectors of the file that follow it contiguously on disk.
+     *
+     * @param	index	the sector of the file.
+     * @param	run	a two-element array to store the disk sector and the
+     *			length of the contiguous run in.
+     */
+    void map(int index, int[] run) {
+	Lib.assertTrue(index >= 0 && index < numSectors);
+
+	for (int i=0; i<numExtents; i++) {
+	    if (index < count[i]) {
+		run[0] = first[i] + index;
+		run[1] = count[i] - index;
+		return;
+	    }
+
+	    index -= count[i];
+	}
+
+	Lib.assertNotReached();
+    }
+
+    /**
+     * Allocate sectors so that this file has at least the specified number.
+     * The last extent is extended in place if the sectors after it are free;
+     * otherwise a new extent is allocated. A growing file allocates as many
+     * sectors again as it already has, up to <tt>maxGrowth</tt>, so a file
+     * written a little at a time still ends up in a few long extents.
+     *
+     * @param	freeMap	the free map to allocate from.
+     * @param	needed	the number of sectors the file must have.
+     * @return	<tt>true</tt> if the sectors were allocated; if not, the file
+     *		keeps whatever was allocated.
+     */
+    boolean grow(FreeMap freeMap, int needed) {
+	int[] extent = new int[2];
+
+	while (numSectors < needed) {
+	    int wanted = Math.max(needed - numSectors,
+				  Math.min(numSectors, maxGrowth));
+
+	    if (numExtents > 0) {
+		int extended = freeMap.extend(first[numExtents-1] +
+					      count[numExtents-1], wanted);
+		if (extended > 0) {
+		    count[numExtents-1] += extended;
+		    numSectors += extended;
+		    continue;
+		}
+	    }
+
+	    if (numExtents == maxExtents ||
+		!freeMap.allocate(wanted, extent))
+		return false;
+
+	    first[numExtents] = extent[0];
+	    count[numExtents] = extent[1];
+	    numExtents++;
+	    numSectors += extent[1];
+	}
+
+	return true;
+    }
+
+    /**
+     * Free every sector past the specified number.
+     *
+     * @param	freeMap	the free map to free to.
+     * @param	keep	the number of sectors to keep.
+     */
+    void shrink(FreeMap freeMap, int keep) {
+	while (numSectors > keep) {
+	    int last = numExtents-1;
+	    int amount = Math.min(count[last], numSectors - keep);
+
+	    freeMap.free(first[last] + count[last] - amount, amount);
+	    count[last] -= amount;
+	    numSectors -= amount;
+
+	    if (count[last] == 0)
+		numExtents--;
+	}
+    }
+
+    /**
+     * Return the number of sectors allocated to this file.
+     *
+     * @return	the number of sectors.
+     */
+    int getNumSectors() {
+	return numSectors;
+    }
+
+    /**
+     * Return the number of extents of this file.
+     *
+     * @return	the number of extents.
+     */
+    int getNumExtents() {
+	return numExtents;
+    }
+
+    /** The index of this inode in the inode table. */
+    final int inumber;
+    /** Whether this inode belongs to a file. */
+    boolean inUse = false;
+    /** The length of the file, in bytes. */
+    int length = 0;
+
+    /** Held while the data of the file is read or written. */
+    final Lock lock = new Lock();
+    /** The number of files open on this inode. */
+    int numOpen = 0;
+    /** Whether the file has been removed while open. */
+    boolean removed = false;
+
+    private int numExtents = 0;
+    private int numSectors = 0;
+    private int[] first = new int[maxExtents];
+    private int[] count = new int[maxExtents];
+
+    /** The size of an inode on disk, in bytes. */
+    static final int size = 128;
+    /** The most extents a file may have. */
+    static final int maxExtents = (size - 12) / 8;
+    /** The most sectors a growing file allocates ahead of its writes. */
+    static final int maxGrowth = 64;
+}
@@ -0,0 +1,43 @@
+package nachos.filesys;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import nachos.machine.*;
+
+/**
+ * A disk scheduler that serves the request nearest the head next (shortest
+ * seek time first), breaking ties in the order requests arrived. It seeks
+ * the least, but a request far from a busy region of the disk can wait a
+ * long time.
+ */
+public class SSTFDiskScheduler extends DiskScheduler {
+    /**
+     * Allocate a new SSTF disk scheduler.
+     */
+    public SSTFDiskScheduler() {
+    }
+
+    public void add(DiskRequest request) {
+	waiting.add(request);
+    }
+
+    public DiskRequest next(int headTrack) {
+	DiskRequest nearest = null;
+
+	for (Iterator<DiskRequest> i=waiting.iterator(); i.hasNext(); ) {
+	    DiskRequest request = i.next();
+	    if (nearest == null ||
+		Math.abs(request.track - headTrack) <
+		Math.abs(nearest.track - headTrack))
+		nearest = request;
+	}
+
+	if (nearest != null)
+	    waiting.remove(nearest);
+
+	return nearest;
+    }
+
+    private LinkedList<DiskRequest> waiting = new LinkedList<DiskRequest>();
+}
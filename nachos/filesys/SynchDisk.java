@@ -0,0 +1,120 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A synchronous interface to the disk. A thread reading or writing sectors
+ * sleeps until its request completes, and any number of threads may have
+ * requests outstanding: while the disk is busy, requests wait in a
+ * <tt>DiskScheduler</tt>, which picks the next one each time the disk
+ * finishes a request.
+ *
+ * <p>
+ * The time each request takes, from when it is made until it completes, is
+ * recorded in the latency histograms in <tt>Stats</tt>.
+ */
+public class SynchDisk {
+    /**
+     * Allocate a new synchronous disk, using the disk scheduler named by the
+     * <tt>SynchDisk.scheduler</tt> key, or FCFS if there is no such key.
+     *
+     * @param	disk	the disk.
+     */
+    public SynchDisk(Disk disk) {
+	this(disk, (DiskScheduler)
+	     Lib.constructObject(Config.getString("SynchDisk.scheduler",
+						  "nachos.filesys.FCFSDiskScheduler")));
+    }
+
+    /**
+     * Allocate a new synchronous disk.
+     *
+     * @param	disk		the disk.
+     * @param	scheduler	the disk scheduler.
+     */
+    public SynchDisk(Disk disk, DiskScheduler scheduler) {
+	this.disk = disk;
+	this.scheduler = scheduler;
+
+	disk.setInterruptHandler(new Runnable() {
+		public void run() { requestDone(); }
+	    });
+    }
+
+    /**
+     * Return the number of sectors on the disk.
+     *
+     * @return	the number of sectors.
+     */
+    public int getNumSectors() {
+	return disk.getNumSectors();
+    }
+
+    /**
+     * Read a run of sectors, returning when they have been read.
+     *
+     * @param	sector	the first sector to read.
+     * @param	count	the number of sectors.
+     * @param	data	the buffer to store the sectors in.
+     * @param	offset	the offset in the buffer.
+     */
+    public void readSectors(int sector, int count, byte[] data, int offset) {
+	request(new DiskRequest(false, sector, count, data, offset));
+    }
+
+    /**
+     * Write a run of sectors, returning when they have been written.
+     *
+     * @param	sector	the first sector to write.
+     * @param	count	the number of sectors.
+     * @param	data	the buffer holding the sectors.
+     * @param	offset	the offset in the buffer.
+     */
+    public void writeSectors(int sector, int count, byte[] data, int offset) {
+	request(new DiskRequest(true, sector, count, data, offset));
+    }
+
+    private void request(DiskRequest request) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (current == null)
+	    start(request);
+	else
+	    scheduler.add(request);
+
+	Machine.interrupt().restore(intStatus);
+
+	request.done.P();
+    }
+
+    private void start(DiskRequest request) {
+	current = request;
+
+	if (request.write)
+	    disk.writeRequest(request.sector, request.count, request.data,
+			      request.offset);
+	else
+	    disk.readRequest(request.sector, request.count, request.data,
+			     request.offset);
+    }
+
+    private void requestDone() {
+	DiskRequest request = current;
+	current = null;
+
+	long latency = Machine.timer().getTime() - request.arrivalTime;
+	KernelStats.diskLatency(request.write, latency);
+
+	DiskRequest next = scheduler.next(disk.getHeadTrack());
+	if (next != null)
+	    start(next);
+
+	request.done.V();
+    }
+
+    private Disk disk;
+    private DiskScheduler scheduler;
+    /** The request the disk is serving, or <tt>null</tt> if it is idle. */
+    private DiskRequest current = null;
+}
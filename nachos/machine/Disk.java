@@ -0,0 +1,260 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A simulated disk. The disk is an array of sectors, kept in a file on the
+ * host, arranged in tracks of <tt>SectorsPerTrack</tt> sectors. It can handle
+ * one request at a time: a request names a run of sectors, and the disk
+ * interrupt handler is called when the transfer is complete.
+ *
+ * <p>
+ * A request takes as long as a real disk would:
+ *
+ * <ul>
+ * <li>the seek, if the run is on another track: a tenth of
+ * <tt>Stats.SeekTime</tt> to settle, plus time proportional to the distance,
+ * so that a seek a third of the way across the disk takes about
+ * <tt>Stats.SeekTime</tt>;
+ * <li>the rotational delay, until the first sector comes under the head,
+ * since the disk turns all the time, once every <tt>Stats.RotationTime</tt>
+ * ticks;
+ * <li>the transfer, while the sectors pass under the head.
+ * </ul>
+ *
+ * <p>
+ * So a run of sectors costs far less than the same sectors read one at a
+ * time, and requests served in track order cost less than requests served in
+ * the order they arrive.
+ */
+public final class Disk {
+    /**
+     * Allocate a new disk, with the number of tracks given by the
+     * <tt>Disk.numTracks</tt> key.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	directory	the directory holding the host file.
+     */
+    public Disk(Privilege privilege, File directory) {
+	System.out.print(" disk");
+
+	this.privilege = privilege;
+
+	numTracks = Config.getInteger("Disk.numTracks", 256);
+	Lib.assertTrue(numTracks > 0);
+
+	final File f = new File(directory, hostFileName);
+	privilege.doPrivileged(new Runnable() {
+		public void run() { openFile(f); }
+	    });
+
+	Lib.assertTrue(file != null, "unable to open " + f);
+
+	requestDone = new Runnable() {
+		public void run() { requestDone(); }
+	    };
+    }
+
+    private void openFile(File f) {
+	try {
+	    file = new RandomAccessFile(f, "rw");
+	    if (file.length() < (long) getNumSectors()*SectorSize)
+		file.setLength((long) getNumSectors()*SectorSize);
+	}
+	catch (IOException e) {
+	    file = null;
+	}
+    }
+
+    /**
+     * Set the handler called when a request completes.
+     *
+     * @param	handler	the disk interrupt handler.
+     */
+    public void setInterruptHandler(Runnable handler) {
+	this.handler = handler;
+    }
+
+    /**
+     * Return the number of sectors on this disk.
+     *
+     * @return	the number of sectors.
+     */
+    public int getNumSectors() {
+	return numTracks*SectorsPerTrack;
+    }
+
+    /**
+     * Return the number of tracks on this disk.
+     *
+     * @return	the number of tracks.
+     */
+    public int getNumTracks() {
+	return numTracks;
+    }
+
+    /**
+     * Return the track holding a sector.
+     *
+     * @param	sector	the sector.
+     * @return	the track holding the sector.
+     */
+    public static int trackOf(int sector) {
+	return sector / SectorsPerTrack;
+    }
+
+    /**
+     * Return the track the head is over. This is where the last request
+     * ended.
+     *
+     * @return	the track the head is over.
+     */
+    public int getHeadTrack() {
+	return headTrack;
+    }
+
+    /**
+     * Test whether a request is in progress.
+     *
+     * @return	<tt>true</tt> if the disk is busy.
+     */
+    public boolean isBusy() {
+	return busy;
+    }
+
+    /**
+     * Start reading a run of sectors. The data is stored in the buffer when
+     * the request completes, just before the interrupt handler is called.
+     *
+     * @param	sector	the first sector to read.
+     * @param	count	the number of sectors.
+     * @param	data	the buffer to store the sectors in.
+     * @param	offset	the offset in the buffer.
+     */
+    public void readRequest(int sector, int count, byte[] data, int offset) {
+	startRequest(false, sector, count, data, offset);
+    }
+
+    /**
+     * Start writing a run of sectors. The buffer must not be changed until
+     * the interrupt handler is called.
+     *
+     * @param	sector	the first sector to write.
+     * @param	count	the number of sectors.
+     * @param	data	the buffer holding the sectors.
+     * @param	offset	the offset in the buffer.
+     */
+    public void writeRequest(int sector, int count, byte[] data, int offset) {
+	startRequest(true, sector, count, data, offset);
+    }
+
+    private void startRequest(boolean write, int sector, int count,
+			      byte[] data, int offset) {
+	Lib.assertTrue(!busy, "disk request while the disk is busy");
+	Lib.assertTrue(sector >= 0 && count > 0 &&
+		       sector+count <= getNumSectors());
+	Lib.assertTrue(offset >= 0 && offset+count*SectorSize <= data.length);
+
+	busy = true;
+	this.write = write;
+	this.sector = sector;
+	this.count = count;
+	this.data = data;
+	this.offset = offset;
+
+	privilege.interrupt.schedule(computeLatency(sector, count),
+				     write ? "disk write" : "disk read",
+				     requestDone);
+    }
+
+    /**
+     * Return the time a request would take if it were started now.
+     *
+     * @param	sector	the first sector of the request.
+     * @param	count	the number of sectors.
+     * @return	the latency of the request, in ticks.
+     */
+    public long computeLatency(int sector, int count) {
+	int track = trackOf(sector);
+	int lastTrack = trackOf(sector+count-1);
+
+	long seek = seekTime(Math.abs(track - headTrack));
+
+	// the disk turns all the time, so where it is when the seek ends
+	// depends on the time
+	long arrival = Machine.timer().getTime() + seek;
+	long target = (long) (sector % SectorsPerTrack) * RotationTime
+	    / SectorsPerTrack;
+	long rotation = (target - arrival % RotationTime + RotationTime)
+	    % RotationTime;
+
+	long transfer = Lib.divRoundUp(count*RotationTime, SectorsPerTrack)
+	    + (lastTrack - track) * seekTime(1);
+
+	return Math.max(1, seek + rotation + transfer);
+    }
+
+    private long seekTime(int distance) {
+	if (distance == 0)
+	    return 0;
+
+	return SeekTime/10 + (long) SeekTime*27*distance / (10*numTracks);
+    }
+
+    private void requestDone() {
+	Lib.assertTrue(busy);
+
+	try {
+	    file.seek((long) sector*SectorSize);
+	    if (write) {
+		file.write(data, offset, count*SectorSize);
+		privilege.stats.numDiskWrites += count;
+	    }
+	    else {
+		file.readFully(data, offset, count*SectorSize);
+		privilege.stats.numDiskReads += count;
+	    }
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("disk " + (write ? "write" : "read")
+				 + " failed");
+	}
+
+	headTrack = trackOf(sector+count-1);
+	busy = false;
+	data = null;
+
+	if (handler != null)
+	    handler.run();
+    }
+
+    /** The number of bytes in a sector. */
+    public static final int SectorSize = 512;
+    /** The number of sectors on a track. */
+    public static final int SectorsPerTrack = 32;
+
+    private static final int RotationTime = Stats.RotationTime;
+    private static final int SeekTime = Stats.SeekTime;
+
+    private static final String hostFileName = "DISK";
+
+    private Privilege privilege;
+    private RandomAccessFile file = null;
+    private int numTracks;
+    private int headTrack = 0;
+
+    private Runnable handler = null;
+    private Runnable requestDone;
+
+    private boolean busy = false;
+    private boolean write;
+    private int sector, count, offset;
+    private byte[] data;
+}
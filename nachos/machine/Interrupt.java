@@ -4,10 +4,6 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
-
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
  * hardware provides a method (<tt>setStatus()</tt>) to enable or disable
@@ -53,7 +49,7 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		pending = new InterruptQueue();
 	}
 
 	/**
@@ -122,15 +118,42 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Advance the simulated time for an idle kernel. When the only runnable
+	 * thread is an idle thread that repeatedly yields, each yield re-enables
+	 * interrupts and so costs one kernel tick. This method charges all of
+	 * those ticks at once, stopping at the last tick before the next pending
+	 * interrupt comes due, so the reported statistics do not change.
+	 *
+	 * <p>
+	 * Interrupts must be enabled. Does nothing if no interrupt is pending, or
+	 * if interrupt debugging is enabled.
+	 */
+	private void skipIdleTicks() {
+		Lib.assertTrue(enabled);
+
+		if (nextDue == Long.MAX_VALUE || Lib.test(dbgInt))
+			return;
+
+		Stats stats = privilege.stats;
+		long ticks = (nextDue - stats.totalTicks - 1) / Stats.KernelTick;
+
+		if (ticks > 0) {
+			stats.kernelTicks += ticks * Stats.KernelTick;
+			stats.totalTicks += ticks * Stats.KernelTick;
+		}
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 		// 计算到期的时间
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 		Lib.debug(dbgInt, "Scheduling the " + type + " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		pending.add(time, numPendingInterruptsCreated++, type, handler);
+		if (time < nextDue)
+			nextDue = time;
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -161,72 +184,66 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (nextDue > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty() && ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
-
-			Lib.assertTrue(next.time <= time);
+		while (!pending.isEmpty() && pending.firstTime() <= time) {
+			String type = pending.firstType();
+			Runnable handler = pending.firstHandler();
+			pending.removeFirst();
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
+		nextDue = pending.isEmpty() ? Long.MAX_VALUE : pending.firstTime();
+
 		Lib.debug(dbgInt, "  (end of list)");
 	}
 
-	private void print() {
-		System.out.println("Time: " + privilege.stats.totalTicks + ", interrupts " + (enabled ? "on" : "off"));
-		System.out.println("Pending interrupts:");
+	/**
+	 * Return the number of user ticks that can pass before the next pending
+	 * interrupt comes due. Handlers can only be scheduled by code that runs
+	 * in a handler or in the kernel, so until then the processor can account
+	 * for its instructions with <tt>skipUserTicks()</tt> and still be
+	 * cycle-for-cycle identical to calling <tt>tick()</tt> after each one.
+	 *
+	 * @return the number of user ticks before the event horizon.
+	 */
+	private long userTicksBeforeDue() {
+		if (Lib.test(dbgInt))
+			return 0;
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at " + toOccur.time);
-		}
+		if (nextDue == Long.MAX_VALUE)
+			return Long.MAX_VALUE;
 
-		System.out.println("  (end of list)");
+		return Math.max(0, (nextDue - privilege.stats.totalTicks - 1) / Stats.UserTick);
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
-		}
+	private void skipUserTicks(long ticks) {
+		Stats stats = privilege.stats;
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
-		}
+		stats.userTicks += ticks * Stats.UserTick;
+		stats.totalTicks += ticks * Stats.UserTick;
+
+		Lib.assertTrue(stats.totalTicks < nextDue);
+	}
+
+	private void print() {
+		System.out.println("Time: " + privilege.stats.totalTicks + ", interrupts " + (enabled ? "on" : "off"));
+		System.out.println("Pending interrupts:");
 
-		long time;
-		String type;
-		Runnable handler;
+		// a heap isn't sorted, so empty a copy of it in order
+		for (InterruptQueue copy = pending.copy(); !copy.isEmpty(); copy.removeFirst())
+			System.out.println("  " + copy.firstType() + ", scheduled at " + copy.firstTime());
 
-		private long id;
+		System.out.println("  (end of list)");
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -234,7 +251,9 @@ public final class Interrupt {
 	private Privilege privilege;
 
 	private boolean enabled;
-	private TreeSet<PendingInterrupt> pending;
+	private InterruptQueue pending;
+	/** The time of the first pending interrupt, or Long.MAX_VALUE if none. */
+	private long nextDue = Long.MAX_VALUE;
 
 	private static final char dbgInt = 'i';
 
@@ -247,5 +266,17 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public long userTicksBeforeDue() {
+			return Interrupt.this.userTicksBeforeDue();
+		}
+
+		public void skipUserTicks(long ticks) {
+			Interrupt.this.skipUserTicks(ticks);
+		}
+
+		public void skipIdleTicks() {
+			Interrupt.this.skipIdleTicks();
+		}
 	}
 }
@@ -0,0 +1,223 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A priority queue of pending interrupts, ordered by the time each interrupt
+ * is due and then by the order in which the interrupts were created.
+ *
+ * <p>
+ * The queue is a binary min-heap of (time, id, slot) triples stored in
+ * parallel arrays. The type and handler of each interrupt live in a pooled
+ * slot that stays put while the heap is reordered, and slots are reused once
+ * their interrupt fires. Scheduling and firing an interrupt therefore does not
+ * allocate any objects once the arrays are large enough to hold the most
+ * interrupts that have ever been pending at once.
+ */
+final class InterruptQueue {
+	/**
+	 * Allocate a new, empty interrupt queue.
+	 */
+	InterruptQueue() {
+		this(16);
+	}
+
+	private InterruptQueue(int capacity) {
+		times = new long[capacity];
+		ids = new long[capacity];
+		slots = new int[capacity];
+		types = new String[capacity];
+		handlers = new Runnable[capacity];
+		freeSlots = new int[capacity];
+
+		for (int i = 0; i < capacity; i++)
+			freeSlots[i] = capacity - 1 - i;
+		numFreeSlots = capacity;
+	}
+
+	/**
+	 * Add an interrupt to the queue.
+	 *
+	 * @param time
+	 *            the time at which the interrupt is due.
+	 * @param id
+	 *            breaks ties between interrupts due at the same time; lower
+	 *            ids come first.
+	 * @param type
+	 *            a name for the type of interrupt.
+	 * @param handler
+	 *            the interrupt handler.
+	 */
+	void add(long time, long id, String type, Runnable handler) {
+		if (numFreeSlots == 0)
+			grow();
+
+		int slot = freeSlots[--numFreeSlots];
+		types[slot] = type;
+		handlers[slot] = handler;
+
+		siftUp(size++, time, id, slot);
+	}
+
+	/**
+	 * Test whether the queue is empty.
+	 *
+	 * @return <tt>true</tt> if no interrupts are pending.
+	 */
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Return the number of pending interrupts.
+	 *
+	 * @return the number of pending interrupts.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Return the time at which the first interrupt is due. The queue must not
+	 * be empty.
+	 *
+	 * @return the time of the first interrupt.
+	 */
+	long firstTime() {
+		Lib.assertTrue(size > 0);
+		return times[0];
+	}
+
+	/**
+	 * Return the type of the first interrupt. The queue must not be empty.
+	 *
+	 * @return the type of the first interrupt.
+	 */
+	String firstType() {
+		Lib.assertTrue(size > 0);
+		return types[slots[0]];
+	}
+
+	/**
+	 * Return the handler of the first interrupt. The queue must not be empty.
+	 *
+	 * @return the handler of the first interrupt.
+	 */
+	Runnable firstHandler() {
+		Lib.assertTrue(size > 0);
+		return handlers[slots[0]];
+	}
+
+	/**
+	 * Remove the first interrupt from the queue. The queue must not be empty.
+	 */
+	void removeFirst() {
+		Lib.assertTrue(size > 0);
+
+		// release the slot, and don't keep its handler reachable
+		int slot = slots[0];
+		types[slot] = null;
+		handlers[slot] = null;
+		freeSlots[numFreeSlots++] = slot;
+
+		int last = --size;
+		if (last == 0)
+			return;
+
+		// move the hole at the root down to a leaf along the smaller
+		// children, then sift the last entry up from there; the last entry
+		// usually belongs near the bottom, so this saves comparisons
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= last)
+				break;
+
+			if (child + 1 < last && before(times[child + 1], ids[child + 1], times[child], ids[child]))
+				child++;
+
+			times[i] = times[child];
+			ids[i] = ids[child];
+			slots[i] = slots[child];
+			i = child;
+		}
+
+		siftUp(i, times[last], ids[last], slots[last]);
+	}
+
+	/**
+	 * Return a copy of this queue.
+	 *
+	 * @return a new queue holding the same interrupts.
+	 */
+	InterruptQueue copy() {
+		InterruptQueue copy = new InterruptQueue(times.length);
+
+		for (int i = 0; i < size; i++)
+			copy.add(times[i], ids[i], types[slots[i]], handlers[slots[i]]);
+
+		return copy;
+	}
+
+	private void siftUp(int i, long time, long id, int slot) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!before(time, id, times[parent], ids[parent]))
+				break;
+
+			times[i] = times[parent];
+			ids[i] = ids[parent];
+			slots[i] = slots[parent];
+			i = parent;
+		}
+
+		times[i] = time;
+		ids[i] = id;
+		slots[i] = slot;
+	}
+
+	private static boolean before(long time1, long id1, long time2, long id2) {
+		return time1 < time2 || (time1 == time2 && id1 < id2);
+	}
+
+	private void grow() {
+		int oldCapacity = times.length;
+		int capacity = oldCapacity * 2;
+
+		long[] newTimes = new long[capacity];
+		long[] newIds = new long[capacity];
+		int[] newSlots = new int[capacity];
+		String[] newTypes = new String[capacity];
+		Runnable[] newHandlers = new Runnable[capacity];
+
+		System.arraycopy(times, 0, newTimes, 0, size);
+		System.arraycopy(ids, 0, newIds, 0, size);
+		System.arraycopy(slots, 0, newSlots, 0, size);
+		System.arraycopy(types, 0, newTypes, 0, oldCapacity);
+		System.arraycopy(handlers, 0, newHandlers, 0, oldCapacity);
+
+		times = newTimes;
+		ids = newIds;
+		slots = newSlots;
+		types = newTypes;
+		handlers = newHandlers;
+
+		// only grown when every slot is in use, so the new ones are all free
+		freeSlots = new int[capacity];
+		for (int i = oldCapacity; i < capacity; i++)
+			freeSlots[numFreeSlots++] = i;
+	}
+
+	/** The heap: due time, creation id, and slot of each pending interrupt. */
+	private long[] times;
+	private long[] ids;
+	private int[] slots;
+	private int size = 0;
+
+	/** The type and handler of the interrupt in each slot. */
+	private String[] types;
+	private Runnable[] handlers;
+	/** A stack of the slots not in use. */
+	private int[] freeSlots;
+	private int numFreeSlots;
+}
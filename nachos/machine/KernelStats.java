@@ -0,0 +1,74 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * Counters for events that only the kernel can see, such as buffer cache
+ * hits and swap traffic. They are kept in the machine's <tt>Stats</tt> so
+ * that they are printed with the rest when the machine halts, but the kernel
+ * can only add to them; the statistics themselves stay reachable only through
+ * <tt>Privilege</tt>.
+ */
+public final class KernelStats {
+    private KernelStats() {
+    }
+
+    /** Count a block found in the buffer cache. */
+    public static void cacheHit() {
+	Machine.stats().numCacheHits++;
+    }
+
+    /** Count a block not found in the buffer cache. */
+    public static void cacheMiss() {
+	Machine.stats().numCacheMisses++;
+    }
+
+    /** Count a read the buffer cache made from the file system under it. */
+    public static void cacheRead() {
+	Machine.stats().numCacheReads++;
+    }
+
+    /** Count a write the buffer cache made to the file system under it. */
+    public static void cacheWrite() {
+	Machine.stats().numCacheWrites++;
+    }
+
+    /**
+     * Count a read from swap.
+     *
+     * @param	pages	the number of pages read.
+     */
+    public static void swapRead(int pages) {
+	Lib.assertTrue(pages > 0);
+
+	Machine.stats().numSwapReads++;
+	Machine.stats().numSwapPagesRead += pages;
+    }
+
+    /**
+     * Count a write to swap.
+     *
+     * @param	pages	the number of pages written.
+     */
+    public static void swapWrite(int pages) {
+	Lib.assertTrue(pages > 0);
+
+	Machine.stats().numSwapWrites++;
+	Machine.stats().numSwapPagesWritten += pages;
+    }
+
+    /**
+     * Record how long a disk request took, from when the kernel asked for it.
+     *
+     * @param	write	<tt>true</tt> for a write, <tt>false</tt> for a read.
+     * @param	latency	the time the request took, in ticks.
+     */
+    public static void diskLatency(boolean write, long latency) {
+	Lib.assertTrue(latency >= 0);
+
+	if (write)
+	    Machine.stats().diskWriteLatency.record(latency);
+	else
+	    Machine.stats().diskReadLatency.record(latency);
+    }
+}
@@ -0,0 +1,108 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A histogram of latencies, in ticks. Latencies are counted in power-of-two
+ * buckets, so the histogram stays small however long the latencies get.
+ */
+public final class LatencyHistogram {
+    /**
+     * Allocate a new, empty histogram.
+     */
+    public LatencyHistogram() {
+    }
+
+    /**
+     * Count a latency.
+     *
+     * @param	latency	the latency, in ticks.
+     */
+    public void record(long latency) {
+	Lib.assertTrue(latency >= 0);
+
+	int bucket = 0;
+	while (bucket < numBuckets-1 && latency >= (1L << (bucket+1)))
+	    bucket++;
+
+	buckets[bucket]++;
+	count++;
+	total += latency;
+	max = Math.max(max, latency);
+    }
+
+    /**
+     * Return the number of latencies counted.
+     *
+     * @return	the number of latencies.
+     */
+    public int getCount() {
+	return count;
+    }
+
+    /**
+     * Return the mean latency.
+     *
+     * @return	the mean latency, or 0 if none have been counted.
+     */
+    public long getMean() {
+	return (count == 0) ? 0 : total/count;
+    }
+
+    /**
+     * Return an upper bound on the latency below which the specified
+     * fraction of latencies fall.
+     *
+     * @param	fraction	the fraction of latencies, such as 0.99.
+     * @return	the top of the bucket holding that percentile.
+     */
+    public long getPercentile(double fraction) {
+	long wanted = (long) Math.ceil(count*fraction);
+	long seen = 0;
+
+	for (int i=0; i<numBuckets; i++) {
+	    seen += buckets[i];
+	    if (seen >= wanted && seen > 0)
+		return Math.min(max, (1L << (i+1)) - 1);
+	}
+
+	return max;
+    }
+
+    /**
+     * Return the latencies as a count per bucket, with each bucket named by
+     * its upper bound.
+     *
+     * @return	the buckets that are not empty, as a string.
+     */
+    public String toString() {
+	StringBuffer buf = new StringBuffer();
+
+	for (int i=0; i<numBuckets; i++) {
+	    if (buckets[i] == 0)
+		continue;
+
+	    if (buf.length() > 0)
+		buf.append(", ");
+
+	    long limit = 1L << (i+1);
+	    if (limit >= 1024*1024)
+		buf.append("<" + (limit/(1024*1024)) + "M");
+	    else if (limit >= 1024)
+		buf.append("<" + (limit/1024) + "K");
+	    else
+		buf.append("<" + limit);
+
+	    buf.append(" " + buckets[i]);
+	}
+
+	return buf.toString();
+    }
+
+    private static final int numBuckets = 32;
+
+    private int[] buckets = new int[numBuckets];
+    private int count = 0;
+    private long total = 0;
+    private long max = 0;
+}
@@ -185,6 +185,9 @@ public final class Machine {
 	if (Config.getBoolean("Machine.stubFileSystem"))
 	    stubFileSystem = new StubFileSystem(privilege, testDirectory);
 
+	if (Config.getBoolean("Machine.disk"))
+	    disk = new Disk(privilege, testDirectory);
+
 	if (Config.getBoolean("Machine.networkLink"))
 	    networkLink = new NetworkLink(privilege);
     }
@@ -336,6 +339,13 @@ public final class Machine {
      * @return	the stub file system, or <tt>null</tt> if it is not present.
      */
     public static FileSystem stubFileSystem() { return stubFileSystem; }
+
+    /**
+     * Return the hardware disk.
+     *
+     * @return	the hardware disk, or <tt>null</tt> if it is not present.
+     */
+    public static Disk disk() { return disk; }
     
     /**
      * Return the network link.
@@ -351,12 +361,21 @@ public final class Machine {
      */
     public static AutoGrader autoGrader() { return autoGrader; }
 
+    /**
+     * Return the statistics object, for <tt>KernelStats</tt> to count the
+     * events the hardware cannot see.
+     *
+     * @return	the statistics object.
+     */
+    static Stats stats() { return stats; }
+
     private static Interrupt interrupt = null;
     private static Timer timer = null;
     private static ElevatorBank bank = null;
     private static Processor processor = null;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
+    private static Disk disk = null;
     private static NetworkLink networkLink = null;
     private static AutoGrader autoGrader = null;
 
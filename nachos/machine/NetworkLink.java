@@ -5,11 +5,11 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
 /**
  * A full-duplex network link. Provides ordered, unreliable delivery of
@@ -57,6 +57,13 @@ import java.net.SocketException;
  * for a network layer in Nachos. This should simplify your design for the
  * session/transport layer, since you can assume packets never arrive out of
  * order.
+ *
+ * <p>
+ * Packets that arrive are kept in a receive ring until Nachos takes them.
+ * The ring holds <tt>NetworkLink.receiveRingSize</tt> packets; a packet that
+ * arrives while it is full is dropped, and counted in <tt>Stats</tt>. Every
+ * packet in the ring when a receive interrupt occurs is delivered by that
+ * interrupt.
  */
 public class NetworkLink {
     /**
@@ -87,18 +94,37 @@ public class NetworkLink {
 	reliability = Config.getDouble("NetworkLink.reliability");
 	Lib.assertTrue(reliability > 0 && reliability <= 1.0);
 
-	socket = null;
+	int ringSize = Config.getInteger("NetworkLink.receiveRingSize", 16);
+	Lib.assertTrue(ringSize > 0);
+
+	ringBytes = new byte[ringSize][];
+	ringLengths = new int[ringSize];
+	incomingPackets = new Packet[ringSize];
+
+	// enough buffers for a full ring, the packets being delivered, and
+	// the one being received into
+	pool = new PacketPool(privilege.stats, ringSize*2 + 1);
+
+	channel = null;
 
 	for (linkAddress=0;linkAddress<Packet.linkAddressLimit;linkAddress++) {
 	    try {
-		socket = new DatagramSocket(portBase + linkAddress, localHost);
+		channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(localHost,
+						   portBase + linkAddress));
 		break;
 	    }
-	    catch (SocketException e) {
+	    catch (IOException e) {
+		try {
+		    channel.close();
+		}
+		catch (IOException e2) {
+		}
+		channel = null;
 	    }
 	}
 
-	if (socket == null) {
+	if (channel == null) {
 	    System.out.println("");
 	    System.out.println("Unable to acquire a link address!");
 	    Lib.assertNotReached();
@@ -136,8 +162,8 @@ public class NetworkLink {
      * Set this link's receive and send interrupt handlers.
      *
      * <p>
-     * The receive interrupt handler is called every time a packet arrives
-     * and can be read using <tt>receive()</tt>.
+     * The receive interrupt handler is called every time one or more
+     * packets arrive and can be read using <tt>receive()</tt>.
      *
      * <p>
      * The send interrupt handler is called every time a packet sent with
@@ -161,12 +187,20 @@ public class NetworkLink {
     }
 
     private synchronized void receiveInterrupt() {
-	Lib.assertTrue(incomingPacket == null);
+	Lib.assertTrue(numIncoming == 0);
+
+	// take everything in the ring at once
+	while (ringCount > 0) {
+	    byte[] buffer = ringBytes[ringHead];
+	    int length = ringLengths[ringHead];
+	    ringBytes[ringHead] = null;
+	    ringHead = (ringHead+1) % ringBytes.length;
+	    ringCount--;
 
-	if (incomingBytes != null) {
+	    Packet p = null;
 	    if (Machine.autoGrader().canReceivePacket(privilege)) {
 		try {
-		    incomingPacket = new Packet(incomingBytes);
+		    p = new Packet(buffer, length, pool);
 
 		    privilege.stats.numPacketsReceived++;
 		}
@@ -174,30 +208,37 @@ public class NetworkLink {
 		}
 	    }
 
-	    incomingBytes = null;
-	    notify();
-
-	    if (incomingPacket == null)
-		scheduleReceiveInterrupt();
-	    else if (receiveInterruptHandler != null)
-		receiveInterruptHandler.run();
+	    if (p == null)
+		pool.free(buffer);
+	    else
+		incomingPackets[numIncoming++] = p;
 	}
-	else {
+
+	nextIncoming = 0;
+
+	if (numIncoming == 0)
 	    scheduleReceiveInterrupt();
-	}
+	else if (receiveInterruptHandler != null)
+	    receiveInterruptHandler.run();
     }
 
     /**
-     * Return the next packet received.
+     * Return the next packet received. After a receive interrupt, this
+     * should be called until it returns <tt>null</tt>; no more packets are
+     * delivered until then.
      *
      * @return	the next packet received, or <tt>null</tt> if no packet is
      * 		available.
      */
     public Packet receive() {
-	Packet p = incomingPacket;
-	
-	if (incomingPacket != null) {
-	    incomingPacket = null;
+	if (nextIncoming == numIncoming)
+	    return null;
+
+	Packet p = incomingPackets[nextIncoming];
+	incomingPackets[nextIncoming++] = null;
+
+	if (nextIncoming == numIncoming) {
+	    nextIncoming = numIncoming = 0;
 	    scheduleReceiveInterrupt();
 	}
 
@@ -206,35 +247,29 @@ public class NetworkLink {
 
     private void receiveLoop() {
 	while (true) {
-	    synchronized(this) {
-		while (incomingBytes != null) {
-		    try {
-			wait();
-		    }
-		    catch (InterruptedException e) {
-		    }
-		}
-	    }
-
-	    byte[] packetBytes;
+	    // receive straight into a buffer from the pool, which the packet
+	    // keeps until it is released
+	    byte[] buffer = pool.allocate();
+	    ByteBuffer buf = ByteBuffer.wrap(buffer);
 
 	    try {
-		byte[] buffer = new byte[Packet.maxPacketLength];
-
-		DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
-		
-		socket.receive(dp);
-
-		packetBytes = new byte[dp.getLength()];
-
-		System.arraycopy(buffer,0, packetBytes,0, packetBytes.length);
+		channel.receive(buf);
 	    }
 	    catch (IOException e) {
 		return;
 	    }
 
 	    synchronized(this) {
-		incomingBytes = packetBytes;
+		if (ringCount == ringBytes.length) {
+		    privilege.stats.numPacketsDropped++;
+		    pool.free(buffer);
+		    continue;
+		}
+
+		int tail = (ringHead+ringCount) % ringBytes.length;
+		ringBytes[tail] = buffer;
+		ringLengths[tail] = buf.position();
+		ringCount++;
 	    }
 	}
     }		
@@ -267,9 +302,13 @@ public class NetworkLink {
 	Packet p = outgoingPacket;
 	outgoingPacket = null;
 	
+	if (linkSockets[p.dstLink] == null)
+	    linkSockets[p.dstLink] =
+		new InetSocketAddress(localHost, portBase+p.dstLink);
+
 	try {
-	    socket.send(new DatagramPacket(p.packetBytes, p.packetBytes.length,
-					   localHost, portBase+p.dstLink));
+	    channel.send(ByteBuffer.wrap(p.packetBytes, 0, p.packetLength),
+			 linkSockets[p.dstLink]);
 
 	    privilege.stats.numPacketsSent++;
 	}
@@ -316,13 +355,24 @@ public class NetworkLink {
     private Runnable sendInterruptHandler = null;
 
     private InetAddress localHost;
-    private DatagramSocket socket;
+    private DatagramChannel channel;
+    private InetSocketAddress[] linkSockets =
+	new InetSocketAddress[Packet.linkAddressLimit];
 
     private byte linkAddress;
     private double reliability;
 
-    private byte[] incomingBytes = null;
-    private Packet incomingPacket = null;
+    private PacketPool pool;
+
+    /** Packets received from the network, not yet taken by Nachos. */
+    private byte[][] ringBytes;
+    private int[] ringLengths;
+    private int ringHead = 0, ringCount = 0;
+
+    /** Packets delivered by the last receive interrupt. */
+    private Packet[] incomingPackets;
+    private int nextIncoming = 0, numIncoming = 0;
+
     private Packet outgoingPacket = null;
 
     private boolean sendBusy = false;
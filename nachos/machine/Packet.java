@@ -2,9 +2,17 @@
 
 package nachos.machine;
 
+import java.nio.ByteBuffer;
+
 /**
  * A link-layer packet.
  *
+ * <p>
+ * A packet received from the network is kept in a buffer from the network
+ * link's pool, and its contents are a view of that buffer rather than a
+ * copy. Once the contents have been read, the packet should be released, so
+ * that the buffer can hold another packet.
+ *
  * @see	nachos.machine.NetworkLink
  */
 public class Packet {
@@ -25,9 +33,9 @@ public class Packet {
 	    
 	this.dstLink = dstLink;
 	this.srcLink = srcLink;
-	this.contents = contents;
 
 	packetBytes = new byte[headerLength + contents.length];
+	packetLength = packetBytes.length;
 
 	packetBytes[0] = NetworkLink.networkID;
 	packetBytes[1] = (byte) dstLink;
@@ -37,6 +45,8 @@ public class Packet {
 	// if java had subarrays, i'd use them. but System.arraycopy is ok...
 	System.arraycopy(contents, 0, packetBytes, headerLength,
 			 contents.length);
+
+	this.contents = view(contents.length);
     }
 
     /**
@@ -46,32 +56,77 @@ public class Packet {
      * @param	packetBytes	the bytes making up this packet.
      */
     public Packet(byte[] packetBytes) throws MalformedPacketException {
-	this.packetBytes = packetBytes;
-	
+	this(packetBytes, packetBytes.length, null);
+    }
+
+    /**
+     * Allocate a new packet using the first bytes of a buffer received from
+     * the network, without copying them.
+     *
+     * @param	buffer	the buffer holding the packet.
+     * @param	length	the length of the packet.
+     * @param	pool	the pool to give the buffer back to when the packet
+     *			is released, or <tt>null</tt>.
+     */
+    Packet(byte[] buffer, int length, PacketPool pool)
+	throws MalformedPacketException {
 	// make sure we have a valid header
-	if (packetBytes.length < headerLength ||
-	    packetBytes[0] != NetworkLink.networkID ||
-	    packetBytes[1] < 0 || packetBytes[1] >= linkAddressLimit ||
-	    packetBytes[2] < 0 || packetBytes[2] >= linkAddressLimit ||
-	    packetBytes[3] < 0 || packetBytes[3] > packetBytes.length-4)
+	if (length < headerLength ||
+	    buffer[0] != NetworkLink.networkID ||
+	    buffer[1] < 0 || buffer[1] >= linkAddressLimit ||
+	    buffer[2] < 0 || buffer[2] >= linkAddressLimit ||
+	    buffer[3] < 0 || buffer[3] > length-headerLength)
 	    throw new MalformedPacketException();
 
-	dstLink = packetBytes[1];
-	srcLink = packetBytes[2];
+	this.packetBytes = buffer;
+	this.packetLength = length;
+	this.pool = pool;
 
-	contents = new byte[packetBytes[3]];
-	System.arraycopy(packetBytes, headerLength, contents, 0,
-			 contents.length);
+	dstLink = buffer[1];
+	srcLink = buffer[2];
+
+	contents = view(buffer[3]);
+    }
+
+    private ByteBuffer view(int length) {
+	ByteBuffer buf = ByteBuffer.wrap(packetBytes, headerLength, length);
+	return buf.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Release this packet, giving its buffer back to the network link if it
+     * was received from the network. The contents cannot be read after this,
+     * but the link addresses can.
+     */
+    public void release() {
+	if (pool == null)
+	    return;
+
+	Lib.assertTrue(packetBytes != null, "packet released twice");
+
+	pool.free(packetBytes);
+	packetBytes = null;
+	contents = null;
     }
 
-    /** This packet, as an array of bytes that can be sent on a network. */
+    /**
+     * This packet, as an array of bytes that can be sent on a network. Only
+     * the first <tt>packetLength</tt> bytes are part of the packet.
+     */
     public byte[] packetBytes;
+    /** The number of bytes in this packet. */
+    public int packetLength;
     /** The address of the destination link of this packet. */
     public int dstLink;
     /** The address of the source link of this packet. */
     public int srcLink;
-    /** The contents of this packet, excluding the link-layer header. */
-    public byte[] contents;
+    /**
+     * The contents of this packet, excluding the link-layer header, as a
+     * read-only view of <tt>packetBytes</tt>.
+     */
+    public ByteBuffer contents;
+
+    private PacketPool pool = null;
 
     /**
      * The number of bytes in a link-layer packet header. The header is
@@ -0,0 +1,60 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A pool of buffers for packets received from the network, so that a buffer
+ * can be used again once the packet in it has been released, rather than
+ * thrown away. Buffers are taken by the network link's receive thread, and
+ * given back by Nachos threads, so the pool is synchronized.
+ *
+ * <p>
+ * Taking a buffer counts as a hit in <tt>Stats</tt> if the pool has one, or
+ * a miss if a new buffer has to be allocated.
+ */
+final class PacketPool {
+    /**
+     * Allocate a new, empty pool.
+     *
+     * @param	stats	the statistics to count hits and misses in.
+     * @param	size	the most buffers the pool will keep.
+     */
+    PacketPool(Stats stats, int size) {
+	this.stats = stats;
+	free = new byte[size][];
+    }
+
+    /**
+     * Take a buffer from the pool, or allocate one if the pool is empty.
+     *
+     * @return	a buffer that can hold any packet.
+     */
+    synchronized byte[] allocate() {
+	if (numFree == 0) {
+	    stats.numPacketPoolMisses++;
+	    return new byte[Packet.maxPacketLength];
+	}
+
+	stats.numPacketPoolHits++;
+	byte[] buffer = free[--numFree];
+	free[numFree] = null;
+	return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool. If the pool is full, the buffer is
+     * left for the garbage collector.
+     *
+     * @param	buffer	a buffer from <tt>allocate()</tt>.
+     */
+    synchronized void free(byte[] buffer) {
+	Lib.assertTrue(buffer.length == Packet.maxPacketLength);
+
+	if (numFree < free.length)
+	    free[numFree++] = buffer;
+    }
+
+    private Stats stats;
+    private byte[][] free;
+    private int numFree = 0;
+}
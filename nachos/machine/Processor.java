@@ -45,11 +45,21 @@ public final class Processor {
 			registers[i] = 0;
 
 		mainMemory = new byte[pageSize * numPhysPages];
+		decodedPages = new Decoded[numPhysPages][];
+
+		String engine = Config.getString("Processor.engine", "interpreter");
+		Lib.assertTrue(engine.equals("interpreter") || engine.equals("block"),
+				"Processor.engine should be interpreter or block");
+		usingBlocks = engine.equals("block");
+		codePages = new CodePage[numPhysPages];
 
 		if (usingTLB) {
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+			tlbShadow = new int[tlbShadowSize];
+			for (int i = 0; i < tlbShadowSize; i++)
+				tlbShadow[i] = -1;
 		} else {
 			translations = null;
 		}
@@ -87,11 +97,17 @@ public final class Processor {
 		Lib.debug(dbgProcessor, "starting program in current thread");
 
 		registers[regNextPC] = registers[regPC] + 4;
+		flushMicroTLB();
+		tickBudget = 0;
 
 		Machine.autoGrader().runProcessor(privilege);
 
 		Instruction inst = new Instruction();
 
+		// the interpreter is the only engine that can trace instructions
+		if (usingBlocks && !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble))
+			runBlocks(inst);
+
 		while (true) {
 			try {
 				inst.run();// 执行一条指令
@@ -99,10 +115,138 @@ public final class Processor {
 				e.handle();
 			}
 
-			privilege.interrupt.tick(false);
+			userTick();
 		}
 	}
 
+	/**
+	 * Execute instructions using translated code pages. Never returns.
+	 *
+	 * <p>
+	 * Each physical page holding code is translated once into an array of
+	 * <tt>Op</tt> objects, one per instruction word, so an instruction is
+	 * decoded only the first time it is reached. Once the PC has been
+	 * translated, execution stays on the same code page for as long as the
+	 * PC does, following fall-through and taken branches without translating
+	 * the PC again. The processor ticks once per instruction and completes
+	 * delayed loads and branch delay slots exactly as the interpreter does.
+	 *
+	 * <p>
+	 * Control leaves the page whenever the kernel may have run, that is after
+	 * an exception or before an interrupt handler, because the kernel can
+	 * change translations, memory, or the current thread.
+	 *
+	 * @param inst
+	 *            used for instructions that have no translation.
+	 */
+	private void runBlocks(Instruction inst) {
+		while (true) {
+			int pc = registers[regPC];
+			int paddr;
+
+			try {
+				paddr = translate(pc, 4, false, true);
+			} catch (MipsException e) {
+				e.handle();
+				userTick();
+				continue;
+			}
+
+			CodePage page = codePageAt(paddr / pageSize);
+			int pageBase = pc - offsetFromAddress(pc);
+			int index = offsetFromAddress(pc) / 4;
+			long entryEpoch = epoch;
+
+			while (true) {
+				Op op = page.opAt(index);
+				if (op == null) {
+					try {
+						inst.run();
+					} catch (MipsException e) {
+						e.handle();
+					}
+
+					userTick();
+					break;
+				}
+
+				try {
+					op.run();
+				} catch (MipsException e) {
+					e.handle();
+					userTick();
+					break;
+				}
+
+				userTick();
+
+				if (epoch != entryEpoch)
+					break;
+
+				int offset = registers[regPC] - pageBase;
+				if (offset < 0 || offset >= pageSize || (offset & 3) != 0)
+					break;
+
+				index = offset / 4;
+			}
+		}
+	}
+
+	/**
+	 * Advance the simulated time by one user tick. Until the next pending
+	 * interrupt comes due, ticks are only counted here and passed to the
+	 * interrupt controller in one step, before it next needs the time.
+	 */
+	private void userTick() {
+		if (tickBudget > 0) {
+			tickBudget--;
+			deferredTicks++;
+			return;
+		}
+
+		flushTicks();
+		privilege.interrupt.tick(false);
+		tickBudget = privilege.interrupt.userTicksBeforeDue();
+	}
+
+	/**
+	 * Account for the user ticks counted by <tt>userTick()</tt>. Must be called
+	 * before the kernel runs, since the kernel may read the time or schedule
+	 * interrupts.
+	 */
+	private void flushTicks() {
+		if (deferredTicks > 0) {
+			privilege.interrupt.skipUserTicks(deferredTicks);
+			deferredTicks = 0;
+		}
+	}
+
+	/**
+	 * Return the translated code for the specified physical page, dropping
+	 * it first if the kernel has overwritten any instruction in it.
+	 *
+	 * @param ppn
+	 *            the physical page number.
+	 * @return the translated code for the page.
+	 */
+	private CodePage codePageAt(int ppn) {
+		CodePage page = codePages[ppn];
+
+		if (page != null && page.checkedEpoch != epoch) {
+			if (page.matchesMemory())
+				page.checkedEpoch = epoch;
+			else
+				page = null;
+		}
+
+		if (page == null) {
+			page = new CodePage(ppn);
+			codePages[ppn] = page;
+		}
+
+		return page;
+	}
+
 	/**
 	 * Read and return the contents of the specified CPU register.
 	 *
@@ -177,6 +321,7 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		flushMicroTLB();
 	}
 
 	/**
@@ -220,7 +365,12 @@ public final class Processor {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
+		// the shadow index may point at the old entry, or past the new one
+		tlbShadow[translations[number].vpn & (tlbShadowSize - 1)] = -1;
+		tlbShadow[entry.vpn & (tlbShadowSize - 1)] = -1;
+
 		translations[number] = new TranslationEntry(entry);
+		flushMicroTLB();
 	}
 
 	/**
@@ -299,11 +449,27 @@ public final class Processor {
 	 *            the size of the memory reference (must be 1, 2, or 4).
 	 * @param writing
 	 *            <tt>true</tt> if the memory reference is a write.
+	 * @param fetching
+	 *            <tt>true</tt> if the memory reference is an instruction
+	 *            fetch.
 	 * @return the physical address.
 	 * @exception MipsException
 	 *                if a translation error occurred.
 	 */
-	private int translate(int vaddr, int size, boolean writing) throws MipsException {
+	private int translate(int vaddr, int size, boolean writing, boolean fetching) throws MipsException {
+		// try the micro-TLB for this kind of reference first
+		int vpn = pageFromAddress(vaddr);
+		TranslationEntry entry = fetching ? instEntry : dataEntry;
+
+		if (vpn == (fetching ? instVPN : dataVPN) && (vaddr & (size - 1)) == 0 && !(writing && entry.readOnly)
+				&& !Lib.test(dbgProcessor)) {
+			entry.used = true;
+			if (writing)
+				entry.dirty = true;
+
+			return (entry.ppn * pageSize) + offsetFromAddress(vaddr);
+		}
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr) + (writing ? ", write" : ", read..."));
 
@@ -313,11 +479,10 @@ public final class Processor {
 			throw new MipsException(exceptionAddressError, vaddr);
 		}
 
-		// calculate virtual page number and offset from the virtual address
-		int vpn = pageFromAddress(vaddr);
+		// calculate offset from the virtual address
 		int offset = offsetFromAddress(vaddr);
 
-		TranslationEntry entry = null;
+		entry = null;
 
 		// if not using a TLB, then the vpn is an index into the table
 		if (!usingTLB) {
@@ -330,12 +495,19 @@ public final class Processor {
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, try the shadow index, then look through all TLB entries for
+		// matching vpn
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
-					entry = translations[i];
-					break;
+			int shadow = tlbShadow[vpn & (tlbShadowSize - 1)];
+			if (shadow != -1 && translations[shadow].valid && translations[shadow].vpn == vpn) {
+				entry = translations[shadow];
+			} else {
+				for (int i = 0; i < tlbSize; i++) {
+					if (translations[i].valid && translations[i].vpn == vpn) {
+						entry = translations[i];
+						tlbShadow[vpn & (tlbShadowSize - 1)] = i;
+						break;
+					}
 				}
 			}
 			if (entry == null) {
@@ -365,11 +537,30 @@ public final class Processor {
 
 		int paddr = (ppn * pageSize) + offset;
 
+		if (fetching) {
+			instVPN = vpn;
+			instEntry = entry;
+		} else {
+			dataVPN = vpn;
+			dataEntry = entry;
+		}
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 		return paddr;
 	}
 
+	/**
+	 * Forget the last instruction and data translations. Called whenever the
+	 * translations may have changed: when the page table or a TLB entry is
+	 * replaced, and whenever the kernel may have run, since it can modify the
+	 * entries of the current page table in place.
+	 */
+	private void flushMicroTLB() {
+		instVPN = -1;
+		dataVPN = -1;
+	}
+
 	/**
 	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
 	 * and return the result.
@@ -388,7 +579,7 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false), size);
+		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false, false), size);
 
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tvalue read=0x" + Lib.toHexString(value, size * 2));
@@ -416,7 +607,51 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true, false);
+		Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+		// the page may hold code, so forget anything decoded from it
+		int ppn = paddr / pageSize;
+		if (decodedPages[ppn] != null || codePages[ppn] != null) {
+			decodedPages[ppn] = null;
+			codePages[ppn] = null;
+			epoch++;
+		}
+	}
+
+	/**
+	 * Return the pre-decoded form of the instruction word <i>value</i>, which
+	 * was fetched from physical address <i>paddr</i>.
+	 *
+	 * <p>
+	 * The cache is keyed by physical page, so it does not depend on the page
+	 * table or TLB in use. Stores executed by the processor drop the decoded
+	 * instructions of the page they write. The kernel can also write physical
+	 * memory directly through <tt>getMemory()</tt> (for example when loading a
+	 * COFF section into a recycled page), so every entry remembers the word it
+	 * was decoded from and is discarded if the word no longer matches.
+	 *
+	 * @param paddr
+	 *            the physical address the instruction was fetched from.
+	 * @param value
+	 *            the instruction word.
+	 * @return the decoded instruction.
+	 */
+	private Decoded decodedAt(int paddr, int value) {
+		Decoded[] page = decodedPages[paddr / pageSize];
+		if (page == null) {
+			page = new Decoded[pageSize / 4];
+			decodedPages[paddr / pageSize] = page;
+		}
+
+		int index = (paddr % pageSize) / 4;
+		Decoded decoded = page[index];
+		if (decoded == null || decoded.value != value) {
+			decoded = new Decoded(value);
+			page[index] = decoded;
+		}
+
+		return decoded;
 	}
 
 	/**
@@ -549,6 +784,22 @@ public final class Processor {
 	 * depending on whether there is a TLB.
 	 */
 	private TranslationEntry[] translations;
+	/**
+	 * Direct-mapped index from virtual page number to the TLB entry last
+	 * found for it, or -1. Only used with a TLB.
+	 */
+	private int[] tlbShadow;
+	/** Number of slots in the TLB shadow index; a power of two. */
+	private static final int tlbShadowSize = 64;
+
+	/** Virtual page of the last instruction fetch, or -1. */
+	private int instVPN = -1;
+	/** Translation entry of the last instruction fetch. */
+	private TranslationEntry instEntry;
+	/** Virtual page of the last load or store, or -1. */
+	private int dataVPN = -1;
+	/** Translation entry of the last load or store. */
+	private TranslationEntry dataEntry;
 
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
@@ -558,6 +809,26 @@ public final class Processor {
 	private int numPhysPages;
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
+	/**
+	 * Decoded instructions, indexed by physical page and then by word within
+	 * the page. A page's array is allocated on the first fetch from it.
+	 */
+	private Decoded[][] decodedPages;
+
+	/** <tt>true</tt> if running translated code pages instead of interpreting. */
+	private boolean usingBlocks;
+	/** Translated code, indexed by physical page. */
+	private CodePage[] codePages;
+	/**
+	 * Incremented whenever the kernel may have run or the processor stores to
+	 * a page holding code, so that translated code knows to check itself.
+	 */
+	private long epoch = 0;
+
+	/** User ticks that can still be counted before an interrupt comes due. */
+	private long tickBudget = 0;
+	/** User ticks counted but not yet passed to the interrupt controller. */
+	private long deferredTicks = 0;
 
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
@@ -569,6 +840,10 @@ public final class Processor {
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
+
+			// an interrupt handler is about to run
+			epoch++;
+			flushMicroTLB();
 		}
 	}
 
@@ -587,6 +862,9 @@ public final class Processor {
 		}
 
 		public void handle() {
+			flushTicks();
+			tickBudget = 0;
+
 			writeRegister(regCause, cause);
 
 			if (hasBadVAddr)
@@ -596,6 +874,8 @@ public final class Processor {
 				System.out.println("exception: " + exceptionNames[cause]);
 
 			finishLoad();
+			epoch++;
+			flushMicroTLB();
 
 			Lib.assertTrue(exceptionHandler != null);
 
@@ -627,78 +907,52 @@ public final class Processor {
 			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) || Lib.test(dbgFullDisassemble))
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC]) + "\t");
 
-			value = readMem(registers[regPC], 4);
+			if (Lib.test(dbgProcessor))
+				System.out.println("\treadMem vaddr=0x" + Lib.toHexString(registers[regPC]) + ", size=4");
+
+			paddr = translate(registers[regPC], 4, false, true);
+			value = Lib.bytesToInt(mainMemory, paddr, 4);
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tvalue read=0x" + Lib.toHexString(value, 8));
 		}
 
 		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+			Decoded decoded = decodedAt(paddr, value);
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+			op = decoded.op;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.rd;
+			sh = decoded.sh;
+			func = decoded.func;
+			target = decoded.target;
+			imm = decoded.imm;
 
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+			operation = decoded.operation;
+			name = decoded.name;
+			format = decoded.format;
+			flags = decoded.flags;
+
+			size = decoded.size;
+			dstReg = decoded.dstReg;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
 			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
+				jtarget = registers[regNextPC] + decoded.branchOffset;
 			else if (format == Mips.JFMT)
 				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -1039,7 +1293,7 @@ public final class Processor {
 		}
 
 		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
+		int value, paddr, op, rs, rt, rd, sh, func, target, imm;
 		int operation, format, flags;
 		String name;
 
@@ -1050,6 +1304,412 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * Return the translation of a decoded instruction, or <tt>null</tt> if the
+	 * instruction is left to the interpreter (partial word accesses,
+	 * unimplemented and invalid instructions).
+	 *
+	 * @param decoded
+	 *            the instruction to translate.
+	 * @return the translated instruction.
+	 */
+	private Op translateOp(Decoded decoded) {
+		switch (decoded.operation) {
+		case Mips.ADD:
+		case Mips.SUB:
+		case Mips.MULT:
+		case Mips.DIV:
+		case Mips.SLL:
+		case Mips.SRA:
+		case Mips.SRL:
+		case Mips.SLT:
+		case Mips.AND:
+		case Mips.OR:
+		case Mips.NOR:
+		case Mips.XOR:
+		case Mips.LUI:
+		case Mips.MFLO:
+		case Mips.MFHI:
+		case Mips.MTLO:
+		case Mips.MTHI:
+			return new AluOp(decoded);
+
+		case Mips.JUMP:
+		case Mips.BEQ:
+		case Mips.BNE:
+		case Mips.BLEZ:
+		case Mips.BGTZ:
+		case Mips.BLTZ:
+		case Mips.BGEZ:
+			return new BranchOp(decoded);
+
+		case Mips.LOAD:
+			return new LoadOp(decoded);
+		case Mips.STORE:
+			return new StoreOp(decoded);
+
+		case Mips.SYSCALL:
+			return new SyscallOp();
+
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * The translated code of one physical page. Words are translated the first
+	 * time they are executed, and remembered so the page can be checked
+	 * against memory after the kernel has run.
+	 */
+	private class CodePage {
+		CodePage(int ppn) {
+			this.ppn = ppn;
+			checkedEpoch = epoch;
+		}
+
+		Op opAt(int index) {
+			if (!translated[index]) {
+				int paddr = ppn * pageSize + index * 4;
+
+				words[index] = Lib.bytesToInt(mainMemory, paddr, 4);
+				ops[index] = translateOp(decodedAt(paddr, words[index]));
+				translated[index] = true;
+			}
+
+			return ops[index];
+		}
+
+		boolean matchesMemory() {
+			for (int i = 0; i < words.length; i++) {
+				if (translated[i] && words[i] != Lib.bytesToInt(mainMemory, ppn * pageSize + i * 4, 4))
+					return false;
+			}
+
+			return true;
+		}
+
+		private int ppn;
+		private Op[] ops = new Op[pageSize / 4];
+		private int[] words = new int[pageSize / 4];
+		private boolean[] translated = new boolean[pageSize / 4];
+
+		/** The epoch at which every translated word last matched memory. */
+		long checkedEpoch;
+	}
+
+	/**
+	 * A translated instruction. Running it has exactly the effect that the
+	 * interpreter has on the registers, memory and delayed load state.
+	 */
+	private abstract class Op {
+		abstract void run() throws MipsException;
+	}
+
+	/** Arithmetic, logic, shift, and multiply/divide instructions. */
+	private class AluOp extends Op {
+		AluOp(Decoded decoded) {
+			operation = decoded.operation;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			sh = decoded.sh;
+			imm = decoded.imm;
+			dstReg = decoded.dstReg;
+
+			shiftAmount = Lib.test(Mips.SRC1SH, decoded.flags);
+			immediate = Lib.test(Mips.SRC2IMM, decoded.flags);
+			unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+			overflow = Lib.test(Mips.OVERFLOW, decoded.flags);
+			writesDst = Lib.test(Mips.DST, decoded.flags) && dstReg != 0;
+		}
+
+		void run() throws MipsException {
+			int nextPC = registers[regNextPC] + 4;
+
+			long src1 = shiftAmount ? sh : registers[rs];
+			long src2 = immediate ? imm : registers[rt];
+			if (unsigned) {
+				src1 &= 0xFFFFFFFFL;
+				src2 &= 0xFFFFFFFFL;
+			}
+
+			long dst = 0;
+
+			switch (operation) {
+			case Mips.ADD:
+				dst = src1 + src2;
+				break;
+			case Mips.SUB:
+				dst = src1 - src2;
+				break;
+			case Mips.MULT:
+				dst = src1 * src2;
+				registers[regLo] = (int) Lib.extract(dst, 0, 32);
+				registers[regHi] = (int) Lib.extract(dst, 32, 32);
+				break;
+			case Mips.DIV:
+				try {
+					registers[regLo] = (int) (src1 / src2);
+					registers[regHi] = (int) (src1 % src2);
+					if (registers[regLo] * src2 + registers[regHi] != src1)
+						throw new ArithmeticException();
+				} catch (ArithmeticException e) {
+					throw new MipsException(exceptionOverflow);
+				}
+				break;
+			case Mips.SLL:
+				dst = src2 << (src1 & 0x1F);
+				break;
+			case Mips.SRA:
+				dst = src2 >> (src1 & 0x1F);
+				break;
+			case Mips.SRL:
+				dst = src2 >>> (src1 & 0x1F);
+				break;
+			case Mips.SLT:
+				dst = (src1 < src2) ? 1 : 0;
+				break;
+			case Mips.AND:
+				dst = src1 & src2;
+				break;
+			case Mips.OR:
+				dst = src1 | src2;
+				break;
+			case Mips.NOR:
+				dst = ~(src1 | src2);
+				break;
+			case Mips.XOR:
+				dst = src1 ^ src2;
+				break;
+			case Mips.LUI:
+				dst = imm << 16;
+				break;
+			case Mips.MFLO:
+				dst = registers[regLo];
+				break;
+			case Mips.MFHI:
+				dst = registers[regHi];
+				break;
+			case Mips.MTLO:
+				registers[regLo] = (int) src1;
+				break;
+			case Mips.MTHI:
+				registers[regHi] = (int) src1;
+				break;
+			default:
+				Lib.assertNotReached();
+			}
+
+			// same (odd) overflow test as the interpreter
+			if (overflow && Lib.test(dst, 31) != Lib.test(dst, 32))
+				throw new MipsException(exceptionOverflow);
+
+			finishLoad();
+
+			if (writesDst)
+				registers[dstReg] = (int) dst;
+
+			advancePC(nextPC);
+		}
+
+		private int operation, rs, rt, sh, imm, dstReg;
+		private boolean shiftAmount, immediate, unsigned, overflow, writesDst;
+	}
+
+	/** Jumps and conditional branches, with or without linking. */
+	private class BranchOp extends Op {
+		BranchOp(Decoded decoded) {
+			operation = decoded.operation;
+			format = decoded.format;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			target = decoded.target;
+			branchOffset = decoded.branchOffset;
+			dstReg = decoded.dstReg;
+
+			link = Lib.test(Mips.LINK, decoded.flags) && Lib.test(Mips.DST, decoded.flags) && dstReg != 0;
+		}
+
+		void run() {
+			int nextPC = registers[regNextPC] + 4;
+
+			int jtarget;
+			if (format == Mips.RFMT)
+				jtarget = registers[rs];
+			else if (format == Mips.IFMT)
+				jtarget = registers[regNextPC] + branchOffset;
+			else
+				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
+
+			int src1 = registers[rs];
+			boolean branch;
+
+			switch (operation) {
+			case Mips.BEQ:
+				branch = (src1 == registers[rt]);
+				break;
+			case Mips.BNE:
+				branch = (src1 != registers[rt]);
+				break;
+			case Mips.BGEZ:
+				branch = (src1 >= 0);
+				break;
+			case Mips.BGTZ:
+				branch = (src1 > 0);
+				break;
+			case Mips.BLEZ:
+				branch = (src1 <= 0);
+				break;
+			case Mips.BLTZ:
+				branch = (src1 < 0);
+				break;
+			default:
+				branch = true;
+				break;
+			}
+
+			finishLoad();
+
+			if (link)
+				registers[dstReg] = nextPC;
+
+			if (branch)
+				nextPC = jtarget;
+
+			advancePC(nextPC);
+		}
+
+		private int operation, format, rs, rt, target, branchOffset, dstReg;
+		private boolean link;
+	}
+
+	/** Byte, halfword and word loads, which complete after one instruction. */
+	private class LoadOp extends Op {
+		LoadOp(Decoded decoded) {
+			rs = decoded.rs;
+			rt = decoded.rt;
+			imm = decoded.imm;
+			size = decoded.size;
+			unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+		}
+
+		void run() throws MipsException {
+			int nextPC = registers[regNextPC] + 4;
+
+			int value = readMem(registers[rs] + imm, size);
+			if (!unsigned)
+				value = Lib.extend(value, 0, size * 8);
+
+			delayedLoad(rt, value, 0xFFFFFFFF);
+			advancePC(nextPC);
+		}
+
+		private int rs, rt, imm, size;
+		private boolean unsigned;
+	}
+
+	/** Byte, halfword and word stores. */
+	private class StoreOp extends Op {
+		StoreOp(Decoded decoded) {
+			rs = decoded.rs;
+			rt = decoded.rt;
+			imm = decoded.imm;
+			size = decoded.size;
+		}
+
+		void run() throws MipsException {
+			int nextPC = registers[regNextPC] + 4;
+
+			writeMem(registers[rs] + imm, size, registers[rt]);
+
+			finishLoad();
+			advancePC(nextPC);
+		}
+
+		private int rs, rt, imm, size;
+	}
+
+	/** The syscall instruction. */
+	private class SyscallOp extends Op {
+		void run() throws MipsException {
+			throw new MipsException(exceptionSyscall);
+		}
+	}
+
+	/**
+	 * The parts of a decoded instruction that depend only on the instruction
+	 * word, and not on the contents of any register.
+	 */
+	private static class Decoded {
+		Decoded(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+
+			int imm = Lib.extend(value, 0, 16);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// branch offsets always use the sign-extended immediate
+			branchOffset = imm << 2;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags)) {
+				imm &= 0xFFFF;
+			}
+
+			this.imm = imm;
+		}
+
+		/** The instruction word this was decoded from. */
+		final int value;
+		final int op, rs, rt, rd, sh, func, target, imm;
+		final int operation, format, flags;
+		final String name;
+		final int size, dstReg, branchOffset;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
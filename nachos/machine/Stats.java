@@ -23,12 +23,37 @@ public final class Stats {
 			   + ", user " + userTicks);
 	System.out.println("Disk I/O: reads " + numDiskReads
 			   + ", writes " + numDiskWrites);
+	printLatency("Disk read latency", diskReadLatency);
+	printLatency("Disk write latency", diskWriteLatency);
+	System.out.println("Buffer cache: hits " + numCacheHits
+			   + ", misses " + numCacheMisses
+			   + ", reads " + numCacheReads
+			   + ", writes " + numCacheWrites);
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	System.out.println("Swap: reads " + numSwapReads
+			   + " (" + numSwapPagesRead + " pages), writes "
+			   + numSwapWrites + " (" + numSwapPagesWritten
+			   + " pages)");
 	System.out.println("Network I/O: received " + numPacketsReceived
-			   + ", sent " + numPacketsSent);
+			   + ", sent " + numPacketsSent
+			   + ", dropped " + numPacketsDropped);
+	if (numPacketPoolHits + numPacketPoolMisses > 0)
+	    System.out.println("Packet pool: hits " + numPacketPoolHits
+			       + ", misses " + numPacketPoolMisses);
+    }
+
+    private void printLatency(String name, LatencyHistogram latency) {
+	if (latency.getCount() == 0)
+	    return;
+
+	System.out.println(name + ": requests " + latency.getCount()
+			   + ", mean " + latency.getMean()
+			   + ", p50 " + latency.getPercentile(0.5)
+			   + ", p99 " + latency.getPercentile(0.99)
+			   + " (" + latency + ")");
     }
 
     /**
@@ -49,6 +74,30 @@ public final class Stats {
     public int numDiskReads = 0;
     /** The total number of sectors Nachos has written to the simulated disk.*/
     public int numDiskWrites = 0;
+    /**
+     * The time each disk read took, from when the kernel asked for it,
+     * including any time spent waiting for other requests.
+     */
+    public LatencyHistogram diskReadLatency = new LatencyHistogram();
+    /**
+     * The time each disk write took, from when the kernel asked for it,
+     * including any time spent waiting for other requests.
+     */
+    public LatencyHistogram diskWriteLatency = new LatencyHistogram();
+    /** The total number of blocks found in the buffer cache. */
+    public int numCacheHits = 0;
+    /** The total number of blocks not found in the buffer cache. */
+    public int numCacheMisses = 0;
+    /**
+     * The total number of reads the buffer cache has made from the file
+     * system under it, each of one or more blocks.
+     */
+    public int numCacheReads = 0;
+    /**
+     * The total number of writes the buffer cache has made to the file
+     * system under it, each of one or more blocks.
+     */
+    public int numCacheWrites = 0;
     /** The total number of characters Nachos has read from the console. */
     public int numConsoleReads = 0;
     /** The total number of characters Nachos has written to the console. */
@@ -57,10 +106,33 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /** The total number of reads the kernel has made from swap. */
+    public int numSwapReads = 0;
+    /** The total number of pages the kernel has read from swap. */
+    public int numSwapPagesRead = 0;
+    /** The total number of writes the kernel has made to swap. */
+    public int numSwapWrites = 0;
+    /** The total number of pages the kernel has written to swap. */
+    public int numSwapPagesWritten = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /**
+     * The total number of packets the network link has dropped because its
+     * receive ring was full.
+     */
+    public int numPacketsDropped = 0;
+    /**
+     * The total number of packets received into a buffer taken from the
+     * network link's pool.
+     */
+    public int numPacketPoolHits = 0;
+    /**
+     * The total number of packets received into a newly allocated buffer,
+     * because the network link's pool was empty.
+     */
+    public int numPacketPoolMisses = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -8,6 +8,8 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * This class implements a file system that redirects all requests to the host
@@ -101,20 +103,23 @@ public class StubFileSystem implements FileSystem {
 
 		if (truncate)
 		    file.setLength(0);
+
+		channel = file.getChannel();
 	    }
 	    catch (IOException e) {
 	    }
 	}
 
 	public int read(int pos, byte[] buf, int offset, int length) {
-	    if (!open)
+	    if (!open || pos < 0)
 		return -1;
 	    
 	    try {
 		delay();
 
-		file.seek(pos);
-		return Math.max(0, file.read(buf, offset, length));
+		return Math.max(0, channel.read(ByteBuffer.wrap(buf, offset,
+								length),
+						pos));
 	    }
 	    catch (IOException e) {
 		return -1;
@@ -122,14 +127,15 @@ public class StubFileSystem implements FileSystem {
 	}
 	
 	public int write(int pos, byte[] buf, int offset, int length) {
-	    if (!open)
+	    if (!open || pos < 0)
 		return -1;
 	    
 	    try {
 		delay();
-		
-		file.seek(pos);
-		file.write(buf, offset, length);
+
+		ByteBuffer src = ByteBuffer.wrap(buf, offset, length);
+		while (src.hasRemaining())
+		    channel.write(src, pos + src.position() - offset);
 		return length;
 	    }
 	    catch (IOException e) {
@@ -139,7 +145,7 @@ public class StubFileSystem implements FileSystem {
 
 	public int length() {
 	    try {
-		return (int) file.length();
+		return (int) channel.size();
 	    }
 	    catch (IOException e) {
 		return -1;
@@ -160,6 +166,7 @@ public class StubFileSystem implements FileSystem {
 	}
 
 	private RandomAccessFile file = null;
+	private FileChannel channel = null;
 	private boolean open = false;
     }
 
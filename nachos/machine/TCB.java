@@ -5,13 +5,16 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
  * A TCB simulates the low-level details necessary to create, context-switch,
  * and destroy Nachos threads. Each TCB controls an underlying JVM Thread
- * object.
+ * object. When a TCB is destroyed its JVM thread is kept, parked, and reused
+ * to run the next TCB to start.
  *
  * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
@@ -21,6 +24,13 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code.
  * It's against the rules, <i>and</i> it can easily deadlock nachos.
+ *
+ * <p>
+ * The way a TCB hands the CPU to another is selected by the
+ * <tt>TCB.backend</tt> key in <tt>nachos.conf</tt>. <tt>monitor</tt> (the
+ * default) waits and notifies on the monitor of each TCB. <tt>park</tt> parks
+ * and unparks the Java threads directly, which avoids taking a monitor on
+ * every context switch.
  */
 public final class TCB {
     /**
@@ -40,6 +50,11 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	String backend = Config.getString("TCB.backend", "monitor");
+	Lib.assertTrue(backend.equals("monitor") || backend.equals("park"),
+		       "TCB.backend should be monitor or park");
+	parking = backend.equals("park");
     }
     
     /**
@@ -66,7 +81,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(numRunningThreads.get() < maxThreads);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -78,35 +93,42 @@ public final class TCB {
 	    Lib.assertTrue(currentTCB.javaThread == Thread.currentThread());
 
 	/* At this point all checks are complete, so we go ahead and start the
-	 * TCB. Whether or not this is the first TCB, it gets added to
-	 * runningThreads, and we save the target closure.
+	 * TCB. Whether or not this is the first TCB, it gets counted in
+	 * numRunningThreads, and we save the target closure.
 	 */
-	runningThreads.add(this);
+	numRunningThreads.incrementAndGet();
 
 	this.target = target;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    /* If this is not the first TCB, we need a Java thread to run it.
+	     * Reuse the thread of a destroyed TCB if one is waiting, otherwise
+	     * make a new one. Creating Java threads is a privileged operation.
 	     */
-//		创建一个Runable对象
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
+	    Carrier carrier = idleCarriers.poll();
+	    if (carrier == null) {
+		final Carrier newCarrier = new Carrier();
 		
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
-
-	    /* The Java thread hasn't yet started, but we need to get it
-	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
-	     * to wake us up from threadroot(). Once the new TCB wakes us up,
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+			    newCarrier.thread = new Thread(newCarrier);
+			}
+		    });
+
+		carrier = newCarrier;
+	    }
+
+	    javaThread = carrier.thread;
+
+	    /* The Java thread isn't running this TCB yet, but we need to get
+	     * it blocking in yield(). We do this by temporarily turning off the
+	     * current TCB, handing this TCB to the Java thread, and waiting for
+	     * it to wake us up from threadroot(). Once the new TCB wakes us up,
 	     * it's safe to context switch to the new TCB.
 	     */
 	    currentTCB.running = false;
 	    
-	    this.javaThread.start();
+	    carrier.carry(this);
 	    currentTCB.waitForInterrupt();
 	}
 	else {
@@ -245,16 +267,14 @@ public final class TCB {
 		privilege.exit(1);
 	    }
 
-	    runningThreads.removeElement(this);
-	    if (runningThreads.isEmpty())
+	    if (numRunningThreads.decrementAndGet() == 0)
 		privilege.exit(0);
 	}
 	catch (Throwable e) {
 	    System.out.print("\n");
 	    e.printStackTrace();
 
-	    runningThreads.removeElement(this);
-	    if (runningThreads.isEmpty())
+	    if (numRunningThreads.decrementAndGet() == 0)
 		privilege.exit(1);
 	    else
 		die();
@@ -281,29 +301,52 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
-     * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
-     * TCB needs to go to wait for its turn to run. This includes the ping-pong
-     * process of starting and destroying TCBs, as well as in context switching
-     * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-     * is updated by <tt>contextSwitch()</tt> before we get called.
+     * Waits on the monitor bound to this TCB, or parks, until its
+     * <tt>running</tt> flag is set to <tt>true</tt>.
+     * <tt>waitForInterrupt()</tt> is used whenever a TCB needs to go to wait
+     * for its turn to run. This includes the ping-pong process of starting and
+     * destroying TCBs, as well as in context switching from this TCB to
+     * another. We don't rely on <tt>currentTCB</tt>, since it is updated by
+     * <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
+    private void waitForInterrupt() {
+	if (parking) {
+	    // on a multiprocessor the switch back is often quick enough that
+	    // spinning briefly beats going to sleep
+	    for (int i = 0; i < spinLimit && !running; i++)
+		;
+
+	    // unpark() may come first, and park() may return spuriously
+	    while (!running)
+		LockSupport.park(this);
+	}
+	else {
+	    synchronized (this) {
+		while (!running) {
+		    try { wait(); }
+		    catch (InterruptedException e) { }
+		}
+	    }
 	}
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and signalling the monitor bound to it, or unparking its Java thread.
+     * Used in the ping-pong process of starting and destroying TCBs, as well
+     * as in context switching to this TCB.
      */
-    private synchronized void interrupt() {
-	running = true;
-	notify();
+    private void interrupt() {
+	if (parking) {
+	    running = true;
+	    LockSupport.unpark(javaThread);
+	}
+	else {
+	    synchronized (this) {
+		running = true;
+		notify();
+	    }
+	}
     }
 
     private void associateThread(KThread thread) {
@@ -329,9 +372,10 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence. Set by the <tt>TCB.maxThreads</tt> key in
+     * <tt>nachos.conf</tt>; 250 if the key is missing.
      */
-    public static final int maxThreads = 250;
+    public static final int maxThreads = Config.getInteger("TCB.maxThreads", 250);
 
     /**
      * A reference to the currently running TCB. It is initialized to
@@ -349,22 +393,33 @@ public final class TCB {
     private static TCB currentTCB = null;
 
     /**
-     * A vector containing all <i>running</i> TCB objects. It is initialized to
-     * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
-     * added only in <tt>start(Runnable)</tt>, which can only be invoked once
-     * on each TCB object. TCB objects are removed only in each of the
-     * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
-     * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
-     * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
-     * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
-     * the first TCB is created, this vector is basically never empty.
+     * The number of <i>running</i> TCB objects. It is incremented only in
+     * <tt>start(Runnable)</tt>, which can only be invoked once on each TCB
+     * object, and decremented only in each of the <tt>catch</tt> clauses of
+     * <tt>threadroot()</tt>, one of which is always invoked on thread
+     * termination. Those run on different Java threads at the same time, so
+     * the count is atomic rather than guarded by a lock. It is limited to
+     * <tt>maxThreads</tt> by <tt>start(Runnable)</tt>. If
+     * <tt>threadroot()</tt> drops it to zero, Nachos exits, so once the first
+     * TCB is created, it is basically never zero.
+     */
+    private static AtomicInteger numRunningThreads = new AtomicInteger();
+
+    /**
+     * Java threads whose TCB has been destroyed, waiting to run another TCB.
      */
-    private static Vector<TCB> runningThreads = new Vector<TCB>();
+    private static ConcurrentLinkedQueue<Carrier> idleCarriers =
+	new ConcurrentLinkedQueue<Carrier>();
     
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
 
+    /** <tt>true</tt> if TCBs park and unpark instead of using monitors. */
+    private static boolean parking = false;
+    /** How many times a parking TCB checks <tt>running</tt> before parking. */
+    private static final int spinLimit =
+	(Runtime.getRuntime().availableProcessors() > 1) ? 1000 : 0;
+
     /**
      * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
      * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -382,14 +437,18 @@ public final class TCB {
 
     /**
      * <tt>true</tt> if and only if the Java thread bound to this TCB ought to
-     * be running. This is an entirely different condition from membership in
-     * <tt>runningThreads</tt>, which contains all TCB objects that have
+     * be running. This is an entirely different condition from being counted
+     * in <tt>numRunningThreads</tt>, which counts all TCB objects that have
      * started and have not terminated. <tt>running</tt> is only <tt>true</tt>
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
+     *
+     * <p>
+     * Volatile, so that with the <tt>park</tt> backend, setting it publishes
+     * everything the waking TCB did before the woken TCB runs.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -401,7 +460,44 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
+
+    /**
+     * A Java thread that runs TCBs one after another. After a TCB's
+     * <tt>threadroot()</tt> returns, the thread parks in
+     * <tt>idleCarriers</tt> until <tt>start(Runnable)</tt> hands it another
+     * TCB.
+     */
+    private static class Carrier implements Runnable {
+	void carry(TCB tcb) {
+	    next = tcb;
+
+	    if (started) {
+		LockSupport.unpark(thread);
+	    }
+	    else {
+		started = true;
+		thread.start();
+	    }
+	}
+
+	public void run() {
+	    while (true) {
+		TCB tcb;
+		while ((tcb = next) == null)
+		    LockSupport.park(this);
+		next = null;
+
+		tcb.threadroot();
+
+		idleCarriers.add(this);
+	    }
+	}
+
+	private Thread thread;
+	private boolean started = false;
+	/** The TCB to run next, set by <tt>carry()</tt>. */
+	private volatile TCB next = null;
+    }
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
@@ -0,0 +1,702 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * One end of a reliable, in-order byte stream between two ports, carried in
+ * <tt>Segment</tt>s over a network that may lose packets. A connection can be
+ * read and written as an <tt>OpenFile</tt>.
+ *
+ * <p>
+ * Written bytes are packed into segments in a send buffer. Up to a window of
+ * segments are sent before any is acknowledged; the window is the smallest
+ * of the configured window, the receiver's advertised window, and the
+ * congestion window. The congestion window starts at one segment, grows by a
+ * segment per acknowledgement up to the slow-start threshold and by a
+ * segment per window after that, and shrinks when a segment is lost.
+ *
+ * <p>
+ * A lost segment is resent either when the retransmission timer expires, or
+ * when three duplicate acknowledgements arrive. Selective acknowledgements
+ * tell the sender which later segments arrived, so that only the holes are
+ * resent. The timeout follows the measured round-trip time, and doubles on
+ * each expiry until new data is acknowledged. A thread per connection waits
+ * on the <tt>Alarm</tt> for the timer.
+ *
+ * <p>
+ * The receiver keeps segments that arrive out of order until the gap before
+ * them is filled, and then moves their data to the read buffer. It
+ * acknowledges every second data segment that arrives in order, or the first
+ * after a short delay, and anything else at once.
+ *
+ * <p>
+ * A connection is opened by a <tt>SYN</tt> from each end, and each end
+ * closes its direction with a <tt>FIN</tt>. Once both <tt>FIN</tt>s have
+ * been acknowledged, or the other end stops responding, the connection is
+ * finished and leaves the <tt>Transport</tt>.
+ */
+public class Connection extends OpenFile {
+    /**
+     * Allocate a new connection. An active connection sends the first
+     * <tt>SYN</tt>; a passive one has received it.
+     *
+     * @param	transport	the transport the connection belongs to.
+     * @param	localPort	the local port.
+     * @param	remoteLink	the remote link address.
+     * @param	remotePort	the remote port.
+     * @param	active		<tt>true</tt> if this end opens the
+     *				connection.
+     */
+    Connection(Transport transport, int localPort, int remoteLink,
+	       int remotePort, boolean active) {
+	super(null, "Connection(" + remoteLink + ":" + remotePort + ")");
+
+	this.transport = transport;
+	this.localLink = Machine.networkLink().getLinkAddress();
+	this.localPort = localPort;
+	this.remoteLink = remoteLink;
+	this.remotePort = remotePort;
+
+	windowSize = transport.getWindowSize();
+	maxRetries = transport.getMaxRetries();
+
+	sendSlots = new SendSlot[2*windowSize];
+	for (int i=0; i<sendSlots.length; i++)
+	    sendSlots[i] = new SendSlot();
+
+	receiveSlots = new byte[windowSize][];
+	receiveFlags = new int[windowSize];
+	readBuffer = new byte[windowSize*Segment.maxDataLength];
+
+	// a passive connection has taken the SYN that opened it
+	if (!active)
+	    rcvNext = 1;
+
+	lock.acquire();
+	queueSegment(Segment.SYN);
+	output();
+	lock.release();
+
+	KThread timerThread = new KThread(new Runnable() {
+		public void run() { retransmitTimer(); }
+	    });
+	timerThread.setName("connection timer").fork();
+    }
+
+    /**
+     * Wait until the other end has accepted this connection, or the
+     * connection has failed.
+     *
+     * @return	<tt>true</tt> if the connection is open.
+     */
+    boolean waitOpen() {
+	lock.acquire();
+	while (rcvNext == 0 && !failed)
+	    stateChanged.sleep();
+
+	boolean open = !failed;
+	lock.release();
+
+	return open;
+    }
+
+    /**
+     * Return the local port.
+     *
+     * @return	the local port.
+     */
+    public int getLocalPort() {
+	return localPort;
+    }
+
+    /**
+     * Return the remote link address.
+     *
+     * @return	the remote link address.
+     */
+    public int getRemoteLink() {
+	return remoteLink;
+    }
+
+    /**
+     * Return the remote port.
+     *
+     * @return	the remote port.
+     */
+    public int getRemotePort() {
+	return remotePort;
+    }
+
+    /**
+     * Read the bytes that have arrived, up to <i>length</i> of them. Does not
+     * wait for more to arrive.
+     *
+     * @param	buf	the buffer to store the bytes in.
+     * @param	offset	the offset in the buffer.
+     * @param	length	the most bytes to read.
+     * @return	the number of bytes read, or -1 if the other end has closed
+     *		the connection and every byte has been read, or the connection
+     *		has failed.
+     */
+    public int read(byte[] buf, int offset, int length) {
+	lock.acquire();
+
+	if (closed || failed || (readCount == 0 && finReceived)) {
+	    lock.release();
+	    return -1;
+	}
+
+	int amount = Math.min(length, readCount);
+	for (int i=0; i<amount; i++) {
+	    buf[offset+i] = readBuffer[readHead];
+	    readHead = (readHead+1) % readBuffer.length;
+	}
+	readCount -= amount;
+
+	// tell the sender once the window has opened up again
+	int window = receiveWindow();
+	if (amount > 0 && lastAdvertised < windowSize/2 &&
+	    window >= windowSize/2)
+	    sendAck();
+
+	lock.release();
+	return amount;
+    }
+
+    /**
+     * Queue bytes to be sent, waiting while the send buffer is full.
+     *
+     * @param	buf	the buffer holding the bytes.
+     * @param	offset	the offset in the buffer.
+     * @param	length	the number of bytes to send.
+     * @return	the number of bytes sent, or -1 if the connection has failed.
+     */
+    public int write(byte[] buf, int offset, int length) {
+	lock.acquire();
+
+	int total = 0;
+	while (total < length) {
+	    if (closed || failed) {
+		lock.release();
+		return -1;
+	    }
+
+	    // add to the last segment if it has not been sent yet
+	    SendSlot tail = (sndEnd > sndNext) ? slot(sndEnd-1) : null;
+	    if (tail == null || tail.flags != 0 ||
+		tail.length == Segment.maxDataLength) {
+		if (sndEnd - sndUna == sendSlots.length) {
+		    spaceAvailable.sleep();
+		    continue;
+		}
+
+		tail = queueSegment(0);
+	    }
+
+	    int amount = Math.min(length-total,
+				  Segment.maxDataLength - tail.length);
+	    System.arraycopy(buf, offset+total, tail.data, tail.length,
+			     amount);
+	    tail.length += amount;
+	    total += amount;
+
+	    output();
+	}
+
+	lock.release();
+	return total;
+    }
+
+    /**
+     * Close this end of the connection. Bytes already written are still
+     * sent, followed by a <tt>FIN</tt>; bytes that arrive from now on are
+     * thrown away.
+     */
+    public void close() {
+	lock.acquire();
+
+	if (!closed) {
+	    while (sndEnd - sndUna == sendSlots.length && !failed)
+		spaceAvailable.sleep();
+
+	    closed = true;
+	    readCount = 0;
+
+	    if (!failed) {
+		queueSegment(Segment.FIN);
+		output();
+	    }
+
+	    stateChanged.wakeAll();
+	    spaceAvailable.wakeAll();
+	    checkFinished();
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Handle a segment received for this connection. Called by the
+     * transport.
+     *
+     * @param	segment	the segment.
+     */
+    void receive(Segment segment) {
+	lock.acquire();
+
+	if (finished) {
+	    lock.release();
+	    return;
+	}
+
+	if (Lib.test(dbgTransport))
+	    System.out.println("connection " + localPort + " received " +
+			       segment);
+
+	if ((segment.flags & Segment.ACK) != 0)
+	    processAck(segment);
+
+	if (segment.isSequenced()) {
+	    int seq = Segment.unwrap(segment.seq, rcvNext);
+	    int window = receiveWindow();
+
+	    boolean inOrder = (seq == rcvNext && segment.flags == Segment.ACK);
+
+	    if (seq >= rcvNext && seq < rcvNext + window) {
+		int index = seq % windowSize;
+		if (receiveSlots[index] == null) {
+		    receiveSlots[index] = segment.data;
+		    receiveFlags[index] = segment.flags;
+		}
+
+		deliver();
+	    }
+
+	    // delay the ACK for a data segment that arrived in order with no
+	    // others waiting behind a gap, in case another follows; acknowledge
+	    // anything else, even a duplicate, at once. The timer thread cannot
+	    // be woken from the alarm, so nor can the ACK be delayed if the
+	    // thread is already waiting there past its deadline
+	    long deadline = Machine.timer().getTime() + ackDelay;
+	    if (inOrder && !ackPending && sackBits() == 0 &&
+		(timerAlarm == 0 || timerAlarm <= deadline)) {
+		ackPending = true;
+		ackDeadline = deadline;
+		timerWait.wake();
+	    }
+	    else {
+		sendAck();
+	    }
+	}
+
+	output();
+	checkFinished();
+
+	lock.release();
+    }
+
+    /**
+     * Move the segments that have arrived in order to the read buffer.
+     */
+    private void deliver() {
+	while (true) {
+	    int index = rcvNext % windowSize;
+	    byte[] data = receiveSlots[index];
+	    if (data == null)
+		break;
+
+	    int flags = receiveFlags[index];
+	    receiveSlots[index] = null;
+	    rcvNext++;
+
+	    if (!closed) {
+		for (int i=0; i<data.length; i++)
+		    readBuffer[(readHead+readCount+i) % readBuffer.length] =
+			data[i];
+		readCount += data.length;
+	    }
+
+	    if ((flags & Segment.FIN) != 0)
+		finReceived = true;
+
+	    stateChanged.wakeAll();
+	}
+    }
+
+    /**
+     * Return the number of segments that can be taken from <tt>rcvNext</tt>
+     * on: as many as the read buffer has room for, up to the window size.
+     */
+    private int receiveWindow() {
+	int free = readBuffer.length - readCount;
+	return Math.min(windowSize, free / Segment.maxDataLength);
+    }
+
+    private int sackBits() {
+	int bits = 0;
+	for (int i=0; i<Segment.sackLength && i+1 < windowSize; i++) {
+	    if (receiveSlots[(rcvNext+1+i) % windowSize] != null)
+		bits |= 1 << i;
+	}
+
+	return bits;
+    }
+
+    private void processAck(Segment segment) {
+	int ack = Segment.unwrap(segment.ack, sndUna);
+	if (ack < sndUna || ack > sndNext)
+	    return;
+
+	boolean windowChanged = (segment.window != peerWindow);
+	peerWindow = segment.window;
+
+	int numSacked = 0;
+	for (int i=0; i<Segment.sackLength; i++) {
+	    int seq = ack+1+i;
+	    if ((segment.sack & (1 << i)) != 0 && seq < sndNext) {
+		slot(seq).sacked = true;
+		numSacked++;
+	    }
+	}
+
+	long time = Machine.timer().getTime();
+
+	if (ack > sndUna) {
+	    // measure the round trip only if none of the segments were resent,
+	    // or the ACK may have waited on a resent one; either way, the other
+	    // end is responding, so stop backing off
+	    boolean resent = false;
+	    for (int seq=sndUna; seq<ack; seq++)
+		resent |= (slot(seq).transmissions > 1);
+	    if (!resent)
+		updateRTT(time - slot(ack-1).sentTime);
+	    if (srtt > 0)
+		rto = Math.max(minRTO, Math.min(maxRTO, srtt + 4*rttvar));
+	    else
+		rto = initialRTO;
+
+	    for (; sndUna < ack; sndUna++) {
+		SendSlot s = slot(sndUna);
+		if (s.flags == Segment.FIN)
+		    finAcked = true;
+		s.flags = 0;
+		s.length = 0;
+		s.sacked = false;
+		s.transmissions = 0;
+
+		if (cwnd < ssthresh) {
+		    cwnd++;
+		}
+		else if (++cwndCount >= cwnd) {
+		    cwnd++;
+		    cwndCount = 0;
+		}
+	    }
+	    cwnd = Math.min(cwnd, windowSize);
+
+	    dupAcks = 0;
+	    retries = 0;
+	    timerDeadline = time + rto;
+
+	    if (recovering) {
+		if (ack >= recover)
+		    recovering = false;
+		else
+		    retransmitHoles(true);
+	    }
+
+	    stateChanged.wakeAll();
+	    spaceAvailable.wakeAll();
+	}
+	else if (sndNext > sndUna && !segment.isSequenced() &&
+		 (!windowChanged || numSacked > 0)) {
+	    // a segment is taken as lost after three duplicate ACKs, or once
+	    // three segments after it have arrived, whichever comes first
+	    if (recovering) {
+		retransmitHoles(false);
+	    }
+	    else if (++dupAcks == 3 || numSacked >= 3) {
+		// fast retransmit
+		ssthresh = Math.max((sndNext-sndUna)/2, 2);
+		cwnd = ssthresh;
+		cwndCount = 0;
+		recovering = true;
+		recover = sndNext;
+		transmit(sndUna);
+		retransmitHoles(false);
+	    }
+	}
+    }
+
+    /**
+     * Resend the segments the receiver is missing: those before the last
+     * one it has selectively acknowledged, that have not been resent within
+     * the last round trip.
+     *
+     * @param	first	<tt>true</tt> to resend the first unacknowledged
+     *			segment even if no later segment has arrived.
+     */
+    private void retransmitHoles(boolean first) {
+	long time = Machine.timer().getTime();
+
+	int top = first ? sndUna+1 : sndUna;
+	for (int seq=sndUna; seq<sndNext; seq++) {
+	    if (slot(seq).sacked)
+		top = seq;
+	}
+
+	for (int seq=sndUna; seq<top; seq++) {
+	    SendSlot s = slot(seq);
+	    if (!s.sacked && time - s.sentTime >= srtt)
+		transmit(seq);
+	}
+    }
+
+    private void updateRTT(long sample) {
+	if (srtt == 0) {
+	    srtt = sample;
+	    rttvar = sample/2;
+	}
+	else {
+	    rttvar = (3*rttvar + Math.abs(srtt - sample)) / 4;
+	    srtt = (7*srtt + sample) / 8;
+	}
+    }
+
+    /**
+     * Send the segments waiting in the send buffer, as far as the window
+     * allows.
+     */
+    private void output() {
+	// each of the first two duplicate ACKs lets another segment out, so
+	// that there is more to acknowledge if one has been lost
+	int extra = recovering ? 0 : Math.min(dupAcks, 2);
+	int limit = Math.min(cwnd + extra, Math.min(peerWindow, windowSize));
+
+	// probe a closed window one segment at a time
+	if (limit == 0 && sndNext == sndUna)
+	    limit = 1;
+
+	while (sndNext < sndEnd && sndNext - sndUna < limit) {
+	    // hold back a data segment that could still be added to, while
+	    // others are in flight
+	    SendSlot s = slot(sndNext);
+	    if (sndNext == sndEnd-1 && s.flags == 0 &&
+		s.length < Segment.maxDataLength && sndNext > sndUna)
+		break;
+
+	    if (sndNext == sndUna) {
+		timerDeadline = Machine.timer().getTime() + rto;
+		timerWait.wake();
+	    }
+
+	    transmit(sndNext++);
+	}
+    }
+
+    private void transmit(int seq) {
+	SendSlot s = slot(seq);
+
+	s.transmissions++;
+	s.sentTime = Machine.timer().getTime();
+
+	send(new Segment(s.flags | ackFlag(), seq, rcvNext, advertise(),
+			 sackBits(), s.data, 0, s.length));
+    }
+
+    private void sendAck() {
+	send(new Segment(Segment.ACK, sndNext, rcvNext, advertise(),
+			 sackBits(), noData, 0, 0));
+    }
+
+    private int ackFlag() {
+	// there is nothing to acknowledge until the other end's SYN arrives
+	return (rcvNext > 0) ? Segment.ACK : 0;
+    }
+
+    private int advertise() {
+	// every segment sent acknowledges what has arrived
+	ackPending = false;
+
+	lastAdvertised = receiveWindow();
+	return lastAdvertised;
+    }
+
+    private void send(Segment segment) {
+	if (Lib.test(dbgTransport))
+	    System.out.println("connection " + localPort + " sending " +
+			       segment);
+
+	transport.send(segment.toMail(remoteLink, remotePort, localLink,
+				      localPort));
+    }
+
+    private SendSlot queueSegment(int flags) {
+	Lib.assertTrue(sndEnd - sndUna < sendSlots.length);
+
+	SendSlot s = slot(sndEnd++);
+	s.flags = flags;
+	s.length = 0;
+	s.sacked = false;
+	s.transmissions = 0;
+
+	return s;
+    }
+
+    private SendSlot slot(int seq) {
+	return sendSlots[seq % sendSlots.length];
+    }
+
+    /**
+     * Wait for the retransmission timer to expire while segments are in
+     * flight, and resend the first unacknowledged one when it does. Also send
+     * a delayed ACK when it is due.
+     */
+    private void retransmitTimer() {
+	lock.acquire();
+
+	while (!finished) {
+	    boolean inFlight = (sndNext != sndUna);
+	    if (!inFlight && !ackPending) {
+		timerWait.sleep();
+		continue;
+	    }
+
+	    long time = Machine.timer().getTime();
+	    if (ackPending && ackDeadline <= time) {
+		sendAck();
+		continue;
+	    }
+	    if (inFlight && timerDeadline <= time) {
+		timeout();
+		continue;
+	    }
+
+	    long deadline = Long.MAX_VALUE;
+	    if (ackPending)
+		deadline = ackDeadline;
+	    if (inFlight)
+		deadline = Math.min(deadline, timerDeadline);
+
+	    timerAlarm = deadline;
+	    lock.release();
+	    ThreadedKernel.alarm.waitUntil(deadline - time);
+	    lock.acquire();
+	    timerAlarm = 0;
+	}
+
+	lock.release();
+    }
+
+    private void timeout() {
+	// a connection waiting to be accepted, or probing a closed window,
+	// is not given up on
+	if (rcvNext > 0 && peerWindow > 0 && ++retries > maxRetries) {
+	    failed = true;
+	    stateChanged.wakeAll();
+	    spaceAvailable.wakeAll();
+	    checkFinished();
+	    return;
+	}
+
+	ssthresh = Math.max((sndNext-sndUna)/2, 2);
+	cwnd = 1;
+	cwndCount = 0;
+	recovering = true;
+	recover = sndNext;
+	rto = Math.min(rto*2, maxRTO);
+
+	if (Lib.test(dbgTransport))
+	    System.out.println("connection " + localPort + " timeout, rto " +
+			       rto);
+
+	transmit(sndUna);
+	timerDeadline = Machine.timer().getTime() + rto;
+    }
+
+    private void checkFinished() {
+	if (finished || !(failed || (closed && finAcked && finReceived)))
+	    return;
+
+	finished = true;
+	timerWait.wake();
+	transport.finished(this);
+    }
+
+    private static class SendSlot {
+	/** The flags, or 0 for a data segment. */
+	int flags;
+	byte[] data = new byte[Segment.maxDataLength];
+	int length;
+	/** Whether the receiver has selectively acknowledged the segment. */
+	boolean sacked;
+	int transmissions;
+	long sentTime;
+    }
+
+    private static final byte[] noData = new byte[0];
+
+    private static final long ackDelay = 200;
+    private static final long initialRTO = 4000;
+    private static final long minRTO = 1000;
+    private static final long maxRTO = 64000;
+
+    private Transport transport;
+    private int localLink, localPort, remoteLink, remotePort;
+    private int windowSize, maxRetries;
+
+    private Lock lock = new Lock();
+    private Condition stateChanged = new Condition(lock);
+    private Condition spaceAvailable = new Condition(lock);
+    private Condition timerWait = new Condition(lock);
+
+    /** The segments written and not yet acknowledged, by sequence number. */
+    private SendSlot[] sendSlots;
+    /** The first segment not yet acknowledged. */
+    private int sndUna = 0;
+    /** The first segment not yet sent. */
+    private int sndNext = 0;
+    /** The sequence number the next segment queued will take. */
+    private int sndEnd = 0;
+
+    private int peerWindow = 1;
+    private int cwnd = 1;
+    private int cwndCount = 0;
+    private int ssthresh = Segment.maxWindow;
+    private int dupAcks = 0;
+    private boolean recovering = false;
+    /** Recovery ends once everything sent before it began is acknowledged. */
+    private int recover;
+
+    private long srtt = 0, rttvar = 0, rto = initialRTO;
+    private long timerDeadline;
+    /**
+     * When the timer thread's wait on the alarm ends, or 0 if it is not
+     * waiting on the alarm.
+     */
+    private long timerAlarm = 0;
+    private int retries = 0;
+
+    /** Segments that have arrived out of order, by sequence number. */
+    private byte[][] receiveSlots;
+    private int[] receiveFlags;
+    /** The next sequence number expected. */
+    private int rcvNext = 0;
+    private int lastAdvertised = 0;
+    /** Whether a data segment has arrived that has not been acknowledged. */
+    private boolean ackPending = false;
+    private long ackDeadline;
+
+    private byte[] readBuffer;
+    private int readHead = 0;
+    private int readCount = 0;
+
+    private boolean closed = false;
+    private boolean finAcked = false;
+    private boolean finReceived = false;
+    private boolean failed = false;
+    private boolean finished = false;
+
+    private static final char dbgTransport = 's';
+}
@@ -2,6 +2,8 @@ package nachos.network;
 
 import nachos.machine.*;
 
+import java.nio.ByteBuffer;
+
 /**
  * A mail message. Includes a packet header, a mail header, and the actual
  * payload.
@@ -50,17 +52,19 @@ public class MailMessage {
 	this.packet = packet;
 	
 	// make sure we have a valid header
-	if (packet.contents.length < headerLength ||
-	    packet.contents[0] < 0 || packet.contents[0] >= portLimit ||
-	    packet.contents[1] < 0 || packet.contents[1] >= portLimit)
+	if (packet.contents.remaining() < headerLength ||
+	    packet.contents.get(0) < 0 || packet.contents.get(0) >= portLimit ||
+	    packet.contents.get(1) < 0 || packet.contents.get(1) >= portLimit)
 	    throw new MalformedPacketException();
 
-	dstPort = packet.contents[0];
-	srcPort = packet.contents[1];
+	dstPort = packet.contents.get(0);
+	srcPort = packet.contents.get(1);
 
-	contents = new byte[packet.contents.length - headerLength];
-	System.arraycopy(packet.contents, headerLength, contents, 0,
-			 contents.length);
+	// the only copy of the contents made after they leave the network
+	ByteBuffer buf = packet.contents.duplicate();
+	buf.position(headerLength);
+	contents = new byte[buf.remaining()];
+	buf.get(contents);
     }
 
     /**
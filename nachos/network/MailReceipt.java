@@ -0,0 +1,64 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A receipt for a message queued to be sent by a <tt>PostOffice</tt>. The
+ * sender can use it to find out when the message has been sent.
+ *
+ * <p>
+ * A message counts as sent once the network link has finished with it, even
+ * if the link dropped it.
+ */
+public class MailReceipt {
+    /**
+     * Allocate a new receipt for a message.
+     *
+     * @param	mail	the message.
+     */
+    MailReceipt(MailMessage mail) {
+	this.mail = mail;
+    }
+
+    /**
+     * Return the message this is a receipt for.
+     *
+     * @return	the message.
+     */
+    public MailMessage getMessage() {
+	return mail;
+    }
+
+    /**
+     * Test whether the message has been sent.
+     *
+     * @return	<tt>true</tt> if the message has been sent.
+     */
+    public boolean isSent() {
+	return sent;
+    }
+
+    /**
+     * Wait until the message has been sent.
+     */
+    public void waitSent() {
+	if (!sent) {
+	    done.P();
+	    done.V();
+	}
+    }
+
+    /**
+     * Mark the message as sent, and wake any threads waiting for it. Called
+     * from the network send interrupt handler.
+     */
+    void sent() {
+	sent = true;
+	done.V();
+    }
+
+    private MailMessage mail;
+    private boolean sent = false;
+    private Semaphore done = new Semaphore(0);
+}
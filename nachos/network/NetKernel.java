@@ -24,6 +24,7 @@ public class NetKernel extends VMKernel {
 	super.initialize(args);
 
 	postOffice = new PostOffice();
+	transport = new Transport(postOffice);
     }
 
     /**
@@ -118,6 +119,9 @@ public class NetKernel extends VMKernel {
 
     private PostOffice postOffice;
 
+    /** Globally accessible reference to the stream transport. */
+    public static Transport transport;
+
     // dummy variables to make javac smarter
     private static NetProcess dummy1 = null;
 }
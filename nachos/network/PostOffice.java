@@ -3,6 +3,8 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.LinkedList;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because
@@ -14,6 +16,13 @@ import nachos.threads.*;
  * from the network and to place them in the appropriate queues. This cannot
  * be done in the receive interrupt handler because each queue (implemented
  * with a <tt>SynchList</tt>) is protected by a lock.
+ *
+ * <p>
+ * Messages to be sent wait in a send queue. The send interrupt handler hands
+ * the next one to the network link as soon as the link has finished with the
+ * last, so senders do not wait for each other's messages to go out. Up to
+ * <tt>PostOffice.sendWindow</tt> messages may be queued or in flight at
+ * once; a sender waits only when the window is full.
  */
 public class PostOffice {
     /**
@@ -23,8 +32,10 @@ public class PostOffice {
      */
     public PostOffice() {
 	messageReceived = new Semaphore(0);
-	messageSent = new Semaphore(0);
-	sendLock = new Lock();
+
+	int sendWindow = Config.getInteger("PostOffice.sendWindow", 16);
+	Lib.assertTrue(sendWindow > 0);
+	sendSlots = new Semaphore(sendWindow);
 
 	queues = new SynchList[MailMessage.portLimit];
 	for (int i=0; i<queues.length; i++)
@@ -73,23 +84,30 @@ public class PostOffice {
 	while (true) {
 	    messageReceived.P();
 
-	    Packet p = Machine.networkLink().receive();
-
-	    MailMessage mail;
-
-	    try {
-		mail = new MailMessage(p);
+	    // a receive interrupt may deliver several packets
+	    Packet p;
+	    while ((p = Machine.networkLink().receive()) != null) {
+		MailMessage mail;
+
+		try {
+		    mail = new MailMessage(p);
+		}
+		catch (MalformedPacketException e) {
+		    continue;
+		}
+		finally {
+		    // the message has its own copy of the contents
+		    p.release();
+		}
+
+		if (Lib.test(dbgNet))
+		    System.out.println("delivering mail to port "
+				       + mail.dstPort + ": " + mail);
+
+		// atomically add message to the mailbox and wake a waiting
+		// thread
+		queues[mail.dstPort].add(mail);
 	    }
-	    catch (MalformedPacketException e) {
-		continue;
-	    }
-
-	    if (Lib.test(dbgNet))
-		System.out.println("delivering mail to port " + mail.dstPort
-				   + ": " + mail);
-
-	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
 	}
     }
 
@@ -102,18 +120,47 @@ public class PostOffice {
     }
 
     /**
-     * Send a message to a mailbox on a remote machine.
+     * Send a message to a mailbox on a remote machine. Returns once the
+     * message is queued to be sent, waiting only while the send window is
+     * full.
+     *
+     * @param	mail	the message to send.
      */
     public void send(MailMessage mail) {
+	sendAsync(mail);
+    }
+
+    /**
+     * Queue a message to be sent to a mailbox on a remote machine, waiting
+     * only while the send window is full.
+     *
+     * @param	mail	the message to send.
+     * @return	a receipt that can be used to wait for the message to be
+     *		sent.
+     */
+    public MailReceipt sendAsync(MailMessage mail) {
 	if (Lib.test(dbgNet))
 	    System.out.println("sending mail: " + mail);
 
-	sendLock.acquire();
+	MailReceipt receipt = new MailReceipt(mail);
+
+	sendSlots.P();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (sending == null)
+	    startSend(receipt);
+	else
+	    sendQueue.add(receipt);
 
-	Machine.networkLink().send(mail.packet);
-	messageSent.P();
+	Machine.interrupt().restore(intStatus);
 
-	sendLock.release();
+	return receipt;
+    }
+
+    private void startSend(MailReceipt receipt) {
+	sending = receipt;
+	Machine.networkLink().send(receipt.getMessage().packet);
     }
 
     /**
@@ -122,13 +169,25 @@ public class PostOffice {
      * dropped.
      */
     private void sendInterrupt() {
-	messageSent.V();
+	MailReceipt receipt = sending;
+	Lib.assertTrue(receipt != null);
+
+	sending = null;
+	if (!sendQueue.isEmpty())
+	    startSend(sendQueue.removeFirst());
+
+	receipt.sent();
+	sendSlots.V();
     }
 
     private SynchList[] queues;
     private Semaphore messageReceived;	// V'd when a message can be dequeued
-    private Semaphore messageSent;	// V'd when a message can be queued
-    private Lock sendLock;
+    private Semaphore sendSlots;	// P'd for each message queued to send
+
+    /** The message the network link is sending, or <tt>null</tt>. */
+    private MailReceipt sending = null;
+    /** Messages waiting to be sent, once the link is free. */
+    private LinkedList<MailReceipt> sendQueue = new LinkedList<MailReceipt>();
 
     private static final char dbgNet = 'n';
 }
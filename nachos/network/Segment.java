@@ -0,0 +1,169 @@
+package nachos.network;
+
+import nachos.machine.*;
+
+/**
+ * A segment of a reliable stream, carried in the contents of a mail message.
+ * Includes a transport header and the segment's data.
+ *
+ * <p>
+ * Every segment that carries data, or the <tt>SYN</tt> or <tt>FIN</tt> flag,
+ * takes the next sequence number in its direction of the stream. Every
+ * segment may also acknowledge the other direction: <i>ack</i> is the next
+ * sequence number expected, <i>sack</i> is a bitmap of the segments after
+ * that which have also arrived, and <i>window</i> is how many segments from
+ * <i>ack</i> on can be taken.
+ *
+ * <p>
+ * Sequence numbers are 16 bits on the network, and grow without bound in
+ * memory; <tt>unwrap()</tt> recovers the full number.
+ *
+ * @see	nachos.network.Connection
+ */
+public class Segment {
+    /**
+     * Allocate a new segment to be sent.
+     *
+     * @param	flags	the flags.
+     * @param	seq	the segment's sequence number.
+     * @param	ack	the next sequence number expected.
+     * @param	window	the number of segments that can be taken from
+     *			<i>ack</i> on.
+     * @param	sack	the segments after <i>ack</i> that have arrived.
+     * @param	data	the data.
+     * @param	offset	the offset of the data.
+     * @param	length	the length of the data.
+     */
+    public Segment(int flags, int seq, int ack, int window, int sack,
+		   byte[] data, int offset, int length) {
+	Lib.assertTrue(length >= 0 && length <= maxDataLength);
+	Lib.assertTrue(window >= 0 && window <= maxWindow);
+
+	this.flags = flags;
+	this.seq = seq & 0xFFFF;
+	this.ack = ack & 0xFFFF;
+	this.window = window;
+	this.sack = sack & 0xFF;
+
+	this.data = new byte[length];
+	System.arraycopy(data, offset, this.data, 0, length);
+    }
+
+    /**
+     * Allocate a new segment using the contents of a mail message received
+     * from the network.
+     *
+     * @param	mail	the mail message to deserialize.
+     */
+    public Segment(MailMessage mail) throws MalformedPacketException {
+	if (mail.contents.length < headerLength ||
+	    (mail.contents[0] & ~(SYN|ACK|FIN)) != 0)
+	    throw new MalformedPacketException();
+
+	flags = mail.contents[0];
+	seq = Lib.bytesToUnsignedShort(mail.contents, 1);
+	ack = Lib.bytesToUnsignedShort(mail.contents, 3);
+	window = mail.contents[5] & 0xFF;
+	sack = mail.contents[6] & 0xFF;
+
+	data = new byte[mail.contents.length - headerLength];
+	System.arraycopy(mail.contents, headerLength, data, 0, data.length);
+    }
+
+    /**
+     * Return a mail message carrying this segment.
+     *
+     * @param	dstLink		the destination link address.
+     * @param	dstPort		the destination port.
+     * @param	srcLink		the source link address.
+     * @param	srcPort		the source port.
+     * @return	the mail message.
+     */
+    public MailMessage toMail(int dstLink, int dstPort, int srcLink,
+			      int srcPort) {
+	byte[] contents = new byte[headerLength + data.length];
+
+	contents[0] = (byte) flags;
+	Lib.bytesFromShort(contents, 1, (short) seq);
+	Lib.bytesFromShort(contents, 3, (short) ack);
+	contents[5] = (byte) window;
+	contents[6] = (byte) sack;
+
+	System.arraycopy(data, 0, contents, headerLength, data.length);
+
+	try {
+	    return new MailMessage(dstLink, dstPort, srcLink, srcPort,
+				   contents);
+	}
+	catch (MalformedPacketException e) {
+	    Lib.assertNotReached();
+	    return null;
+	}
+    }
+
+    /**
+     * Test whether this segment takes a sequence number.
+     *
+     * @return	<tt>true</tt> if this segment carries data, or the
+     *		<tt>SYN</tt> or <tt>FIN</tt> flag.
+     */
+    public boolean isSequenced() {
+	return (flags & (SYN|FIN)) != 0 || data.length > 0;
+    }
+
+    /**
+     * Recover a full sequence number from the 16 bits sent on the network,
+     * by taking the one closest to a sequence number known to be near it.
+     *
+     * @param	wrapped	the low 16 bits of the sequence number.
+     * @param	near	a sequence number near it.
+     * @return	the full sequence number.
+     */
+    public static int unwrap(int wrapped, int near) {
+	return near + (short) (wrapped - near);
+    }
+
+    /**
+     * Return a string representation of the segment headers.
+     *
+     * @return	a string representation of the segment headers.
+     */
+    public String toString() {
+	return ((flags & SYN) != 0 ? "SYN " : "") +
+	    ((flags & FIN) != 0 ? "FIN " : "") +
+	    "seq " + seq +
+	    ((flags & ACK) != 0 ? " ack " + ack : "") +
+	    " win " + window + " sack " + Integer.toHexString(sack) +
+	    " (" + data.length + " bytes)";
+    }
+
+    /** The flags. */
+    public final int flags;
+    /** The low 16 bits of the segment's sequence number. */
+    public final int seq;
+    /** The low 16 bits of the next sequence number expected. */
+    public final int ack;
+    /** The number of segments that can be taken from <i>ack</i> on. */
+    public final int window;
+    /** The segments after <i>ack</i> that have arrived, one bit each. */
+    public final int sack;
+    /** The data. */
+    public final byte[] data;
+
+    /** Flag opening a stream; takes a sequence number. */
+    public static final int SYN = 0x01;
+    /** Flag marking <i>ack</i>, <i>window</i> and <i>sack</i> as valid. */
+    public static final int ACK = 0x02;
+    /** Flag closing a direction of a stream; takes a sequence number. */
+    public static final int FIN = 0x04;
+
+    /** The number of bytes in a segment header. */
+    public static final int headerLength = 7;
+    /** The maximum length of a segment's data. */
+    public static final int maxDataLength =
+	MailMessage.maxContentsLength - headerLength;
+    /** The largest window that can be advertised. */
+    public static final int maxWindow = 255;
+    /** The number of segments after <i>ack</i> described by <i>sack</i>. */
+    public static final int sackLength = 8;
+}
@@ -0,0 +1,239 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * A reliable stream transport, on top of the mail messages of a
+ * <tt>PostOffice</tt>. Connections are opened with <tt>connect()</tt> and
+ * <tt>accept()</tt>, and carry data in <tt>Segment</tt>s.
+ *
+ * <p>
+ * A connection is named by its local port and the remote link address and
+ * port, so many connections can share a local port. A thread per port in use
+ * takes the mail arriving on it and hands each segment to its connection. A
+ * <tt>SYN</tt> that opens no known connection is kept until
+ * <tt>accept()</tt> is called on its port.
+ *
+ * <p>
+ * Connections get their window size from the <tt>Transport.windowSize</tt>
+ * key, and give up after <tt>Transport.maxRetries</tt> timeouts in a row.
+ */
+public class Transport {
+    /**
+     * Allocate a new transport.
+     *
+     * @param	postOffice	the post office to send and receive mail
+     *				through.
+     */
+    public Transport(PostOffice postOffice) {
+	this.postOffice = postOffice;
+
+	windowSize = Config.getInteger("Transport.windowSize", 16);
+	Lib.assertTrue(windowSize >= 2 && windowSize <= Segment.maxWindow);
+
+	maxRetries = Config.getInteger("Transport.maxRetries", 20);
+	Lib.assertTrue(maxRetries > 0);
+    }
+
+    /**
+     * Open a connection to a port on a remote machine, from a free local
+     * port. Waits until the remote machine accepts the connection.
+     *
+     * @param	remoteLink	the remote link address.
+     * @param	remotePort	the remote port.
+     * @return	the connection, or <tt>null</tt> if no local port is free or
+     *		the connection failed.
+     */
+    public Connection connect(int remoteLink, int remotePort) {
+	Lib.assertTrue(remoteLink >= 0 && remoteLink < Packet.linkAddressLimit);
+	Lib.assertTrue(remotePort >= 0 && remotePort < MailMessage.portLimit);
+
+	lock.acquire();
+
+	// take local ports from the top, away from the ones servers use
+	int localPort = -1;
+	for (int port=MailMessage.portLimit-1; port>=0; port--) {
+	    if (!portInUse[port]) {
+		localPort = port;
+		break;
+	    }
+	}
+
+	if (localPort == -1) {
+	    lock.release();
+	    return null;
+	}
+
+	portInUse[localPort] = true;
+	connectPort[localPort] = true;
+	listen(localPort);
+
+	Connection connection =
+	    new Connection(this, localPort, remoteLink, remotePort, true);
+	connections.put(key(localPort, remoteLink, remotePort), connection);
+
+	lock.release();
+
+	if (!connection.waitOpen())
+	    return null;
+
+	return connection;
+    }
+
+    /**
+     * Accept a connection waiting on a local port, if there is one. Does not
+     * wait for a connection to arrive, nor for the remote machine to see
+     * that it has been accepted.
+     *
+     * @param	localPort	the local port.
+     * @return	the connection, or <tt>null</tt> if none is waiting.
+     */
+    public Connection accept(int localPort) {
+	Lib.assertTrue(localPort >= 0 && localPort < MailMessage.portLimit);
+
+	lock.acquire();
+
+	portInUse[localPort] = true;
+	listen(localPort);
+
+	Connection connection = null;
+	if (!pending[localPort].isEmpty()) {
+	    MailMessage syn = pending[localPort].removeFirst();
+
+	    connection = new Connection(this, localPort, syn.packet.srcLink,
+					syn.srcPort, false);
+	    connections.put(key(localPort, syn.packet.srcLink, syn.srcPort),
+			    connection);
+	}
+
+	lock.release();
+
+	return connection;
+    }
+
+    /**
+     * Start taking the mail that arrives on a port, if not already.
+     */
+    private void listen(final int port) {
+	if (pending[port] != null)
+	    return;
+
+	pending[port] = new LinkedList<MailMessage>();
+
+	KThread t = new KThread(new Runnable() {
+		public void run() { dispatch(port); }
+	    });
+	t.setName("transport port " + port).fork();
+    }
+
+    /**
+     * Wait for mail on a port, and hand each segment to its connection.
+     */
+    private void dispatch(int port) {
+	while (true) {
+	    MailMessage mail = postOffice.receive(port);
+
+	    Segment segment;
+	    try {
+		segment = new Segment(mail);
+	    }
+	    catch (MalformedPacketException e) {
+		continue;
+	    }
+
+	    lock.acquire();
+	    Connection connection =
+		connections.get(key(port, mail.packet.srcLink, mail.srcPort));
+	    if (connection == null)
+		unknownSegment(mail, segment);
+	    lock.release();
+
+	    if (connection != null)
+		connection.receive(segment);
+	}
+    }
+
+    private void unknownSegment(MailMessage mail, Segment segment) {
+	int port = mail.dstPort;
+
+	if (segment.flags == Segment.SYN) {
+	    // the SYN may have been resent before it was accepted
+	    for (MailMessage syn : pending[port]) {
+		if (syn.packet.srcLink == mail.packet.srcLink &&
+		    syn.srcPort == mail.srcPort)
+		    return;
+	    }
+
+	    pending[port].add(mail);
+	}
+	else if ((segment.flags & Segment.FIN) != 0) {
+	    // the connection finished before our last ACK reached the other
+	    // end, which is resending its FIN
+	    Segment ack = new Segment(Segment.ACK, 0, segment.seq+1, 0, 0,
+				      new byte[0], 0, 0);
+	    send(ack.toMail(mail.packet.srcLink, mail.srcPort,
+			    mail.packet.dstLink, port));
+	}
+    }
+
+    /**
+     * Send a segment. Called by connections.
+     *
+     * @param	mail	the mail message carrying the segment.
+     */
+    void send(MailMessage mail) {
+	postOffice.send(mail);
+    }
+
+    /**
+     * Forget a connection that has finished, so that its local port can be
+     * used again. Called by the connection.
+     *
+     * @param	connection	the connection.
+     */
+    void finished(Connection connection) {
+	lock.acquire();
+
+	int localPort = connection.getLocalPort();
+	connections.remove(key(localPort, connection.getRemoteLink(),
+			       connection.getRemotePort()));
+
+	// a port connections are accepted on stays in use
+	if (connectPort[localPort]) {
+	    connectPort[localPort] = false;
+	    portInUse[localPort] = false;
+	}
+
+	lock.release();
+    }
+
+    int getWindowSize() {
+	return windowSize;
+    }
+
+    int getMaxRetries() {
+	return maxRetries;
+    }
+
+    private static int key(int localPort, int remoteLink, int remotePort) {
+	return (localPort << 16) | (remoteLink << 8) | remotePort;
+    }
+
+    private PostOffice postOffice;
+    private int windowSize, maxRetries;
+
+    private Lock lock = new Lock();
+    private HashMap<Integer, Connection> connections =
+	new HashMap<Integer, Connection>();
+    /** The SYNs waiting on each port, or <tt>null</tt> for unused ports. */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private LinkedList<MailMessage>[] pending =
+	new LinkedList[MailMessage.portLimit];
+    private boolean[] portInUse = new boolean[MailMessage.portLimit];
+    /** Whether each port was taken by <tt>connect()</tt>. */
+    private boolean[] connectPort = new boolean[MailMessage.portLimit];
+}
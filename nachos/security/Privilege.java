@@ -158,6 +158,32 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of user ticks that can pass before any pending
+	 * interrupt comes due. Returns 0 if every tick must be taken with
+	 * <tt>tick()</tt>, for example when interrupt debugging is enabled.
+	 *
+	 * @return	the number of ticks that can be passed to
+	 *		<tt>skipUserTicks()</tt>.
+	 */
+	public long userTicksBeforeDue();
+
+	/**
+	 * Advance the simulated time by the specified number of user ticks.
+	 * This has the same effect as calling <tt>tick(false)</tt> that many
+	 * times, and must not bring any pending interrupt due.
+	 *
+	 * @param	ticks	the number of user ticks to pass.
+	 */
+	public void skipUserTicks(long ticks);
+
+	/**
+	 * Charge at once the kernel ticks an idle thread would spend yielding
+	 * until the next pending interrupt comes due, stopping one tick short
+	 * of it.
+	 */
+	public void skipIdleTicks();
     }
 
     /**
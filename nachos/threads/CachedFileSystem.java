@@ -0,0 +1,710 @@
+package nachos.threads;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import nachos.machine.*;
+
+/**
+ * A file system that keeps recently used blocks of files in memory, in front
+ * of another file system, so that files read again and again (executables,
+ * scripts) are read at memory speed.
+ *
+ * <p>
+ * The blocks are fixed-size slots of one array, found through a hash map per
+ * file and replaced in least-recently-used order. A miss during sequential
+ * reading also reads the blocks that follow, with the same operation on the
+ * underlying file. Writes only dirty blocks; a flusher thread writes them
+ * back a little later, joining neighbouring dirty blocks into one operation,
+ * and closing a file writes back all of its dirty blocks before returning.
+ * <tt>flush()</tt> writes back every dirty block.
+ *
+ * <p>
+ * The cache is not locked while blocks are read or written on the underlying
+ * file system, so that other threads can use the blocks already cached. A
+ * block being transferred is marked busy, and a thread that needs it waits
+ * until the transfer is done.
+ *
+ * <p>
+ * Blocks stay cached after a file is closed, so a file that is opened again
+ * without truncating it is not opened on the underlying file system until a
+ * block has to be read or written.
+ */
+public class CachedFileSystem implements FileSystem {
+    /**
+     * Allocate a new buffer cache in front of the file system named by the
+     * <tt>CachedFileSystem.fileSystem</tt> key, or in front of the stub file
+     * system if there is no such key. The number of blocks is given by the
+     * <tt>CachedFileSystem.numBlocks</tt> key.
+     */
+    public CachedFileSystem() {
+	this(getUnderlyingFileSystem(),
+	     Config.getInteger("CachedFileSystem.numBlocks", 64));
+    }
+
+    /**
+     * Allocate a new buffer cache.
+     *
+     * @param	fileSystem	the file system to cache.
+     * @param	numBlocks	the number of blocks to cache.
+     */
+    public CachedFileSystem(FileSystem fileSystem, int numBlocks) {
+	Lib.assertTrue(fileSystem != null && numBlocks > 0);
+
+	this.fileSystem = fileSystem;
+
+	data = new byte[numBlocks*blockSize];
+	for (int i=0; i<numBlocks; i++)
+	    addLast(new Block(i*blockSize));
+
+	readAhead = Math.max(1, Math.min(maxRun, numBlocks/2));
+    }
+
+    private static FileSystem getUnderlyingFileSystem() {
+	String name = Config.getString("CachedFileSystem.fileSystem");
+	if (name != null)
+	    return (FileSystem) Lib.constructObject(name);
+	else
+	    return Machine.stubFileSystem();
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+	lock.acquire();
+
+	CachedFile file = files.get(name);
+
+	if (truncate || file == null) {
+	    // a block still being written back must not land after truncating
+	    if (file != null)
+		waitIdle(file);
+
+	    // a truncating open must reach the underlying file system
+	    OpenFile underlying = fileSystem.open(name, truncate);
+	    if (underlying == null) {
+		lock.release();
+		return null;
+	    }
+
+	    if (file == null) {
+		file = new CachedFile(name);
+		files.put(name, file);
+	    }
+	    else {
+		dropBlocks(file);
+	    }
+
+	    file.length = underlying.length();
+	    if (file.underlying == null)
+		file.underlying = underlying;
+	    else
+		underlying.close();
+	}
+
+	file.numOpen++;
+
+	lock.release();
+
+	return new CachedOpenFile(file);
+    }
+
+    public boolean remove(String name) {
+	lock.acquire();
+
+	CachedFile file = files.remove(name);
+	if (file != null)
+	    dropBlocks(file);
+
+	lock.release();
+
+	return fileSystem.remove(name);
+    }
+
+    /**
+     * Write back every dirty block in the cache. Called before the machine
+     * halts, so that nothing written is lost.
+     */
+    public void flush() {
+	lock.acquire();
+
+	// writing a block back releases the lock, so files may come and go
+	for (CachedFile file : files.values().toArray(new CachedFile[0]))
+	    flushFile(file);
+
+	lock.release();
+    }
+
+    /**
+     * A file with blocks in the cache, or open through it.
+     */
+    private class CachedFile {
+	CachedFile(String name) {
+	    this.name = name;
+	}
+
+	String name;
+	/** The file on the underlying file system, or <tt>null</tt>. */
+	OpenFile underlying = null;
+	/** The length of the file, including cached writes. */
+	int length;
+	int numOpen = 0;
+	HashMap<Integer, Block> blocks = new HashMap<Integer, Block>();
+    }
+
+    /**
+     * A cache slot, holding one block of a file or nothing.
+     */
+    private class Block {
+	Block(int offset) {
+	    this.offset = offset;
+	}
+
+	/** The offset of the slot in <tt>data</tt>. */
+	final int offset;
+	/** The file and block number held, or <tt>null</tt>. */
+	CachedFile file = null;
+	int index;
+	boolean dirty = false;
+	/** Whether the block is being read in or written back. */
+	boolean busy = false;
+	/** The neighbours in the LRU list; <tt>prev</tt> is more recent. */
+	Block prev, next;
+    }
+
+    private class CachedOpenFile extends OpenFileWithPosition {
+	CachedOpenFile(CachedFile file) {
+	    super(CachedFileSystem.this, file.name);
+
+	    this.file = file;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (file == null || pos < 0 || length < 0)
+		return -1;
+
+	    lock.acquire();
+
+	    boolean sequential = (pos == nextReadPos);
+
+	    length = Math.max(0, Math.min(length, file.length - pos));
+
+	    int amount = 0;
+	    while (amount < length) {
+		int index = (pos + amount) / blockSize;
+		int blockOffset = (pos + amount) % blockSize;
+		int blockAmount = Math.min(blockSize - blockOffset,
+					   length - amount);
+
+		Block block = getBlock(file, index, true, sequential);
+		if (block == null)
+		    break;
+
+		System.arraycopy(data, block.offset + blockOffset,
+				 buf, offset + amount, blockAmount);
+		amount += blockAmount;
+	    }
+
+	    nextReadPos = pos + amount;
+
+	    lock.release();
+
+	    return (amount == 0 && length > 0) ? -1 : amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (file == null || pos < 0 || length < 0)
+		return -1;
+
+	    lock.acquire();
+
+	    int amount = 0;
+	    while (amount < length) {
+		int index = (pos + amount) / blockSize;
+		int blockOffset = (pos + amount) % blockSize;
+		int blockAmount = Math.min(blockSize - blockOffset,
+					   length - amount);
+
+		// a block that is only partly overwritten must be read first,
+		// unless it lies past the end of the file
+		boolean fill = blockAmount < blockSize &&
+		    index*blockSize < file.length;
+
+		Block block = getBlock(file, index, fill, false);
+		if (block == null)
+		    break;
+
+		System.arraycopy(buf, offset + amount,
+				 data, block.offset + blockOffset, blockAmount);
+		amount += blockAmount;
+
+		file.length = Math.max(file.length, pos + amount);
+		setDirty(block);
+	    }
+
+	    lock.release();
+
+	    return (amount == 0 && length > 0) ? -1 : amount;
+	}
+
+	public int length() {
+	    return (file == null) ? -1 : file.length;
+	}
+
+	public void close() {
+	    if (file == null)
+		return;
+
+	    lock.acquire();
+
+	    // data written to a file must be on disk when it is closed
+	    flushFile(file);
+
+	    if (--file.numOpen == 0 && file.underlying != null) {
+		file.underlying.close();
+		file.underlying = null;
+	    }
+
+	    lock.release();
+
+	    file = null;
+	}
+
+	private CachedFile file;
+	/** Where the next read starts if the file is read sequentially. */
+	private int nextReadPos = 0;
+    }
+
+    /**
+     * Find the specified block in the cache, loading it if it is not there.
+     * A sequential read that misses also loads the blocks that follow, up to
+     * <tt>readAhead</tt> blocks in all. Must be called with the lock held,
+     * and may release it while waiting for a transfer.
+     *
+     * @param	file		the file.
+     * @param	index		the block number.
+     * @param	fill		<tt>true</tt> if the block must be read in on a
+     *				miss, <tt>false</tt> if it is about to be
+     *				completely overwritten.
+     * @param	sequential	<tt>true</tt> if the file is being read
+     *				sequentially.
+     * @return	the block, or <tt>null</tt> on an I/O error.
+     */
+    private Block getBlock(CachedFile file, int index, boolean fill,
+			   boolean sequential) {
+	boolean missed = false;
+
+	while (true) {
+	    Block block = file.blocks.get(index);
+	    if (block != null) {
+		if (block.busy) {
+		    blockIdle.sleep();
+		    continue;
+		}
+
+		if (!missed)
+		    KernelStats.cacheHit();
+		moveToFront(block);
+		return block;
+	    }
+
+	    if (!missed) {
+		KernelStats.cacheMiss();
+		missed = true;
+	    }
+
+	    // taking a slot may release the lock, so look again after
+	    block = takeSlot();
+	    if (block == null)
+		return null;
+	    if (file.blocks.containsKey(index))
+		continue;
+
+	    assign(block, file, index);
+
+	    if (!fill) {
+		Arrays.fill(data, block.offset, block.offset + blockSize,
+			    (byte) 0);
+		return block;
+	    }
+
+	    if (!readBlocks(file, index, sequential))
+		return null;
+	}
+    }
+
+    /**
+     * Read a block that has just been given a slot, and, for a sequential
+     * read, the blocks after it up to the end of the file or the next cached
+     * block, with one operation on the underlying file. Releases the lock
+     * while reading.
+     *
+     * @return	<tt>true</tt> if the blocks were read.
+     */
+    private boolean readBlocks(CachedFile file, int index,
+			       boolean sequential) {
+	file.blocks.get(index).busy = true;
+
+	int count = 1;
+	if (sequential) {
+	    int lastIndex = (file.length - 1) / blockSize;
+	    while (count < readAhead && index + count <= lastIndex &&
+		   !file.blocks.containsKey(index + count)) {
+		Block block = takeSlot();
+		if (block == null || file.blocks.containsKey(index + count))
+		    break;
+
+		assign(block, file, index + count);
+		block.busy = true;
+		count++;
+	    }
+	}
+
+	// the block wanted now is the most recently used
+	moveToFront(file.blocks.get(index));
+
+	int amount = -1;
+	if (openUnderlying(file)) {
+	    OpenFile underlying = file.underlying;
+	    int pos = index*blockSize;
+	    int length = Math.max(0, Math.min(count*blockSize,
+					      file.length - pos));
+	    byte[] buffer = takeBuffer();
+
+	    lock.release();
+	    amount = underlying.read(pos, buffer, 0, length);
+	    lock.acquire();
+
+	    KernelStats.cacheRead();
+
+	    if (amount >= 0) {
+		// a short read leaves zeros, for a hole written past the old
+		// end
+		Arrays.fill(buffer, amount, count*blockSize, (byte) 0);
+
+		for (int i=0; i<count; i++)
+		    System.arraycopy(buffer, i*blockSize,
+				     data, file.blocks.get(index + i).offset,
+				     blockSize);
+	    }
+
+	    buffers.add(buffer);
+	}
+
+	// busy blocks are neither evicted nor dropped, so they are all still
+	// in the file
+	for (int i=0; i<count; i++) {
+	    Block block = file.blocks.get(index + i);
+	    block.busy = false;
+	    if (amount < 0)
+		freeBlock(block);
+	}
+	blockIdle.wakeAll();
+
+	return amount >= 0;
+    }
+
+    /**
+     * Take the least recently used slot that is not busy and clean it,
+     * writing its block back first if it is dirty. The slot is left empty,
+     * for the caller to assign. May release the lock.
+     *
+     * @return	the slot, or <tt>null</tt> on an I/O error.
+     */
+    private Block takeSlot() {
+	while (true) {
+	    Block block = lruTail;
+	    while (block != null && block.busy)
+		block = block.prev;
+
+	    if (block == null) {
+		blockIdle.sleep();
+	    }
+	    else if (block.dirty) {
+		if (!writeRun(block))
+		    return null;
+	    }
+	    else {
+		if (block.file != null) {
+		    block.file.blocks.remove(block.index);
+		    block.file = null;
+		}
+
+		return block;
+	    }
+	}
+    }
+
+    private void assign(Block block, CachedFile file, int index) {
+	block.file = file;
+	block.index = index;
+	file.blocks.put(index, block);
+	moveToFront(block);
+    }
+
+    private void setDirty(Block block) {
+	if (block.dirty)
+	    return;
+
+	block.dirty = true;
+	numDirty++;
+
+	if (flusher == null) {
+	    flusher = new KThread(new Runnable() {
+		    public void run() { flushDirtyBlocks(); }
+		});
+	    flusher.setName("buffer cache flusher").fork();
+	}
+	else if (numDirty == 1) {
+	    dirtyBlocks.wake();
+	}
+    }
+
+    /**
+     * Write back a dirty block that is not busy, together with the dirty
+     * blocks of the same file around it, with one operation on the
+     * underlying file. Releases the lock while writing.
+     *
+     * @return	<tt>true</tt> if the blocks were written.
+     */
+    private boolean writeRun(Block block) {
+	CachedFile file = block.file;
+
+	if (!openUnderlying(file))
+	    return false;
+
+	int first = block.index, count = 1;
+	while (count < maxRun && isWritable(file, first-1)) {
+	    first--;
+	    count++;
+	}
+	while (count < maxRun && isWritable(file, first+count))
+	    count++;
+
+	byte[] buffer = takeBuffer();
+
+	for (int i=0; i<count; i++) {
+	    Block b = file.blocks.get(first + i);
+	    System.arraycopy(data, b.offset, buffer, i*blockSize, blockSize);
+	    b.busy = true;
+	}
+
+	OpenFile underlying = file.underlying;
+	int pos = first*blockSize;
+	int length = Math.min(count*blockSize, file.length - pos);
+
+	boolean written = true;
+	if (length > 0) {
+	    lock.release();
+	    written = (underlying.write(pos, buffer, 0, length) == length);
+	    lock.acquire();
+
+	    KernelStats.cacheWrite();
+	}
+
+	buffers.add(buffer);
+
+	// busy blocks cannot be written to, so they are still as written
+	for (int i=0; i<count; i++) {
+	    Block b = file.blocks.get(first + i);
+	    b.busy = false;
+	    if (written) {
+		b.dirty = false;
+		numDirty--;
+	    }
+	}
+	blockIdle.wakeAll();
+
+	return written;
+    }
+
+    private boolean isWritable(CachedFile file, int index) {
+	Block block = file.blocks.get(index);
+	return block != null && block.dirty && !block.busy;
+    }
+
+    private byte[] takeBuffer() {
+	if (buffers.isEmpty())
+	    return new byte[maxRun*blockSize];
+	else
+	    return buffers.removeFirst();
+    }
+
+    /**
+     * Write back every dirty block of a file, and wait for any of its blocks
+     * being transferred.
+     *
+     * @return	<tt>true</tt> if every block was written.
+     */
+    private boolean flushFile(CachedFile file) {
+	while (true) {
+	    Block dirty = null;
+	    boolean busy = false;
+	    for (Block block : file.blocks.values()) {
+		if (block.busy)
+		    busy = true;
+		else if (block.dirty)
+		    dirty = block;
+	    }
+
+	    if (dirty != null) {
+		if (!writeRun(dirty))
+		    return false;
+	    }
+	    else if (busy) {
+		blockIdle.sleep();
+	    }
+	    else {
+		return true;
+	    }
+	}
+    }
+
+    /**
+     * Wait until no block of a file is being transferred.
+     */
+    private void waitIdle(CachedFile file) {
+	boolean busy;
+	do {
+	    busy = false;
+	    for (Block block : file.blocks.values())
+		busy |= block.busy;
+
+	    if (busy)
+		blockIdle.sleep();
+	} while (busy);
+    }
+
+    /**
+     * The flusher thread. Waits for blocks to become dirty, lets more writes
+     * gather for a while, and then writes back the dirty blocks, oldest
+     * first. The lock is released during each write, so that other threads
+     * can use the cache.
+     */
+    private void flushDirtyBlocks() {
+	lock.acquire();
+
+	while (true) {
+	    while (numDirty == 0)
+		dirtyBlocks.sleep();
+
+	    lock.release();
+	    ThreadedKernel.alarm.waitUntil(flushDelay);
+	    lock.acquire();
+
+	    Block block;
+	    while ((block = oldestDirtyBlock()) != null) {
+		if (!writeRun(block))
+		    break;
+	    }
+	}
+    }
+
+    private Block oldestDirtyBlock() {
+	for (Block block=lruTail; block!=null; block=block.prev) {
+	    if (block.dirty && !block.busy)
+		return block;
+	}
+
+	return null;
+    }
+
+    private boolean openUnderlying(CachedFile file) {
+	if (file.underlying == null)
+	    file.underlying = fileSystem.open(file.name, false);
+
+	return file.underlying != null;
+    }
+
+    /**
+     * Forget every block of a file, without writing any of them back, once
+     * none of them is being transferred.
+     */
+    private void dropBlocks(CachedFile file) {
+	waitIdle(file);
+
+	for (Block block : file.blocks.values().toArray(new Block[0]))
+	    freeBlock(block);
+    }
+
+    /**
+     * Forget a block without writing it back, and make its slot the next to
+     * be reused.
+     */
+    private void freeBlock(Block block) {
+	if (block.dirty)
+	    numDirty--;
+
+	block.file.blocks.remove(block.index);
+	block.file = null;
+	block.dirty = false;
+
+	remove(block);
+	addLast(block);
+    }
+
+    private void moveToFront(Block block) {
+	if (lruHead == block)
+	    return;
+
+	remove(block);
+
+	block.next = lruHead;
+	if (lruHead != null)
+	    lruHead.prev = block;
+	lruHead = block;
+	if (lruTail == null)
+	    lruTail = block;
+    }
+
+    private void addLast(Block block) {
+	block.prev = lruTail;
+	if (lruTail != null)
+	    lruTail.next = block;
+	lruTail = block;
+	if (lruHead == null)
+	    lruHead = block;
+    }
+
+    private void remove(Block block) {
+	if (block.prev != null)
+	    block.prev.next = block.next;
+	else if (lruHead == block)
+	    lruHead = block.next;
+
+	if (block.next != null)
+	    block.next.prev = block.prev;
+	else if (lruTail == block)
+	    lruTail = block.prev;
+
+	block.prev = block.next = null;
+    }
+
+    private FileSystem fileSystem;
+    private HashMap<String, CachedFile> files =
+	new HashMap<String, CachedFile>();
+
+    /** The contents of every slot. */
+    private byte[] data;
+    /** The slots, most recently used first. */
+    private Block lruHead = null, lruTail = null;
+    private int numDirty = 0;
+
+    /**
+     * Buffers for operations on the underlying file system, each holding the
+     * blocks of one operation, that are not in use.
+     */
+    private LinkedList<byte[]> buffers = new LinkedList<byte[]>();
+    private int readAhead;
+
+    private Lock lock = new Lock();
+    private Condition2 dirtyBlocks = new Condition2(lock);
+    /** Woken when a block is no longer busy. */
+    private Condition blockIdle = new Condition(lock);
+    private KThread flusher = null;
+
+    private static final int blockSize = 1024;
+    /** The most blocks read or written with one operation. */
+    private static final int maxRun = 16;
+    /** How long dirty blocks wait before the flusher writes them back. */
+    private static final long flushDelay = 5000;
+}
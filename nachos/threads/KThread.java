@@ -59,7 +59,7 @@ public class KThread {
 		if (currentThread != null) {
 			tcb = new TCB();
 		} else {// 创建第一个线程 窃取Java的线程作为自己的主线程
-			readyQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
 
 			readyQueue.acquire(this);
 
@@ -276,8 +276,10 @@ public class KThread {
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
 			readyQueue.waitForAccess(this);
+			numReadyThreads++;
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
@@ -346,8 +348,14 @@ public class KThread {
 		idleThread = new KThread(new Runnable() {
 			public void run() {
 				System.out.println("Running idle");
-				while (true)
+				while (true) {
+					// until an interrupt handler readies a thread, every
+					// yield() just picks this thread again, so skip them
+					if (numReadyThreads == 0 && !Lib.test(dbgThread))
+						Machine.autoGrader().idleThreadWaiting();
+
 					yield();
+				}
 			}
 		});
 		idleThread.setName("idle");
@@ -365,6 +373,8 @@ public class KThread {
 		KThread nextThread = readyQueue.nextThread();
 		if (nextThread == null)
 			nextThread = idleThread;
+		else
+			numReadyThreads--;
 
 		nextThread.run();
 	}
@@ -584,4 +594,6 @@ public class KThread {
 	private static KThread currentThread = null;
 	private static KThread toBeDestroyed = null;
 	private static KThread idleThread = null;
+	/** Number of threads in <tt>readyQueue</tt>. */
+	private static int numReadyThreads = 0;
 }
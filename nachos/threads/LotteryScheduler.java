@@ -4,8 +4,7 @@ package nachos.threads;
  * 我的名字叫彩票    我会有运气遇到你吗？
  */
 import nachos.machine.*;
-import nachos.threads.PriorityScheduler.PriorityQueue;
-
+import java.util.LinkedList;
 import java.util.Random;
 
 /**
@@ -44,62 +43,303 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// how to select next thread;
-
 		return new LotteryQueue(transferPriority);
 	}
 
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum && priority <= priorityMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		boolean changed = priority < priorityMaximum;
+		if (changed)
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return changed;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		boolean changed = priority > priorityMinimum;
+		if (changed)
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return changed;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+	/**
+	 * The minimum number of tickets that a thread can have. Every thread holds
+	 * at least one ticket, so a non-empty queue always has a winner.
+	 */
+	public static final int priorityMinimum = 1;
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new Lotterythreadstate(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Return a random ticket number between 0 and <i>bound - 1</i>, with every
+	 * ticket equally likely.
+	 */
+	private long drawTicket(long bound) {
+		long bits, ticket;
+		do {
+			bits = random.nextLong() >>> 1;
+			ticket = bits % bound;
+		} while (bits - ticket + (bound - 1) < 0);
+
+		return ticket;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 *
+	 * <p>
+	 * The effective tickets of the waiting threads are kept in a Fenwick tree,
+	 * indexed by the slot each thread was given when it started waiting. The
+	 * slots are kept packed by moving the last thread into the slot of one that
+	 * leaves. Drawing a winner, adding or removing a thread, and changing the
+	 * tickets of a waiting thread each take <i>O(log n)</i> time.
+	 */
 	protected class LotteryQueue extends PriorityQueue {
 		LotteryQueue(boolean transferPriority) {
 			super(transferPriority);
-			// TODO Auto-generated constructor stub
 		}
 
+		/**
+		 * Return the total number of tickets held by the waiting threads, or
+		 * <tt>Integer.MAX_VALUE</tt> if there are more.
+		 */
 		public int geteffpri() {
-			int re = 0;
-			if (waitQueue != null)
-				for (KThread a : waitQueue) {
-					re += getThreadState(a).getPriority();
-				}
-			return re;
+			return (int) Math.min(totalTickets, Integer.MAX_VALUE);
 		}
 
-		@Override
 		protected KThread pickNextThread() {
-			// WaitQueue 非空
-			/** zjt P2 T4 **/
-			int sum = 0;
-			for (KThread a : waitQueue)
-				sum += getThreadState(a).getEffectivePriority(); // 获得总彩票的数量
-			Random random = new Random();
-
-			int lucky = random.nextInt(sum);
-
-			int index = 0;
-			for (KThread a : waitQueue) {
-				index += getThreadState(a).getEffectivePriority();
-				if (index > lucky) {
-					return a;
+			if (size == 0)
+				return null;
+
+			// find the first slot whose prefix sum is above the winning ticket
+			long ticket = drawTicket(totalTickets);
+			int slot = 0;
+			for (int step = capacity; step > 0; step >>= 1) {
+				if (slot + step <= capacity && tickets[slot + step] <= ticket) {
+					slot += step;
+					ticket -= tickets[slot];
 				}
 			}
-			return null;
-			/** zjt P2 T4 **/
+
+			return threads[slot + 1].thread;
+		}
+
+		protected LinkedList<KThread> getWaitingThreads() {
+			LinkedList<KThread> waiting = new LinkedList<KThread>();
+			for (int slot = 1; slot <= size; slot++)
+				waiting.add(threads[slot].thread);
+
+			return waiting;
+		}
+
+		/**
+		 * Give a waiting thread the next free slot, and donate its tickets to
+		 * the holder.
+		 */
+		void add(ThreadState state) {
+			Lotterythreadstate lotteryState = (Lotterythreadstate) state;
+
+			if (size == capacity)
+				grow();
+
+			int slot = ++size;
+			threads[slot] = lotteryState;
+			lotteryState.slot = slot;
+			update(slot, lotteryState.effectiveTickets);
+
+			if (transferPriority && holder != null)
+				((Lotterythreadstate) holder).addTickets(lotteryState.effectiveTickets);
+		}
+
+		/**
+		 * Take a waiting thread out of its slot, and take its tickets back
+		 * from the holder.
+		 */
+		void remove(ThreadState state) {
+			Lotterythreadstate lotteryState = (Lotterythreadstate) state;
+			int slot = lotteryState.slot;
+			Lib.assertTrue(slot >= 1 && slot <= size && threads[slot] == lotteryState);
+
+			update(slot, -lotteryState.effectiveTickets);
+
+			if (slot != size) {
+				Lotterythreadstate last = threads[size];
+				update(size, -last.effectiveTickets);
+				update(slot, last.effectiveTickets);
+				threads[slot] = last;
+				last.slot = slot;
+			}
+			threads[size--] = null;
+			lotteryState.slot = 0;
+
+			if (transferPriority && holder != null)
+				((Lotterythreadstate) holder).addTickets(-lotteryState.effectiveTickets);
+		}
+
+		/**
+		 * Make the specified thread the holder of this queue, moving the tickets
+		 * of the waiting threads from the old holder to the new one.
+		 */
+		void setHolder(ThreadState state) {
+			ThreadState oldHolder = holder;
+			holder = state;
+
+			if (!transferPriority || oldHolder == state)
+				return;
+
+			if (oldHolder != null)
+				((Lotterythreadstate) oldHolder).addTickets(-totalTickets);
+			if (state != null)
+				((Lotterythreadstate) state).addTickets(totalTickets);
+		}
+
+		/**
+		 * Add <tt>delta</tt> tickets to the thread in the specified slot.
+		 */
+		void update(int slot, long delta) {
+			totalTickets += delta;
+			for (; slot <= capacity; slot += slot & -slot)
+				tickets[slot] += delta;
+		}
+
+		private void grow() {
+			Lotterythreadstate[] oldThreads = threads;
+
+			capacity *= 2;
+			threads = new Lotterythreadstate[capacity + 1];
+			tickets = new long[capacity + 1];
+			totalTickets = 0;
+
+			for (int slot = 1; slot <= size; slot++) {
+				threads[slot] = oldThreads[slot];
+				update(slot, threads[slot].effectiveTickets);
+			}
 		}
+
+		/** The number of slots; always a power of two. */
+		private int capacity = 4;
+		/** The number of waiting threads, in slots 1 to <tt>size</tt>. */
+		private int size = 0;
+		/** The waiting thread in each slot. */
+		private Lotterythreadstate[] threads = new Lotterythreadstate[capacity + 1];
+		/** The Fenwick tree of the effective tickets in each slot. */
+		private long[] tickets = new long[capacity + 1];
+		/** The total effective tickets of the waiting threads. */
+		private long totalTickets = 0;
 	}
 
+	/**
+	 * The scheduling state of a thread in a lottery scheduler. A thread's
+	 * effective tickets are its own tickets plus the effective tickets of every
+	 * thread waiting on a queue it holds. They are kept up to date by passing
+	 * each change down the chain of holders, rather than by adding them up
+	 * when they are needed.
+	 */
 	protected class Lotterythreadstate extends ThreadState {
-
 		public Lotterythreadstate(KThread thread) {
 			super(thread);
-			// TODO Auto-generated constructor stub
+
+			priority = priorityDefault;
+			effectiveTickets = priorityDefault;
 		}
 
-		@Override
+		/**
+		 * Return the effective tickets of the associated thread, or
+		 * <tt>Integer.MAX_VALUE</tt> if there are more.
+		 */
 		public int getEffectivePriority() {
-			return this.getPriority() + thread.joinQueue.geteffpri();
+			return (int) Math.min(effectiveTickets, Integer.MAX_VALUE);
 		}
+
+		public void setPriority(int priority) {
+			if (this.priority == priority)
+				return;
+
+			long delta = (long) priority - this.priority;
+			this.priority = priority;
+			addTickets(delta);
+		}
+
+		public void waitForAccess(PriorityQueue waitQueue) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			Lib.assertTrue(this.waitQueue == null);
+
+			this.waitQueue = waitQueue;
+			waitQueue.add(this);
+		}
+
+		/**
+		 * Add <tt>delta</tt> to the effective tickets of this thread, and to
+		 * those of every thread it is donating them to. If the threads are
+		 * deadlocked, the chain of holders ends in a cycle; the walk stops when
+		 * it comes back to a thread it has already updated.
+		 */
+		void addTickets(long delta) {
+			long walk = ++numWalks;
+
+			Lotterythreadstate state = this;
+			while (delta != 0 && state != null && state.lastWalk != walk) {
+				state.lastWalk = walk;
+				state.effectiveTickets += delta;
+
+				LotteryQueue queue = (LotteryQueue) state.waitQueue;
+				if (queue == null)
+					break;
+
+				queue.update(state.slot, delta);
+				if (!queue.transferPriority)
+					break;
+
+				state = (Lotterythreadstate) queue.holder;
+			}
+		}
+
+		/** The effective tickets of the associated thread. */
+		protected long effectiveTickets;
+		/** The slot of the associated thread in the queue it is waiting on. */
+		private int slot = 0;
+		/** The last donation walk that updated this thread. */
+		private long lastWalk = 0;
 	}
 
+	/** The source of the winning tickets for every queue of this scheduler. */
+	private Random random = new Random(Config.getInteger("LotteryScheduler.seed", 0));
+	/** The number of donation walks so far. */
+	private long numWalks = 0;
+
 	/**
 	 * 功能 可以测试出 join()方法的加入 是否会有贡献优先级的事情发生 报告自己的优先级 等待另一个线程的结束 再次报告 自己结束
 	 *
@@ -242,4 +482,114 @@ public class LotteryScheduler extends PriorityScheduler {
 		t.join();
 	}
 
+	/**
+	 * Check ticket donation and the fairness of the draw with thousands of
+	 * threads holding millions of tickets, and time the queue operations. The
+	 * threads are never forked; the queues are driven directly, with the
+	 * holder of each lock in a chain waiting on the lock before it.
+	 */
+	public static void selfTest3() {
+		final int numThreads = 4096;
+		final int chainLength = 64;
+		final int maxTickets = 1000000;
+		final int numDraws = 1000000;
+
+		LotteryScheduler scheduler = (LotteryScheduler) ThreadedKernel.scheduler;
+		Random random = new Random(0);
+
+		boolean status = Machine.interrupt().disable();
+
+		LotteryQueue[] locks = new LotteryQueue[chainLength];
+		Lotterythreadstate[] holders = new Lotterythreadstate[chainLength];
+		for (int i = 0; i < chainLength; i++) {
+			locks[i] = (LotteryQueue) scheduler.newThreadQueue(true);
+			holders[i] = (Lotterythreadstate) scheduler.getThreadState(new KThread());
+			locks[i].acquire(holders[i].thread);
+			if (i > 0)
+				locks[i - 1].waitForAccess(holders[i].thread);
+		}
+
+		Lotterythreadstate[] waiters = new Lotterythreadstate[numThreads];
+		int[] lockOf = new int[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			waiters[i] = (Lotterythreadstate) scheduler.getThreadState(new KThread());
+			waiters[i].setPriority(1 + random.nextInt(maxTickets));
+			lockOf[i] = random.nextInt(chainLength);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < numThreads; i++)
+			locks[lockOf[i]].waitForAccess(waiters[i].thread);
+		long enqueueTime = System.nanoTime() - start;
+
+		checkChain(holders, waiters, lockOf);
+
+		start = System.nanoTime();
+		for (int i = 0; i < numThreads; i++)
+			waiters[random.nextInt(numThreads)].setPriority(1 + random.nextInt(maxTickets));
+		long donateTime = System.nanoTime() - start;
+
+		checkChain(holders, waiters, lockOf);
+
+		// every thread on the first lock should win in proportion to its
+		// effective tickets
+		LotteryQueue queue = locks[0];
+		java.util.HashMap<KThread, Integer> wins = new java.util.HashMap<KThread, Integer>();
+		start = System.nanoTime();
+		for (int i = 0; i < numDraws; i++) {
+			KThread winner = queue.pickNextThread();
+			Integer count = wins.get(winner);
+			wins.put(winner, count == null ? 1 : count + 1);
+		}
+		long drawTime = System.nanoTime() - start;
+
+		for (KThread thread : queue.getWaitingThreads()) {
+			double share = (double) ((Lotterythreadstate) scheduler.getThreadState(thread)).effectiveTickets
+					/ queue.totalTickets;
+			double expected = share * numDraws;
+			Integer count = wins.get(thread);
+			double actual = count == null ? 0 : count;
+			Lib.assertTrue(Math.abs(actual - expected) <= 6 * Math.sqrt(expected) + 1);
+		}
+
+		start = System.nanoTime();
+		for (int i = chainLength - 1; i >= 0; i--) {
+			boolean first = true;
+			while (locks[i].nextThread() != null) {
+				if (first) {
+					Lib.assertTrue(holders[i].effectiveTickets == holders[i].getPriority());
+					first = false;
+				}
+			}
+			Lib.assertTrue(locks[i].holder == null && locks[i].totalTickets == 0);
+		}
+		long dequeueTime = System.nanoTime() - start;
+
+		for (int i = 0; i < numThreads; i++)
+			Lib.assertTrue(waiters[i].effectiveTickets == waiters[i].getPriority());
+
+		Machine.interrupt().restore(status);
+
+		System.out.println("LotteryScheduler: " + numThreads + " threads on a chain of " + chainLength
+				+ " locks: waitForAccess " + enqueueTime / numThreads + " ns, setPriority "
+				+ donateTime / numThreads + " ns, draw " + drawTime / numDraws + " ns, nextThread "
+				+ dequeueTime / (numThreads + chainLength) + " ns");
+	}
+
+	/**
+	 * Check that the holder of each lock in a chain has its own tickets plus
+	 * those of every thread waiting on that lock or on a later one.
+	 */
+	private static void checkChain(Lotterythreadstate[] holders, Lotterythreadstate[] waiters, int[] lockOf) {
+		long[] donated = new long[holders.length];
+		for (int i = 0; i < waiters.length; i++)
+			donated[lockOf[i]] += waiters[i].getPriority();
+
+		long below = 0;
+		for (int i = holders.length - 1; i >= 0; i--) {
+			Lib.assertTrue(holders[i].effectiveTickets == holders[i].getPriority() + donated[i] + below);
+			below = holders[i].effectiveTickets;
+		}
+	}
+
 }
@@ -1,8 +1,9 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.Iterator;
+import java.util.Comparator;
 import java.util.LinkedList;
+import java.util.TreeSet;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -126,116 +127,171 @@ public class PriorityScheduler extends Scheduler {
 	}
 
 	/**
-	 * A <tt>ThreadQueue</tt> that sorts threads by priority. 每一个队列都可以理解为一个资源队列
+	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 *
+	 * <p>
+	 * Waiting threads are kept in one bucket per priority level, each ordered
+	 * by the time the thread started waiting, so choosing, adding and removing
+	 * a thread takes <i>O(log n)</i> time. A thread's bucket is chosen by its
+	 * cached effective priority, and the thread is moved when that changes.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
 			this.transferPriority = transferPriority;
 		}
 
-		/**
-		 * 将一个线程加入该队列是应该执行的操作 检查优先级是否高于holder，若高于进行优先级的传递
-		 */
 		public void waitForAccess(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// 获得当前线程的state
-			ThreadState ts = getThreadState(thread);
-			// 若当前有线程占用资源（holder执行占有资源或者正在执行的线程） 可以详细了解一下
-			if (holder != null) {
-				int priority = ts.getEffectivePriority();// 得到thread的有效优先级
-				int holderPriority = holder.getEffectivePriority();
-				if (holderPriority < priority) {// 若资源所有者的优先级更低，开始传递优先级
-					holder.setPriority(priority);// TODO 这个优先级能够被恢复嘛？
-				}
-			}
 
-			// 将线程加入到
-			ts.waitForAccess(this);// 为waitQueue队列，添加该线程
+			getThreadState(thread).waitForAccess(this);
 		}
 
-		// if a thread acquires a lock that no other threads are waiting for, it
-		// should call this method. 即当前运行的线程获得了其它线程都不需要的锁
 		public void acquire(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// getThreadState(thread).acquire(this);
-			/** zjt P1 T5 **/
-			// 重新设置该队列锁的持有者
-			holder = getThreadState(thread);
-			for (KThread t : waitQueue) {
-				// 更新队列中中的lockholder 转告等待队列中的线程的持有这是谁
-				getThreadState(t).acquire(this);
-			}
-			/** zjt P1 T5 **/
+
+			getThreadState(thread).acquire(this);
 		}
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			/** zjt P1 T5 **/
-			// 没有等待队列，返回空
-			if (waitQueue.isEmpty())
-				return null;
 
-			KThread firstThread = pickNextThread();
-			if (firstThread != null) {
-				// 将优先级最高的队列移出等待队列
-				waitQueue.remove(firstThread);
-				// 更新lockholder
-				acquire(getThreadState(firstThread).thread);
+			KThread thread = pickNextThread();
+			if (thread == null) {
+				// nobody else wants the resource, so nothing is donated to the
+				// old holder any more
+				setHolder(null);
+				return null;
 			}
 
-			return firstThread;
+			ThreadState state = getThreadState(thread);
+			remove(state);
+			state.waitQueue = null;
+			state.acquire(this);
 
+			return thread;
 		}
 
 		/**
 		 * Return the next thread that <tt>nextThread()</tt> would return, without
 		 * modifying the state of this queue.
 		 *
-		 * @return the next thread that <tt>nextThread()</tt> would return. 返回有效优先级最高的线程
+		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected KThread pickNextThread() {
-			/** zjt P1 T5 **/
-			KThread nextThread = null;
-			for (Iterator<KThread> ts = waitQueue.iterator(); ts.hasNext();) {
-				KThread thread = ts.next();
-				int priority = getThreadState(thread).getEffectivePriority();
-
-				if (nextThread == null || priority > getThreadState(nextThread).getEffectivePriority()) {
-					nextThread = thread;
+			int priority = getTopPriority();
+			if (priority < priorityMinimum)
+				return null;
+
+			return buckets[priority].first().thread;
+		}
+
+		/**
+		 * Return the highest effective priority of any thread waiting on this
+		 * queue.
+		 *
+		 * @return the highest effective priority of a waiting thread, or
+		 *         <tt>priorityMinimum - 1</tt> if no threads are waiting.
+		 */
+		protected int getTopPriority() {
+			if (size > 0) {
+				for (int priority = priorityMaximum; priority >= priorityMinimum; priority--) {
+					if (buckets[priority] != null && !buckets[priority].isEmpty())
+						return priority;
+				}
+			}
+
+			return priorityMinimum - 1;
+		}
+
+		/**
+		 * Return the threads waiting on this queue, highest effective priority
+		 * first and then in the order they started waiting.
+		 *
+		 * @return a new list of the waiting threads.
+		 */
+		protected LinkedList<KThread> getWaitingThreads() {
+			LinkedList<KThread> threads = new LinkedList<KThread>();
+
+			for (int priority = priorityMaximum; priority >= priorityMinimum; priority--) {
+				if (buckets[priority] != null) {
+					for (ThreadState state : buckets[priority])
+						threads.add(state.thread);
 				}
 			}
-			return nextThread;
-			/** zjt P1 T5 **/
+
+			return threads;
 		}
-		
+
+		/**
+		 * Add a waiting thread to the bucket for its effective priority.
+		 */
+		void add(ThreadState state) {
+			int priority = state.effectivePriority;
+			if (buckets[priority] == null)
+				buckets[priority] = new TreeSet<ThreadState>(waitOrder);
+
+			buckets[priority].add(state);
+			size++;
+		}
+
+		/**
+		 * Remove a waiting thread from the bucket for its effective priority.
+		 */
+		void remove(ThreadState state) {
+			boolean removed = buckets[state.effectivePriority].remove(state);
+			Lib.assertTrue(removed);
+			size--;
+		}
+
+		/**
+		 * Make the specified thread the holder of this queue. If this queue
+		 * transfers priority, the old holder loses whatever the waiting threads
+		 * donated to it, and the new holder gains it.
+		 */
+		void setHolder(ThreadState state) {
+			ThreadState oldHolder = holder;
+			holder = state;
+
+			if (!transferPriority || oldHolder == state)
+				return;
+
+			if (oldHolder != null) {
+				oldHolder.heldQueues.remove(this);
+				oldHolder.updateEffectivePriority();
+			}
+
+			if (state != null) {
+				state.heldQueues.add(this);
+				state.updateEffectivePriority();
+			}
+		}
+
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
-			for (Iterator<KThread> it = waitQueue.iterator(); it.hasNext();) {
-				KThread currentThread = it.next();
-				int priority = getThreadState(currentThread).getPriority();
-				System.out.print("Thread: " + currentThread + "\t  Priority: " + priority + "\n");
+
+			for (KThread thread : getWaitingThreads()) {
+				ThreadState state = getThreadState(thread);
+				System.out.print("Thread: " + thread + "\t  Priority: " + state.getPriority()
+						+ "\t  Effective: " + state.getEffectivePriority() + "\n");
 			}
-			System.out.println("holder:" + holder);
+			System.out.println("holder:" + (holder == null ? null : holder.thread));
 		}
 
 		/**
 		 * <tt>true</tt> if this queue should transfer priority from waiting threads to
-		 * the owning thread. 即是否使用优先级调度队列
+		 * the owning thread.
 		 */
 		public boolean transferPriority;
-		/** zjt for P1 T5 **/
-		/** 资源等待队列 **/
-		public LinkedList<KThread> waitQueue = new LinkedList<KThread>();
-		/** 持有资源的线程的ThreadState **/
+		/** The thread currently holding the resource, if any. */
 		protected ThreadState holder = null;
-		/** 优先级被更改时 **/
-		// private boolean dirty;
-		/** waitQueue中的最高优先级 当!dirty时 **/
-		protected int effectivePriority;
+		/** The waiting threads, indexed by effective priority. */
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		private TreeSet<ThreadState>[] buckets = new TreeSet[priorityMaximum + 1];
+		/** The number of waiting threads. */
+		private int size = 0;
+
 		@Override
 		public int geteffpri() {
-			// TODO Auto-generated method stub
 			return 0;
 		}
 	}
@@ -258,7 +314,8 @@ public class PriorityScheduler extends Scheduler {
 		public ThreadState(KThread thread) {
 			this.thread = thread;
 
-			setPriority(priorityDefault);// 默认优先级
+			priority = priorityDefault;
+			effectivePriority = priorityDefault;
 		}
 
 		/**
@@ -271,14 +328,14 @@ public class PriorityScheduler extends Scheduler {
 		}
 
 		/**
-		 * Return the effective priority of the associated thread.
+		 * Return the effective priority of the associated thread. This is kept up
+		 * to date as priorities change and as threads start and stop waiting, so
+		 * it is never recomputed here.
 		 *
-		 * @return
+		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			/** zjt for P1 T5 **/
-			return priority;
-			/** zjt for P1 T5 **/
+			return effectivePriority;
 		}
 
 		/**
@@ -290,16 +347,11 @@ public class PriorityScheduler extends Scheduler {
 		public void setPriority(int priority) {
 			if (this.priority == priority)
 				return;
-			/** zjt for P1 T5 **/
-			// 若是优先级队列(暂时默认是优先级队列)，且优先级增加，则需要进行优先级传递
-			if (this.priority < priority) {
-				this.priority = priority;
-				resetPriority();
-			} else
-				this.priority = priority;
-
-			/** zjt for P1 T5 **/
+
+			this.priority = priority;
+			updateEffectivePriority();
 		}
+
 		/**
 		 * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is the
 		 * associated thread) is invoked on the specified priority queue. The associated
@@ -310,14 +362,18 @@ public class PriorityScheduler extends Scheduler {
 		 * @param waitQueue
 		 *            the queue that the associated thread is now waiting on.
 		 *
-		 * @see nachos.threads.ThreadQueue#waitForAccess 将线程添加到队列中
+		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			/** zjt for P1 T5 **/
-			/** copied from RR **/
 			Lib.assertTrue(Machine.interrupt().disabled());
-			waitQueue.waitQueue.add(thread);
-			/** zjt for P1 T5 **/
+			Lib.assertTrue(this.waitQueue == null);
+
+			this.waitQueue = waitQueue;
+			waitSequence = numWaits++;
+			waitQueue.add(this);
+
+			if (waitQueue.transferPriority && waitQueue.holder != null)
+				waitQueue.holder.updateEffectivePriority();
 		}
 
 		/**
@@ -331,46 +387,67 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			/** zjt for P1 T5 **/
 			Lib.assertTrue(Machine.interrupt().disabled());
 
-			// 更新锁的持有者
-			lockHolder = waitQueue.holder;
-			/** zjt for P1 T5 **/
+			waitQueue.setHolder(this);
 		}
 
-		// 新增添的方法，用于传递优先级
-		protected void resetPriority() {
-			int priority = this.getEffectivePriority();// 获取自身优先级
-			// 我等的人是老大，我的优先级给他
-			if (ResourceIwanted != null && ResourceIwanted.getEffectivePriority() < priority) {
-				ResourceIwanted.setPriority(priority);
-			}
-			// 持有锁是老大,且不是正在执行的，我的优先级给他
-			if (lockHolder != null /* && lockHolder != KThread.currentThread() */
-					&& lockHolder.getEffectivePriority() < priority) {
-				lockHolder.setPriority(priority);
+		/**
+		 * Recompute the effective priority from this thread's own priority and
+		 * the threads waiting on the queues it holds. If it changed, move this
+		 * thread to the right bucket of the queue it is waiting on, and pass the
+		 * change on to the holder of that queue. Propagation stops at the first
+		 * thread whose effective priority does not change.
+		 */
+		protected void updateEffectivePriority() {
+			int effective = priority;
+			for (PriorityQueue queue : heldQueues)
+				effective = Math.max(effective, queue.getTopPriority());
+
+			if (effective == effectivePriority)
+				return;
+
+			if (waitQueue == null) {
+				effectivePriority = effective;
+				return;
 			}
+
+			waitQueue.remove(this);
+			effectivePriority = effective;
+			waitQueue.add(this);
+
+			if (waitQueue.transferPriority && waitQueue.holder != null)
+				waitQueue.holder.updateEffectivePriority();
 		}
 
 		/** The thread with which this object is associated. */
-		protected KThread thread;// 他爸爸
+		protected KThread thread;
 		/** The priority of the associated thread. */
 		protected int priority;
-		/** zjt for P1 T5 **/
-		/** 有效优先级 */
-		// private int effectivePriority;
-		/** 当优先级变化时 为true **/
-		// private boolean dirty = false;
-		/** 自己想要获得资源的线程 即自己正在等待的线程 **/
-		protected ThreadState ResourceIwanted;
-		/** 自己占有资源的线程队列 **/
-		// protected LinkedList<ThreadQueue> ResourceIhaved = new
-		// LinkedList<ThreadQueue>();
-		// 当前持有锁的线程
-		protected ThreadState lockHolder;
-		/** zjt for P1 T5 **/
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority;
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waitQueue = null;
+		/** The priority-transferring queues held by the associated thread. */
+		protected LinkedList<PriorityQueue> heldQueues = new LinkedList<PriorityQueue>();
+		/** Orders the threads in a bucket by when they started waiting. */
+		private long waitSequence;
 	}
+
+	/**
+	 * Orders threads by the time they started waiting on their queue.
+	 */
+	private Comparator<ThreadState> waitOrder = new Comparator<ThreadState>() {
+		public int compare(ThreadState s1, ThreadState s2) {
+			if (s1.waitSequence != s2.waitSequence)
+				return s1.waitSequence < s2.waitSequence ? -1 : 1;
+			else
+				return 0;
+		}
+	};
+
+	/** The number of times any thread has started waiting on a queue. */
+	private long numWaits = 0;
 	// /**
 	// * for 测试
 	// * @author zjtao
@@ -561,4 +638,162 @@ public class PriorityScheduler extends Scheduler {
 		t.join();
 	}
 
+	/**
+	 * Check priority donation and undonation under heavy contention, and time
+	 * the queue operations.
+	 *
+	 * <p>
+	 * The first part drives the queues directly with thousands of threads that
+	 * are never forked. The holder of each lock in a chain waits on the lock
+	 * before it, so a donation to any lock has to travel down the chain to the
+	 * holder of the first lock. The second part forks thousands of threads, a
+	 * batch at a time, with random priorities, all fighting over one lock.
+	 */
+	public static void selfTest3() {
+		final int numThreads = 4096;
+		final int chainLength = 64;
+		final int rounds = 8;
+
+		PriorityScheduler scheduler = (PriorityScheduler) ThreadedKernel.scheduler;
+		java.util.Random random = new java.util.Random(0);
+
+		boolean status = Machine.interrupt().disable();
+
+		for (int round = 0; round < rounds; round++) {
+			PriorityQueue[] locks = new PriorityQueue[chainLength];
+			ThreadState[] holders = new ThreadState[chainLength];
+			for (int i = 0; i < chainLength; i++) {
+				locks[i] = (PriorityQueue) scheduler.newThreadQueue(true);
+				holders[i] = scheduler.getThreadState(new KThread());
+				holders[i].setPriority(priorityMinimum);
+				locks[i].acquire(holders[i].thread);
+				if (i > 0)
+					locks[i - 1].waitForAccess(holders[i].thread);
+			}
+
+			ThreadState[] waiters = new ThreadState[numThreads];
+			int[] lockOf = new int[numThreads];
+			for (int i = 0; i < numThreads; i++) {
+				waiters[i] = scheduler.getThreadState(new KThread());
+				waiters[i].setPriority(random.nextInt(priorityMaximum + 1));
+				lockOf[i] = random.nextInt(chainLength);
+			}
+
+			long start = System.nanoTime();
+			for (int i = 0; i < numThreads; i++)
+				locks[lockOf[i]].waitForAccess(waiters[i].thread);
+			long enqueueTime = System.nanoTime() - start;
+
+			checkChain(holders, waiters, lockOf);
+
+			start = System.nanoTime();
+			for (int i = 0; i < numThreads; i++)
+				waiters[random.nextInt(numThreads)].setPriority(random.nextInt(priorityMaximum + 1));
+			long donateTime = System.nanoTime() - start;
+
+			checkChain(holders, waiters, lockOf);
+
+			// drain the locks from the end of the chain, so each holder only
+			// waits behind threads that are not donating anything any more
+			start = System.nanoTime();
+			for (int i = chainLength - 1; i >= 0; i--) {
+				int lastPriority = priorityMaximum + 1;
+				long lastSequence = -1;
+				boolean first = true;
+
+				while (true) {
+					KThread next = locks[i].pickNextThread();
+					if (next == null)
+						break;
+
+					ThreadState state = scheduler.getThreadState(next);
+					int priority = state.getEffectivePriority();
+					Lib.assertTrue(priority == locks[i].getTopPriority());
+					Lib.assertTrue(priority < lastPriority
+							|| (priority == lastPriority && state.waitSequence > lastSequence));
+					lastPriority = priority;
+					lastSequence = state.waitSequence;
+
+					Lib.assertTrue(locks[i].nextThread() == next);
+					if (first) {
+						// the old holder got nothing from anyone else
+						Lib.assertTrue(holders[i].getEffectivePriority() == priorityMinimum);
+						first = false;
+					}
+				}
+				Lib.assertTrue(locks[i].nextThread() == null && locks[i].holder == null);
+			}
+			long dequeueTime = System.nanoTime() - start;
+
+			for (int i = 0; i < numThreads; i++)
+				Lib.assertTrue(waiters[i].getEffectivePriority() == waiters[i].getPriority());
+
+			System.out.println("PriorityScheduler: " + numThreads + " threads on a chain of " + chainLength
+					+ " locks: waitForAccess " + enqueueTime / numThreads + " ns, setPriority "
+					+ donateTime / numThreads + " ns, nextThread " + dequeueTime / (numThreads + chainLength)
+					+ " ns");
+		}
+
+		Machine.interrupt().restore(status);
+
+		final int numForked = 2000;
+		final int batchSize = 200;
+		final int passes = 3;
+		final Lock lock = new Lock();
+		final int[] counts = new int[2];
+
+		long start = System.nanoTime();
+		for (int batch = 0; batch < numForked / batchSize; batch++) {
+			KThread[] threads = new KThread[batchSize];
+
+			for (int i = 0; i < batchSize; i++) {
+				threads[i] = new KThread(new Runnable() {
+					public void run() {
+						for (int j = 0; j < passes; j++) {
+							lock.acquire();
+							Lib.assertTrue(counts[0]++ == 0);
+							KThread.yield();
+							counts[0]--;
+							counts[1]++;
+							lock.release();
+						}
+					}
+				}).setName("contender " + (batch * batchSize + i));
+
+				status = Machine.interrupt().disable();
+				scheduler.setPriority(threads[i], random.nextInt(priorityMaximum + 1));
+				Machine.interrupt().restore(status);
+
+				threads[i].fork();
+			}
+
+			for (int i = 0; i < batchSize; i++)
+				threads[i].join();
+		}
+		Lib.assertTrue(counts[1] == numForked * passes);
+
+		System.out.println("PriorityScheduler: " + numForked + " forked threads took " + counts[1]
+				+ " turns at one lock in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	/**
+	 * Check that the holder of each lock in a chain has the highest priority of
+	 * any thread waiting on that lock or on a later one.
+	 */
+	private static void checkChain(ThreadState[] holders, ThreadState[] waiters, int[] lockOf) {
+		int[] highest = new int[holders.length];
+		for (int i = 0; i < holders.length; i++)
+			highest[i] = priorityMinimum;
+
+		for (int i = 0; i < waiters.length; i++)
+			highest[lockOf[i]] = Math.max(highest[lockOf[i]], waiters[i].getPriority());
+
+		for (int i = holders.length - 1; i >= 0; i--) {
+			if (i < holders.length - 1)
+				highest[i] = Math.max(highest[i], highest[i + 1]);
+
+			Lib.assertTrue(holders[i].getEffectivePriority() == highest[i]);
+		}
+	}
+
 }
@@ -60,11 +60,13 @@ public class ThreadedKernel extends Kernel {
 		/** zjt P1 T5 **/
 //		PriorityScheduler.selfTest();
 //		PriorityScheduler.selfTest2();
+//		PriorityScheduler.selfTest3();
 		/* zjt P1 T6 */
 		Boat.selfTest();
 //		
 //		LotteryScheduler.selfTest();
 //		LotteryScheduler.selfTest2();
+//		LotteryScheduler.selfTest3();
 //		Semaphore.selfTest();
 //		SynchList.selfTest();
 		
@@ -88,6 +90,10 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		// write back anything still held by the buffer cache
+		if (fileSystem instanceof CachedFileSystem)
+			((CachedFileSystem) fileSystem).flush();
+
 		Machine.halt();
 	}
 
@@ -0,0 +1,214 @@
+package nachos.userprog;
+
+import java.util.BitSet;
+
+import nachos.machine.*;
+
+/**
+ * The allocator of physical memory frames. Free frames are kept in a bitmap,
+ * so frames can be handed out in contiguous runs and a whole page table can
+ * be freed at once. Each operation runs with interrupts disabled rather than
+ * under a lock, since it never blocks.
+ */
+public class FrameAllocator {
+    /**
+     * Allocate a new frame allocator with every frame free.
+     *
+     * @param	numFrames	the number of physical frames.
+     */
+    public FrameAllocator(int numFrames) {
+	this.numFrames = numFrames;
+	free.set(0, numFrames);
+	numFree = numFrames;
+    }
+
+    /**
+     * Allocate one frame.
+     *
+     * @return	the frame, or -1 if no frame is free.
+     */
+    public int allocate() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int ppn = free.nextSetBit(0);
+	if (ppn != -1)
+	    take(ppn, 1);
+
+	Machine.interrupt().restore(intStatus);
+	return ppn;
+    }
+
+    /**
+     * Allocate a contiguous run of frames, using the first free run that is
+     * long enough.
+     *
+     * @param	count	the number of frames.
+     * @return	the first frame of the run, or -1 if no free run is long
+     *		enough.
+     */
+    public int allocateRun(int count) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int first = findRun(count);
+	if (first != -1)
+	    take(first, count);
+
+	Machine.interrupt().restore(intStatus);
+	return first;
+    }
+
+    /**
+     * Allocate the specified number of frames, either all or none of them.
+     * The frames are contiguous if there is a free run long enough, and
+     * otherwise are the lowest free frames.
+     *
+     * @param	ppns	the array to store the frames in.
+     * @param	count	the number of frames.
+     * @return	<tt>true</tt> if the frames were allocated.
+     */
+    public boolean allocate(int[] ppns, int count) {
+	Lib.assertTrue(count >= 0 && count <= ppns.length);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (count > numFree) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	int first = findRun(count);
+	if (first != -1) {
+	    take(first, count);
+	    for (int i=0; i<count; i++)
+		ppns[i] = first+i;
+	}
+	else {
+	    int ppn = -1;
+	    for (int i=0; i<count; i++) {
+		ppn = free.nextSetBit(ppn+1);
+		ppns[i] = ppn;
+		take(ppn, 1);
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Free one frame.
+     *
+     * @param	ppn	the frame to free.
+     */
+    public void free(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	release(ppn);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Free the frame of every valid entry in a page table.
+     *
+     * @param	pageTable	the page table whose frames to free.
+     */
+    public void free(TranslationEntry[] pageTable) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<pageTable.length; i++) {
+	    if (pageTable[i] != null && pageTable[i].valid)
+		release(pageTable[i].ppn);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the number of free frames.
+     *
+     * @return	the number of free frames.
+     */
+    public int getNumFree() {
+	return numFree;
+    }
+
+    /**
+     * Return the most frames that have been in use at once.
+     *
+     * @return	the high-water mark of frames in use.
+     */
+    public int getHighWater() {
+	return highWater;
+    }
+
+    /**
+     * Return the number of separate runs the free frames are split into.
+     *
+     * @return	the number of free runs.
+     */
+    public int getNumFreeRuns() {
+	int runs = 0;
+	for (int ppn=free.nextSetBit(0); ppn!=-1;
+	     ppn=free.nextSetBit(free.nextClearBit(ppn)))
+	    runs++;
+
+	return runs;
+    }
+
+    /**
+     * Return the length of the longest run of free frames.
+     *
+     * @return	the longest free run.
+     */
+    public int getLargestFreeRun() {
+	int largest = 0;
+	for (int ppn=free.nextSetBit(0); ppn!=-1; ) {
+	    int end = free.nextClearBit(ppn);
+	    largest = Math.max(largest, end-ppn);
+	    ppn = free.nextSetBit(end);
+	}
+
+	return largest;
+    }
+
+    public String toString() {
+	return "frames: " + numFree + "/" + numFrames + " free in "
+	    + getNumFreeRuns() + " runs (largest " + getLargestFreeRun()
+	    + "), high-water " + highWater;
+    }
+
+    private int findRun(int count) {
+	int first = 0;
+	while (true) {
+	    first = free.nextSetBit(first);
+	    if (first == -1)
+		return -1;
+
+	    int end = free.nextClearBit(first);
+	    if (end - first >= count)
+		return first;
+
+	    first = end;
+	}
+    }
+
+    private void take(int first, int count) {
+	free.clear(first, first+count);
+	numFree -= count;
+	highWater = Math.max(highWater, numFrames-numFree);
+    }
+
+    private void release(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numFrames && !free.get(ppn));
+
+	free.set(ppn);
+	numFree++;
+    }
+
+    private int numFrames;
+    /** The free frames. */
+    private BitSet free = new BitSet();
+    private int numFree;
+    private int highWater = 0;
+}
@@ -0,0 +1,86 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A list of spans of physical memory, each given by its offset in the array
+ * returned by <tt>Processor.getMemory()</tt> and its length. Filled in by
+ * <tt>UserProcess.getSpans()</tt>, so that a range of virtual memory can be
+ * transferred to or from a file directly, without a temporary buffer. A span
+ * that starts where the last one ends is merged into it.
+ */
+public class MemorySpans {
+    /**
+     * Allocate a new, empty list of spans.
+     */
+    public MemorySpans() {
+    }
+
+    /**
+     * Remove every span.
+     */
+    public void clear() {
+	count = 0;
+    }
+
+    /**
+     * Add a span to the end of the list.
+     *
+     * @param	offset	the offset of the span in physical memory.
+     * @param	length	the length of the span.
+     */
+    public void add(int offset, int length) {
+	if (count > 0 && offsets[count-1] + lengths[count-1] == offset) {
+	    lengths[count-1] += length;
+	    return;
+	}
+
+	if (count == offsets.length) {
+	    int[] newOffsets = new int[count*2];
+	    int[] newLengths = new int[count*2];
+	    System.arraycopy(offsets, 0, newOffsets, 0, count);
+	    System.arraycopy(lengths, 0, newLengths, 0, count);
+	    offsets = newOffsets;
+	    lengths = newLengths;
+	}
+
+	offsets[count] = offset;
+	lengths[count] = length;
+	count++;
+    }
+
+    /**
+     * Return the number of spans.
+     *
+     * @return	the number of spans.
+     */
+    public int getCount() {
+	return count;
+    }
+
+    /**
+     * Return the offset of a span in physical memory.
+     *
+     * @param	i	the index of the span.
+     * @return	the offset of the span.
+     */
+    public int getOffset(int i) {
+	Lib.assertTrue(i >= 0 && i < count);
+	return offsets[i];
+    }
+
+    /**
+     * Return the length of a span.
+     *
+     * @param	i	the index of the span.
+     * @return	the length of the span.
+     */
+    public int getLength(int i) {
+	Lib.assertTrue(i >= 0 && i < count);
+	return lengths[i];
+    }
+
+    private int count = 0;
+    private int[] offsets = new int[4];
+    private int[] lengths = new int[4];
+}
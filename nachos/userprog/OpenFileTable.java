@@ -0,0 +1,126 @@
+package nachos.userprog;
+
+import java.util.HashMap;
+
+import nachos.machine.*;
+
+/**
+ * The files user processes have open, shared by every process. Each file
+ * open through a process has an entry, found by name through a hash table,
+ * holding the number of times it is open and whether it has been unlinked.
+ * An unlinked file cannot be opened again, and is removed from the file
+ * system when it is last closed.
+ *
+ * <p>
+ * Each operation runs with interrupts disabled rather than under a lock,
+ * since it never blocks; the file system is used by the caller, outside the
+ * table.
+ */
+public class OpenFileTable {
+    /**
+     * Allocate a new, empty open file table.
+     */
+    public OpenFileTable() {
+    }
+
+    /**
+     * Count a file as open, before it is opened on the file system. If the
+     * open then fails, the caller must call <tt>release()</tt>.
+     *
+     * @param	name	the name of the file.
+     * @return	<tt>true</tt> if the file may be opened, or <tt>false</tt> if
+     *		it has been unlinked.
+     */
+    public boolean reference(String name) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Entry entry = entries.get(name);
+	if (entry == null) {
+	    entry = new Entry();
+	    entries.put(name, entry);
+	}
+
+	boolean allowed = !entry.unlinked;
+	if (allowed)
+	    entry.count++;
+
+	Machine.interrupt().restore(intStatus);
+	return allowed;
+    }
+
+    /**
+     * Count a file as closed.
+     *
+     * @param	name	the name of the file.
+     * @return	<tt>true</tt> if this was the last reference to an unlinked
+     *		file, which the caller must now remove from the file system
+     *		and then call <tt>removed()</tt>.
+     */
+    public boolean release(String name) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Entry entry = entries.get(name);
+	Lib.assertTrue(entry != null && entry.count > 0);
+
+	boolean remove = false;
+	if (--entry.count == 0) {
+	    if (entry.unlinked)
+		remove = true;
+	    else
+		entries.remove(name);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return remove;
+    }
+
+    /**
+     * Unlink a file. The file cannot be opened again until it has been
+     * removed.
+     *
+     * @param	name	the name of the file.
+     * @return	<tt>true</tt> if the file is not open, so that the caller must
+     *		remove it from the file system now and then call
+     *		<tt>removed()</tt>; <tt>false</tt> if it will be removed when
+     *		it is last closed.
+     */
+    public boolean unlink(String name) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Entry entry = entries.get(name);
+	if (entry == null) {
+	    entry = new Entry();
+	    entries.put(name, entry);
+	}
+
+	boolean removeNow = (entry.count == 0 && !entry.unlinked);
+	entry.unlinked = true;
+
+	Machine.interrupt().restore(intStatus);
+	return removeNow;
+    }
+
+    /**
+     * Forget an unlinked file once it has been removed from the file system,
+     * so that a new file with the same name can be created.
+     *
+     * @param	name	the name of the file.
+     */
+    public void removed(String name) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Entry entry = entries.remove(name);
+	Lib.assertTrue(entry != null && entry.unlinked && entry.count == 0);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private static class Entry {
+	/** The number of times the file is open. */
+	int count = 0;
+	/** Whether the file has been unlinked. */
+	boolean unlinked = false;
+    }
+
+    private HashMap<String, Entry> entries = new HashMap<String, Entry>();
+}
@@ -7,16 +7,34 @@ import nachos.userprog.*;
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * Bytes pass through a ring buffer in each direction, so that threads do not
+ * wait for the console one byte at a time. The interrupt handlers move bytes
+ * between the rings and the console as fast as it can take them: a writer
+ * copies a whole buffer into the output ring and returns, sleeping only while
+ * the ring is full, and bytes received are kept in the input ring until they
+ * are read.
+ *
+ * <p>
+ * In line-buffered mode, bytes received only become available to readers
+ * when a newline arrives, or the input ring fills up; in raw mode they are
+ * available at once. The console does no editing or echoing in either mode;
+ * user programs such as the shell do their own.
  */
 public class SynchConsole {
     /**
-     * Allocate a new <tt>SynchConsole</tt>.
+     * Allocate a new <tt>SynchConsole</tt>, in line-buffered mode if the
+     * <tt>SynchConsole.lineBuffered</tt> key is <tt>true</tt>, or raw mode
+     * otherwise.
      *
      * @param	console	the underlying serial console to use.
      */
     public SynchConsole(SerialConsole console) {
 	this.console = console;
-	
+
+	lineBuffered = Config.getBoolean("SynchConsole.lineBuffered", false);
+
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
 	};
@@ -26,6 +44,22 @@ public class SynchConsole {
 	console.setInterruptHandlers(receiveHandler, sendHandler);
     }
 
+    /**
+     * Select line-buffered or raw mode.
+     *
+     * @param	lineBuffered	<tt>true</tt> to make bytes received available
+     *				a line at a time.
+     */
+    public void setLineBuffered(boolean lineBuffered) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	this.lineBuffered = lineBuffered;
+	if (!lineBuffered)
+	    makeReady();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * Return the next unsigned byte received (in the range <tt>0</tt> through
      * <tt>255</tt>). If a byte has not arrived at, blocks until a byte
@@ -37,24 +71,55 @@ public class SynchConsole {
      *		and no byte was available.
      */
     public int readByte(boolean block) {
-	int value;
-	boolean intStatus = Machine.interrupt().disable();	
+	byte[] buf = new byte[1];
+	if (read(buf, 0, 1, block) == 0)
+	    return -1;
+
+	return buf[0] & 0xFF;
+    }
+
+    /**
+     * Read the bytes available, up to <i>length</i> of them. If none are
+     * available, blocks until some arrive, or returns immediately, depending
+     * on the value of <i>block</i>.
+     *
+     * @param	buf	the buffer to store the bytes in.
+     * @param	offset	the offset in the buffer.
+     * @param	length	the most bytes to read.
+     * @param	block	<tt>true</tt> if <tt>read()</tt> should wait for a
+     *			byte if none is available.
+     * @return	the number of bytes read.
+     */
+    public int read(byte[] buf, int offset, int length, boolean block) {
+	if (length <= 0)
+	    return 0;
+
 	readLock.acquire();
+	boolean intStatus = Machine.interrupt().disable();
 
-	if (block || charAvailable) {
-	    charAvailable = false;
+	while (block && inReady == 0) {
+	    readerWaiting = true;
 	    readWait.P();
+	}
 
-	    value = console.readByte();
-	    Lib.assertTrue(value != -1);
+	int amount = Math.min(length, inReady);
+	for (int i=0; i<amount; i++) {
+	    buf[offset+i] = inRing[inHead];
+	    inHead = (inHead+1) % bufferSize;
 	}
-	else {
-	    value = -1;
+	inCount -= amount;
+	inReady -= amount;
+
+	// the console holds a byte back while the ring is full
+	if (amount > 0 && receivePending) {
+	    receivePending = false;
+	    receiveByte();
 	}
 
-	readLock.release();
 	Machine.interrupt().restore(intStatus);
-	return value;
+	readLock.release();
+
+	return amount;
     }
 
     /**
@@ -67,19 +132,90 @@ public class SynchConsole {
     }
 
     private void receiveInterrupt() {
-	charAvailable = true;
-	readWait.V();
+	if (inCount == bufferSize)
+	    receivePending = true;
+	else
+	    receiveByte();
+    }
+
+    private void receiveByte() {
+	int value = console.readByte();
+	Lib.assertTrue(value != -1);
+
+	inRing[(inHead+inCount) % bufferSize] = (byte) value;
+	inCount++;
+
+	// in line-buffered mode, a newline ends a line, so every byte received
+	// so far is part of a whole line
+	if (!lineBuffered || value == '\n' || inCount == bufferSize)
+	    makeReady();
+    }
+
+    private void makeReady() {
+	inReady = inCount;
+
+	if (readerWaiting && inReady > 0) {
+	    readerWaiting = false;
+	    readWait.V();
+	}
     }
 
     /**
-     * Send a byte. Blocks until the send is complete.
+     * Send a byte. Returns once the byte is queued to be sent.
      *
      * @param	value	the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value) {
+	write(new byte[] { (byte) value }, 0, 1);
+    }
+
+    /**
+     * Send a buffer of bytes. Returns once they are all queued to be sent,
+     * waiting only while the output ring is full. The bytes are sent in
+     * order, without bytes from other writers among them.
+     *
+     * @param	buf	the buffer holding the bytes.
+     * @param	offset	the offset in the buffer.
+     * @param	length	the number of bytes to send.
+     */
+    public void write(byte[] buf, int offset, int length) {
+	writeLock.acquire();
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (length > 0) {
+	    while (outCount == bufferSize) {
+		writerWaiting = true;
+		writeWait.P();
+	    }
+
+	    int amount = Math.min(length, bufferSize-outCount);
+	    for (int i=0; i<amount; i++)
+		outRing[(outHead+outCount+i) % bufferSize] = buf[offset+i];
+	    outCount += amount;
+	    offset += amount;
+	    length -= amount;
+
+	    if (!sending)
+		sendByte();
+	}
+
+	Machine.interrupt().restore(intStatus);
+	writeLock.release();
+    }
+
+    /**
+     * Wait until every byte queued has been sent.
+     */
+    public void flush() {
 	writeLock.acquire();
-	console.writeByte(value);
-	writeWait.P();
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (sending) {
+	    writerWaiting = true;
+	    writeWait.P();
+	}
+
+	Machine.interrupt().restore(intStatus);
 	writeLock.release();
     }
 
@@ -92,26 +228,64 @@ public class SynchConsole {
 	return new File(false, true);
     }
 
+    private void sendByte() {
+	sending = true;
+	console.writeByte(outRing[outHead]);
+	outHead = (outHead+1) % bufferSize;
+	outCount--;
+    }
+
     private void sendInterrupt() {
-	writeWait.V();
+	if (outCount > 0)
+	    sendByte();
+	else
+	    sending = false;
+
+	// let a waiting writer refill the ring a half at a time, rather than
+	// a byte at a time
+	if (writerWaiting && (outCount <= bufferSize/2 || !sending)) {
+	    writerWaiting = false;
+	    writeWait.V();
+	}
     }
 
-    private boolean charAvailable = false;
+    private static final int bufferSize = 1024;
 
     private SerialConsole console;
+    private boolean lineBuffered;
     private Lock readLock = new Lock();
     private Lock writeLock = new Lock();
     private Semaphore readWait = new Semaphore(0);
     private Semaphore writeWait = new Semaphore(0);
 
+    private byte[] inRing = new byte[bufferSize];
+    /** The first byte received but not yet read. */
+    private int inHead = 0;
+    /** The number of bytes received but not yet read. */
+    private int inCount = 0;
+    /** The number of bytes readers may take. */
+    private int inReady = 0;
+    /** Whether the console holds a byte that did not fit in the ring. */
+    private boolean receivePending = false;
+    private boolean readerWaiting = false;
+
+    private byte[] outRing = new byte[bufferSize];
+    /** The next byte to send. */
+    private int outHead = 0;
+    /** The number of bytes waiting to be sent. */
+    private int outCount = 0;
+    /** Whether the console is sending a byte. */
+    private boolean sending = false;
+    private boolean writerWaiting = false;
+
     private class File extends OpenFile {
 	File(boolean canRead, boolean canWrite) {
 	    super(null, "SynchConsole");
-	    
+
 	    this.canRead = canRead;
 	    this.canWrite = canWrite;
 	}
-	
+
 	public void close() {
 	    canRead = canWrite = false;
 	}
@@ -120,25 +294,14 @@ public class SynchConsole {
 	    if (!canRead)
 		return 0;
 
-	    int i;
-	    for (i=0; i<length; i++) {
-		int value = SynchConsole.this.readByte(false);
-		if (value == -1)
-		    break;
-		
-		buf[offset+i] = (byte) value;
-	    }
-
-	    return i;
+	    return SynchConsole.this.read(buf, offset, length, false);
 	}
 
 	public int write(byte[] buf, int offset, int length) {
 	    if (!canWrite)
 		return 0;
-	    
-	    for (int i=0; i<length; i++)
-		SynchConsole.this.writeByte(buf[offset+i]);
-	    
+
+	    SynchConsole.this.write(buf, offset, length);
 	    return length;
 	}
 
@@ -1,7 +1,5 @@
 package nachos.userprog;
 
-import java.util.LinkedList;
-
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -16,9 +14,9 @@ public class UserKernel extends ThreadedKernel {
     public UserKernel() {
 	super();
 	//初始化， 所有页表均为空闲页表
-	int num = Machine.processor().getNumPhysPages();
-	for(int i=0;i<num;i++)
-		freePage.add(i);
+	frameAllocator =
+	    new FrameAllocator(Machine.processor().getNumPhysPages());
+	openFileTable = new OpenFileTable();
     }
 
     /**
@@ -33,7 +31,6 @@ public class UserKernel extends ThreadedKernel {
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
 	    });
-	lock = new Lock();				 //页表资源的分配
     }
     
 
@@ -113,6 +110,11 @@ public class UserKernel extends ThreadedKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	Lib.debug(dbgProcess, frameAllocator.toString());
+
+	// send any output still in the console's buffer
+	console.flush();
+
 	super.terminate();
     }
 
@@ -123,6 +125,10 @@ public class UserKernel extends ThreadedKernel {
     private static Coff dummy1 = null;
     
     // zjt
-    public static LinkedList<Integer> freePage= new LinkedList<Integer>();//管理空闲页表
-    static Lock lock;//实现多线程的资源互斥
+    /** The free physical frames. */
+    public static FrameAllocator frameAllocator;
+    /** The files user processes have open. */
+    public static OpenFileTable openFileTable;
+
+    private static final char dbgProcess = 'a';
 }
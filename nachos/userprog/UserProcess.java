@@ -38,6 +38,7 @@ public class UserProcess {
 		// 设置标准输入输出
 		this.openfile[0] = UserKernel.console.openForReading();
 		this.openfile[1] = UserKernel.console.openForWriting();
+		usedFds = 0x3;
 
 		pidlock.acquire();
 		pid = Staticpid++;
@@ -242,6 +243,124 @@ public class UserProcess {
 		return writebyte;
 	}
 
+	/**
+	 * Return the file a file descriptor refers to.
+	 *
+	 * @param fd
+	 *            the file descriptor.
+	 * @return the open file, or <tt>null</tt> if the descriptor is not in use.
+	 */
+	protected OpenFile getOpenFile(int fd) {
+		if (fd < 0 || fd >= openfile.length)
+			return null;
+		return openfile[fd];
+	}
+
+	/**
+	 * Find the physical memory holding a range of this process's virtual memory, so
+	 * that it can be transferred to or from a file without copying it through a
+	 * temporary buffer. Pages in neighbouring frames share a span. Stops at the
+	 * first read-only page if the memory is to be written. Every call must be
+	 * followed by <tt>releaseSpans()</tt> once the transfer is done.
+	 *
+	 * @param vaddr
+	 *            the first byte of virtual memory.
+	 * @param length
+	 *            the number of bytes.
+	 * @param write
+	 *            <tt>true</tt> if the memory is to be written to.
+	 * @param spans
+	 *            the list to fill in with the physical spans.
+	 * @return the number of bytes the spans cover, which may be less than
+	 *         <i>length</i>.
+	 */
+	protected int getSpans(int vaddr, int length, boolean write, MemorySpans spans) {
+		spans.clear();
+
+		if (vaddr < 0 || length < 0 || vaddr >= pageSize * numPages)
+			return 0;
+
+		length = Math.min(length, pageSize * numPages - vaddr);
+
+		int amount = 0;
+		while (amount < length) {
+			int vpn = Processor.pageFromAddress(vaddr + amount);
+			int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+			int pageAmount = Math.min(pageSize - pageOffset, length - amount);
+
+			if (write && pageTable[vpn].readOnly)
+				break;
+
+			spans.add(pageTable[vpn].ppn * pageSize + pageOffset, pageAmount);
+			amount += pageAmount;
+		}
+
+		return amount;
+	}
+
+	/**
+	 * Release the physical memory found by <tt>getSpans()</tt>.
+	 *
+	 * @param spans
+	 *            the spans to release.
+	 */
+	protected void releaseSpans(MemorySpans spans) {
+	}
+
+	/**
+	 * Transfer data between an open file and this process's virtual memory, reading
+	 * or writing the file directly into or out of physical memory.
+	 *
+	 * @param file
+	 *            the file to transfer to or from.
+	 * @param vaddr
+	 *            the first byte of virtual memory.
+	 * @param length
+	 *            the number of bytes to transfer.
+	 * @param toMemory
+	 *            <tt>true</tt> to read the file into memory, <tt>false</tt> to
+	 *            write memory to the file.
+	 * @return the number of bytes transferred, or -1 if the file reported an error
+	 *         before anything was transferred.
+	 */
+	private int transferFile(OpenFile file, int vaddr, int length, boolean toMemory) {
+		byte[] memory = Machine.processor().getMemory();
+
+		int total = 0;
+		while (total < length) {
+			if (getSpans(vaddr + total, length - total, toMemory, spans) == 0) {
+				releaseSpans(spans);
+				break;
+			}
+
+			// a short transfer means the file has no more to give or take
+			boolean done = false;
+			for (int i = 0; i < spans.getCount() && !done; i++) {
+				int spanLength = spans.getLength(i);
+				int count;
+				if (toMemory)
+					count = file.read(memory, spans.getOffset(i), spanLength);
+				else
+					count = file.write(memory, spans.getOffset(i), spanLength);
+
+				if (count < 0) {
+					releaseSpans(spans);
+					return total > 0 ? total : -1;
+				}
+
+				total += count;
+				done = count < spanLength;
+			}
+
+			releaseSpans(spans);
+
+			if (done)
+				break;
+		}
+
+		return total;
+	}
+
 	/**
 	 * Load the executable with the specified name into this process, and prepare to
 	 * pass it the specified arguments. Opens the executable, reads its header
@@ -339,21 +458,17 @@ public class UserProcess {
 	 */
 	// zjt 分配页表
 	protected boolean loadSections() {
-		// 多线程，加锁
-		UserKernel.lock.acquire();
 		// 所需大于空闲页表的需要 其中numpages的值由load()方法确定 现在开辟空间
-		if (numPages > UserKernel.freePage.size()) {
+		int[] ppns = new int[numPages];
+		if (!UserKernel.frameAllocator.allocate(ppns, numPages)) {
 			coff.close();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
 			return false;
 		}
 		// 初始化创建页表
 		pageTable = new TranslationEntry[numPages];
-		for (int i = 0; i < numPages; i++) { // 从全局空闲页表中拿出一页，进行分配
-			int ppn = UserKernel.freePage.remove();
-			pageTable[i] = new TranslationEntry(i, ppn, true, false, false, false);
-		}
-		UserKernel.lock.release();
+		for (int i = 0; i < numPages; i++)
+			pageTable[i] = new TranslationEntry(i, ppns[i], true, false, false, false);
 
 		// load sections
 		for (int s = 0; s < coff.getNumSections(); s++) {
@@ -376,10 +491,7 @@ public class UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		UserKernel.lock.acquire();
-		for (int i = 0; i < numPages; i++)
-			UserKernel.freePage.add(pageTable[i].ppn);
-		UserKernel.lock.release();
+		UserKernel.frameAllocator.free(pageTable);
 	}
 
 	/**
@@ -411,9 +523,10 @@ public class UserProcess {
 	private int handleHalt() {
 
 		// 判断是否是root进程 TODO
-		Machine.halt();
+		// 由内核送出控制台输出、写回缓存后停机
+		Kernel.kernel.terminate();
 
-		Lib.assertNotReached("Machine.halt() did not halt machine!");
+		Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 		return 0;
 	}
 
@@ -544,7 +657,7 @@ public class UserProcess {
 	}
 
 	// 线程退出
-	private int handleExit(int status) {
+	protected int handleExit(int status) {
 		coff.close();
 		for (int i = 0; i < openfile.length; i++) {
 			if (openfile[i] != null)
@@ -644,23 +757,10 @@ public class UserProcess {
 	 * @return
 	 */
 	private int handleWrite(int fd, int buffer, int size) {
-		if (fd < 0 || fd >= openfile.length || openfile[fd] == null)
-			return -1;
-		// 读取内存
-		byte buffer_temp[] = new byte[size];
-
-		int len = readVirtualMemory(buffer, buffer_temp);
-		// 数量小于0，出错
-		if (len < 0)
+		if (fd < 0 || fd >= openfile.length || openfile[fd] == null || size < 0)
 			return -1;
-
-		// 调用文件系统的read方法
-		int writeCount = openfile[fd].write(buffer_temp, 0, len);
-		// 数量小于0，出错
-		if (writeCount < 0)
-			return -1;
-		// 返回写入的长度
-		return writeCount;
+		// 直接从物理内存写入文件，不经过临时缓存
+		return transferFile(openfile[fd], buffer, size, false);
 	}
 
 	/**
@@ -675,22 +775,10 @@ public class UserProcess {
 	 * @return 返回写入虚拟内存中的真实大小
 	 */
 	private int handleRead(int fd, int buffer, int size) { // 判断文件是否真的存在
-		if (fd < 0 || fd >= openfile.length || openfile[fd] == null)
-			return -1;
-		// 创建临时缓存
-		byte buffer_temp[] = new byte[size];
-		// 调用文件系统的read方法
-		int readCount = openfile[fd].read(buffer_temp, 0, size);
-		// 数量小于0，出错
-		if (readCount < 0)
+		if (fd < 0 || fd >= openfile.length || openfile[fd] == null || size < 0)
 			return -1;
-		// 写入虚拟内存 位置 内容 起始位置 长度
-		int writeCount = writeVirtualMemory(buffer, buffer_temp, 0, readCount);
-		// 数量小于0，出错
-		if (writeCount < 0)
-			return -1;
-		// 返回数量
-		return writeCount;//返回的是写入的数据长度
+		// 直接读入物理内存，不经过临时缓存
+		return transferFile(openfile[fd], buffer, size, true);//返回的是写入的数据长度
 	}
 
 	/**
@@ -700,39 +788,28 @@ public class UserProcess {
 	 *            文件描述符
 	 * @return
 	 */
-	private int handleClose(int fd) {
+	protected int handleClose(int fd) {
 		// 检查文件的合法性
 		if (fd < 0 || fd >= openfile.length || openfile[fd] == null)
 			return -1;
-		// 获取文件名称
-		String filename = openfile[fd].getName();
+		OpenFile file = openfile[fd];
 		// 调用内核关闭 没有返回
-		openfile[fd].close();
+		file.close();
 		openfile[fd] = null;
-
-		// 维护文件列表
-		lock.acquire();
-		for (int i = 0; i < fileCounts.size(); i++) {
-			FileCount temp = fileCounts.get(i);
-			if (temp.filename.equals(filename)) {
-				temp.count--;// 打开数量减一
-				if (temp.count == 0)// 打开数量为零，从文件打开表中删除
-				{
-					fileCounts.remove(i);
-					// 若该文件已经被调用unlink，而自己是最后一个关闭它的进程，故应该删除
-					if (unlinkFiles.contains(filename))
-						if (!ThreadedKernel.fileSystem.remove(filename)) {
-							lock.release();
-							// 文件已将被删除 所以文件关闭失败
-							return -1;
-						}
-				}
-				break;
-			}
+		usedFds &= ~(1 << fd);
+		if (file.getFileSystem() != null)
+			fileMayChange(file.getName());
+
+		// 维护文件列表 控制台不在表中
+		if (file.getFileSystem() != null
+				&& UserKernel.openFileTable.release(file.getName())) {
+			// 若该文件已经被调用unlink，而自己是最后一个关闭它的进程，故应该删除
+			boolean removed = ThreadedKernel.fileSystem.remove(file.getName());
+			UserKernel.openFileTable.removed(file.getName());
+			if (!removed)
+				return -1;
 		}
-		lock.release();
 		return 0;
-
 	}
 
 	/**
@@ -754,21 +831,13 @@ public class UserProcess {
 	 * @return
 	 */
 	private int unlink(String filename) {
-		// 寻找文件的标志符 在打开文件中关闭该文件 但该文件不一定处于打开状态
-		lock.acquire();
-		for (int i = 0; i < fileCounts.size(); i++) {
-			if (fileCounts.get(i).filename.equals(filename)) {
-				if (!unlinkFiles.contains(filename))
-					unlinkFiles.add(filename);
-				// if(fileCounts.get(i).count==0)//如果文件直接被删除
-				lock.release();
-				return 0;
-			}
-		}
-		lock.release();
-//		if (ThreadedKernel.fileSystem.remove(filename))
-//			return 0;
-		return -1;// 没有找到该文件出错
+		fileMayChange(filename);
+		// 文件仍被打开时，等最后一个进程关闭它时再删除
+		if (!UserKernel.openFileTable.unlink(filename))
+			return 0;
+		boolean removed = ThreadedKernel.fileSystem.remove(filename);
+		UserKernel.openFileTable.removed(filename);
+		return removed ? 0 : -1;
 	}
 
 	/**
@@ -779,94 +848,87 @@ public class UserProcess {
 	 * @return 文件的位置 在数组中的下标
 	 */
 	private int open(String filename) {
-		lock.acquire();// 申请锁，检查该文件是否在等待被删除的队列中 若是文件没有权限打开
-		boolean isUnlink = unlinkFiles.contains(filename);
-		lock.release();
-		if (isUnlink)
-			return -1;
-		// 寻找一个空的文件描述符存储位置
-		int fileDescriptor = findEmptyOpenFile();
-		// 找不到，返回-1
-		if (fileDescriptor == -1)
-			return -1;
-		// 调用文件系统的open方法，若文件没有，不主动进行创建
-		openfile[fileDescriptor] = ThreadedKernel.fileSystem.open(filename, false);
-		// 打开文件失败，返回-1
-		if (openfile[fileDescriptor] == null)
-			return -1;
-		else// 关联文件，记录该文件已经被打开了
-		{
-			boolean found = false;
-			lock.acquire();// 申请锁，查看该文件是否已被打开
-			for (int i = 0; i < fileCounts.size(); i++) {
-				FileCount temp = fileCounts.get(i);
-				if (temp.filename.equals(filename)) { // 已被打开，打开数+1
-					temp.count++;
-					found = true;
-					break;
-				}
-			}
-			if (!found)// 未被打开，添加
-				fileCounts.add(new FileCount(filename));
-			lock.release();
-			// 返回文件描述符
-			return fileDescriptor;
-		}
+		return open(filename, false);
 	}
 
 	/**
-	 * 在打开的文件中寻找一个空的位置
+	 * 创建一个新的文件 检查创建的文件是否在删除列表中 为文件寻找一个文件标志符 创建文件 按照打开文件的步骤，记录文件被打开的次数
 	 * 
+	 * @param name
 	 * @return
 	 */
-	private int findEmptyOpenFile() {
-		for (int i = 0; i < openfile.length; i++) {
-			if (openfile[i] == null)
-				return i;
-		}
-		return -1;
+	private int create(String filename) {
+		return open(filename, true);
 	}
 
 	/**
-	 * 创建一个新的文件 检查创建的文件是否在删除列表中 为文件寻找一个文件标志符 创建文件 按照打开文件的步骤，记录文件被打开的次数(该操作为互异性操作)
+	 * 打开或创建文件 先在打开文件表中登记 若文件在等待被删除 失败
 	 * 
-	 * @param name
-	 * @return
+	 * @param filename
+	 * @param create
+	 *            文件不存在时是否创建
+	 * @return 文件描述符
 	 */
-	private int create(String filename) {
-		lock.acquire();// 申请锁，检查该文件是否在等待被删除的队列中 若是文件没有权限打开
-		boolean isUnlink = unlinkFiles.contains(filename);
-		lock.release();
-		if (isUnlink)
-			return -1;
+	private int open(String filename, boolean create) {
 		// 寻找一个空的文件描述符存储位置
-		int fileDescriptor = findEmptyOpenFile();
-		// 找不到，返回-1
+		int fileDescriptor = allocateFd();
 		if (fileDescriptor == -1)
 			return -1;
-		// 调用文件系统的open方法 若文件不存在允许创建
-		openfile[fileDescriptor] = ThreadedKernel.fileSystem.open(filename, true);
-		// 打开文件失败，返回-1
-		if (openfile[fileDescriptor] == null)
+		// 在打开文件表中登记，已被unlink的文件不能再打开
+		if (!UserKernel.openFileTable.reference(filename)) {
+			usedFds &= ~(1 << fileDescriptor);
 			return -1;
-		else// 关联文件，记录该文件已经被打开了
-		{
-			boolean found = false;
-			lock.acquire();// 申请锁，查看该文件是否已被打开
-			for (int i = 0; i < fileCounts.size(); i++) {
-				FileCount temp = fileCounts.get(i);
-				if (temp.filename.equals(filename)) { // 已被打开，打开数+1
-					temp.count++;
-					found = true;
-					break;
-				}
+		}
+		openfile[fileDescriptor] = ThreadedKernel.fileSystem.open(filename, create);
+		if (openfile[fileDescriptor] == null) {
+			usedFds &= ~(1 << fileDescriptor);
+			if (UserKernel.openFileTable.release(filename)) {
+				ThreadedKernel.fileSystem.remove(filename);
+				UserKernel.openFileTable.removed(filename);
 			}
-			if (!found)// 未被打开，添加
-				fileCounts.add(new FileCount(filename));
-			lock.release();
-			// 返回文件描述符
-			return fileDescriptor;
+			return -1;
 		}
+		// 文件可能被写入
+		fileMayChange(filename);
+		return fileDescriptor;
+	}
+
+	/**
+	 * Called when a file has been opened or created, and when it is closed or
+	 * removed, since its contents may change. Does nothing here; a subclass
+	 * that keeps the contents of files can use it to drop them.
+	 * 
+	 * @param filename
+	 *            the name of the file.
+	 */
+	protected void fileMayChange(String filename) {
+	}
+
+	/**
+	 * Give an open file the lowest free file descriptor.
+	 * 
+	 * @param file
+	 *            the open file.
+	 * @return the file descriptor, or -1 if none is free.
+	 */
+	protected int addOpenFile(OpenFile file) {
+		int fd = allocateFd();
+		if (fd != -1)
+			openfile[fd] = file;
+		return fd;
+	}
+
+	/**
+	 * 在文件描述符位图中找到编号最小的空位
+	 * 
+	 * @return 文件描述符 若没有空位 返回-1
+	 */
+	private int allocateFd() {
+		int fd = Integer.numberOfTrailingZeros(~usedFds);
+		if (fd >= openfile.length)
+			return -1;
+		usedFds |= 1 << fd;
+		return fd;
 	}
 
 	/**
@@ -913,12 +975,10 @@ public class UserProcess {
 	private static final char dbgProcess = 'a';
 
 	private OpenFile openfile[];// 记录已经打开的文件
-
-	private static LinkedList<FileCount> fileCounts = new LinkedList<FileCount>();
-	// unliked 文件 ，不能马上删除的
-	private static LinkedList<String> unlinkFiles = new LinkedList<String>();
-	// 实现文件的互斥访问
-	public static Lock lock = new Lock();
+	/** The file descriptors in use, one bit each. */
+	private int usedFds;
+	/** The physical memory of the current read or write syscall. */
+	private MemorySpans spans = new MemorySpans();
 
 	UserProcess fatherprocess;// 父进程
 	LinkedList<UserProcess> chindrenprocess = new LinkedList<UserProcess>();
@@ -932,18 +992,4 @@ public class UserProcess {
 	private static int numOfRunningProcess;
 	private static int Staticpid;
 	public static Lock pidlock = new Lock();
-
-	/**
-	 * 补充类 文件管理类 实现的功能 记录文件名称 和 被打开的次数
-	 */
-	private class FileCount {
-		// 在openfile被创建的时候，定义了数组的长度，从而控制了线程最多能打开几个文件
-		public FileCount(String filename) {
-			this.filename = filename;
-			count = 1;
-		}
-
-		public String filename;
-		public int count;
-	}
 }
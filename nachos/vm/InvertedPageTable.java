@@ -0,0 +1,206 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * The global inverted page table. Records which process and virtual page each
+ * physical frame holds, or which cached executable page it holds, and picks
+ * frames to replace with the clock (second-chance) algorithm when no frame is
+ * free.
+ *
+ * <p>
+ * All methods must be called with <tt>VMKernel.pageLock</tt> held.
+ */
+class InvertedPageTable {
+    /**
+     * Allocate a new inverted page table with no free frames.
+     *
+     * @param	numPhysPages	the number of physical frames.
+     */
+    InvertedPageTable(int numPhysPages) {
+	owners = new VMProcess[numPhysPages];
+	vpns = new int[numPhysPages];
+	cachedPages = new PageCache.CachedPage[numPhysPages];
+	pinCounts = new int[numPhysPages];
+	freeFrames = new int[numPhysPages];
+    }
+
+    /**
+     * Add a frame to the free frames.
+     *
+     * @param	ppn	the frame to add.
+     */
+    void free(int ppn) {
+	Lib.assertTrue(numFreeFrames < freeFrames.length);
+
+	owners[ppn] = null;
+	cachedPages[ppn] = null;
+	freeFrames[numFreeFrames++] = ppn;
+    }
+
+    /**
+     * Allocate a frame to hold the specified virtual page. Takes a free frame
+     * if there is one, and otherwise evicts the first page the clock hand
+     * finds that has not been used since the hand last passed it.
+     *
+     * @param	owner	the process the page belongs to.
+     * @param	vpn	the virtual page the frame will hold.
+     * @return	the frame, or -1 if every frame holds a page that cannot be
+     *		evicted.
+     */
+    int allocate(VMProcess owner, int vpn) {
+	int ppn;
+
+	if (numFreeFrames > 0) {
+	    ppn = freeFrames[--numFreeFrames];
+	}
+	else {
+	    ppn = findVictim();
+	    if (ppn == -1)
+		return -1;
+	}
+
+	owners[ppn] = owner;
+	vpns[ppn] = vpn;
+	return ppn;
+    }
+
+    /**
+     * Allocate a free frame to hold the specified virtual page, without
+     * evicting anything.
+     *
+     * @param	owner	the process the page belongs to.
+     * @param	vpn	the virtual page the frame will hold.
+     * @return	the frame, or -1 if no frame is free.
+     */
+    int allocateFree(VMProcess owner, int vpn) {
+	if (numFreeFrames == 0)
+	    return -1;
+
+	int ppn = freeFrames[--numFreeFrames];
+	owners[ppn] = owner;
+	vpns[ppn] = vpn;
+	return ppn;
+    }
+
+    /**
+     * Record that a frame holds a cached executable page rather than a page
+     * of one process. The frame must have been allocated with no owner.
+     *
+     * @param	ppn	the frame.
+     * @param	page	the cached page it holds.
+     */
+    void share(int ppn, PageCache.CachedPage page) {
+	Lib.assertTrue(owners[ppn] == null);
+	cachedPages[ppn] = page;
+    }
+
+    /**
+     * Return the cached executable page in a frame.
+     *
+     * @param	ppn	the frame.
+     * @return	the cached page, or <tt>null</tt> if the frame holds a page of
+     *		one process or is free.
+     */
+    PageCache.CachedPage getCachedPage(int ppn) {
+	return cachedPages[ppn];
+    }
+
+    /**
+     * Keep the clock from evicting the page in a frame, while the kernel
+     * transfers data to or from the frame without holding the page lock.
+     * Pins are counted, and must each be undone with <tt>unpin()</tt>.
+     *
+     * @param	ppn	the frame to pin.
+     */
+    void pin(int ppn) {
+	pinCounts[ppn]++;
+    }
+
+    /**
+     * Undo one call to <tt>pin()</tt>.
+     *
+     * @param	ppn	the frame to unpin.
+     */
+    void unpin(int ppn) {
+	Lib.assertTrue(pinCounts[ppn] > 0);
+	pinCounts[ppn]--;
+    }
+
+    /**
+     * Test whether a frame is pinned.
+     *
+     * @param	ppn	the frame.
+     * @return	<tt>true</tt> if the frame is pinned.
+     */
+    boolean isPinned(int ppn) {
+	return pinCounts[ppn] > 0;
+    }
+
+    /**
+     * Sweep the clock hand over the frames, clearing used bits, until it
+     * finds a page that has not been used since the last sweep and that its
+     * process agrees to give up.
+     */
+    private int findVictim() {
+	// the TLB has the latest used bits of the current process
+	UserProcess current = UserKernel.currentProcess();
+	if (current instanceof VMProcess)
+	    ((VMProcess) current).syncTLB();
+
+	// the first lap clears every used bit, so two laps are enough
+	for (int i=0; i<2*owners.length; i++) {
+	    int ppn = hand;
+	    hand = (hand+1) % owners.length;
+
+	    if (pinCounts[ppn] > 0)
+		continue;
+
+	    // cached pages are clean, so they can always be dropped
+	    PageCache.CachedPage page = cachedPages[ppn];
+	    if (page != null) {
+		if (page.testAndClearUsed())
+		    continue;
+
+		page.evict();
+		cachedPages[ppn] = null;
+		Lib.debug(dbgVM, "evicted cached page " + page.vpn + " from frame " + ppn);
+		return ppn;
+	    }
+
+	    if (owners[ppn] == null)
+		continue;
+
+	    TranslationEntry entry = owners[ppn].getPageTableEntry(vpns[ppn]);
+	    if (entry.used) {
+		entry.used = false;
+		continue;
+	    }
+
+	    if (owners[ppn].evict(vpns[ppn])) {
+		Lib.debug(dbgVM, "evicted page " + vpns[ppn] + " from frame " + ppn);
+		return ppn;
+	    }
+	}
+
+	return -1;
+    }
+
+    /** The process whose page is in each frame, or <tt>null</tt>. */
+    private VMProcess[] owners;
+    /** The virtual page in each frame. */
+    private int[] vpns;
+    /** The cached executable page in each frame, or <tt>null</tt>. */
+    private PageCache.CachedPage[] cachedPages;
+    /** The number of pins on each frame. */
+    private int[] pinCounts;
+    /** A stack of the free frames. */
+    private int[] freeFrames;
+    private int numFreeFrames = 0;
+    /** The next frame the clock hand will look at. */
+    private int hand = 0;
+
+    private static final char dbgVM = 'v';
+}
@@ -0,0 +1,127 @@
+package nachos.vm;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import nachos.machine.*;
+
+/**
+ * A cache of executable pages that every process running the executable
+ * maps: the pages of read-only sections, and the initial contents of the
+ * pages of writable sections, which a process copies when it first writes to
+ * them. A cached page stays resident after the last process unmaps it, until
+ * the clock evicts it, so running the same program again finds its pages
+ * already loaded.
+ *
+ * <p>
+ * Pages are identified by the name of the executable, so they are dropped
+ * from the cache whenever a process opens, closes or removes a file of that
+ * name, in case its contents change. Processes already mapping a dropped
+ * page keep it until the clock evicts it; an executable should still not be
+ * rewritten while processes are running it.
+ *
+ * <p>
+ * All methods must be called with <tt>VMKernel.pageLock</tt> held.
+ */
+class PageCache {
+    /**
+     * Find a cached page.
+     *
+     * @param	executable	the name of the executable.
+     * @param	vpn		the virtual page of the executable.
+     * @return	the cached page, or <tt>null</tt> if it is not cached.
+     */
+    CachedPage lookup(String executable, int vpn) {
+	return pages.get(key(executable, vpn));
+    }
+
+    /**
+     * Add a page to the cache.
+     *
+     * @param	executable	the name of the executable.
+     * @param	vpn		the virtual page of the executable.
+     * @param	ppn		the frame holding the page.
+     * @return	the cached page.
+     */
+    CachedPage insert(String executable, int vpn, int ppn) {
+	CachedPage page = new CachedPage(executable, vpn, ppn);
+	pages.put(page.key, page);
+	return page;
+    }
+
+    /**
+     * Drop every page of an executable from the cache, so that the next
+     * process to run it loads it again.
+     *
+     * @param	executable	the name of the executable.
+     */
+    void invalidate(String executable) {
+	for (Iterator<CachedPage> i=pages.values().iterator(); i.hasNext(); ) {
+	    if (i.next().executable.equals(executable))
+		i.remove();
+	}
+    }
+
+    private static String key(String executable, int vpn) {
+	return executable + ":" + vpn;
+    }
+
+    /**
+     * A page of an executable, held in a frame that any number of processes
+     * may map read-only at the same virtual page.
+     */
+    class CachedPage {
+	private CachedPage(String executable, int vpn, int ppn) {
+	    this.executable = executable;
+	    this.key = key(executable, vpn);
+	    this.vpn = vpn;
+	    this.ppn = ppn;
+	}
+
+	/**
+	 * Test whether any process has used this page since the last call,
+	 * and clear the used bits.
+	 *
+	 * @return	<tt>true</tt> if the page has been used.
+	 */
+	boolean testAndClearUsed() {
+	    boolean used = false;
+
+	    for (VMProcess process : mappers) {
+		TranslationEntry entry = process.getPageTableEntry(vpn);
+		used |= entry.used;
+		entry.used = false;
+	    }
+
+	    return used;
+	}
+
+	/**
+	 * Unmap this page from every process and drop it from the cache. The
+	 * page is never written to, so it can be loaded again later.
+	 */
+	void evict() {
+	    for (VMProcess process : mappers)
+		process.unmap(vpn);
+
+	    mappers.clear();
+
+	    // the page may have been invalidated, and replaced by a new copy
+	    if (pages.get(key) == this)
+		pages.remove(key);
+	}
+
+	private final String executable;
+	private final String key;
+	/** The virtual page this page is mapped at. */
+	final int vpn;
+	/** The frame holding this page. */
+	final int ppn;
+	/** The processes mapping this page. */
+	final LinkedList<VMProcess> mappers = new LinkedList<VMProcess>();
+    }
+
+    private HashMap<String, CachedPage> pages =
+	new HashMap<String, CachedPage>();
+}
@@ -0,0 +1,142 @@
+package nachos.vm;
+
+import java.util.BitSet;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * The backing store for pages evicted from memory. The swap file is divided
+ * into page-sized slots, which are handed out in contiguous runs from a
+ * bitmap, so that neighbouring pages can be written and read back with a
+ * single file operation.
+ *
+ * <p>
+ * All methods must be called with <tt>VMKernel.pageLock</tt> held.
+ */
+class SwapFile {
+    /**
+     * Create an empty swap file.
+     *
+     * @param	fileSystem	the file system to keep the swap file on.
+     * @param	name		the name of the swap file.
+     */
+    SwapFile(FileSystem fileSystem, String name) {
+	this.fileSystem = fileSystem;
+	this.name = name;
+
+	file = fileSystem.open(name, true);
+	Lib.assertTrue(file != null, "cannot open swap file " + name);
+    }
+
+    /**
+     * Allocate a contiguous run of slots, growing the swap file if no free
+     * run is long enough.
+     *
+     * @param	numSlots	the number of slots to allocate.
+     * @return	the first slot of the run.
+     */
+    int allocate(int numSlots) {
+	int first = 0;
+	while (true) {
+	    first = slots.nextClearBit(first);
+
+	    int next = slots.nextSetBit(first);
+	    if (next == -1 || next - first >= numSlots)
+		break;
+
+	    first = next;
+	}
+
+	slots.set(first, first + numSlots);
+	return first;
+    }
+
+    /**
+     * Free a run of slots.
+     *
+     * @param	first		the first slot of the run.
+     * @param	numSlots	the number of slots in the run.
+     */
+    void free(int first, int numSlots) {
+	slots.clear(first, first + numSlots);
+    }
+
+    /**
+     * Write frames to a run of slots with a single file operation.
+     *
+     * @param	first	the first slot to write.
+     * @param	ppns	the frames to write, in slot order.
+     * @param	count	the number of frames to write.
+     * @return	<tt>true</tt> if the frames were written.
+     */
+    boolean write(int first, int[] ppns, int count) {
+	byte[] memory = Machine.processor().getMemory();
+	byte[] buffer = getBuffer(count);
+
+	for (int i=0; i<count; i++)
+	    System.arraycopy(memory, ppns[i]*pageSize, buffer, i*pageSize,
+			     pageSize);
+
+	Lib.debug(dbgVM, "swap write of " + count + " pages at slot " + first);
+
+	if (file.write(first*pageSize, buffer, 0, count*pageSize) !=
+	    count*pageSize)
+	    return false;
+
+	KernelStats.swapWrite(count);
+	return true;
+    }
+
+    /**
+     * Read a run of slots into frames with a single file operation.
+     *
+     * @param	first	the first slot to read.
+     * @param	ppns	the frames to read into, in slot order.
+     * @param	count	the number of frames to read.
+     * @return	<tt>true</tt> if the frames were read.
+     */
+    boolean read(int first, int[] ppns, int count) {
+	byte[] memory = Machine.processor().getMemory();
+	byte[] buffer = getBuffer(count);
+
+	Lib.debug(dbgVM, "swap read of " + count + " pages at slot " + first);
+
+	if (file.read(first*pageSize, buffer, 0, count*pageSize) !=
+	    count*pageSize)
+	    return false;
+
+	for (int i=0; i<count; i++)
+	    System.arraycopy(buffer, i*pageSize, memory, ppns[i]*pageSize,
+			     pageSize);
+
+	KernelStats.swapRead(count);
+	return true;
+    }
+
+    /**
+     * Close and delete the swap file.
+     */
+    void close() {
+	file.close();
+	fileSystem.remove(name);
+    }
+
+    private byte[] getBuffer(int count) {
+	if (buffer.length < count*pageSize)
+	    buffer = new byte[count*pageSize];
+
+	return buffer;
+    }
+
+    private FileSystem fileSystem;
+    private String name;
+    private OpenFile file;
+    /** The slots in use. */
+    private BitSet slots = new BitSet();
+    /** Holds the pages of one file operation. */
+    private byte[] buffer = new byte[0];
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
@@ -21,6 +21,28 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	// every frame is demand paged through the inverted page table
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	invertedPageTable = new InvertedPageTable(numPhysPages);
+
+	int first = frameAllocator.allocateRun(numPhysPages);
+	Lib.assertTrue(first != -1);
+	for (int i=0; i<numPhysPages; i++)
+	    invertedPageTable.free(first+i);
+
+	pageLock = new Lock();
+	pageCache = new PageCache();
+
+	// swap pages are read back once, so keep them out of any buffer cache
+	// in front of the kernel's file system
+	FileSystem swapFileSystem = Machine.stubFileSystem();
+	if (swapFileSystem == null)
+	    swapFileSystem = fileSystem;
+
+	swapFile = new SwapFile(swapFileSystem,
+				Config.getString("VMKernel.swapFile",
+						 "nachos.swp"));
     }
 
     /**
@@ -41,9 +63,20 @@ public class VMKernel extends UserKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	swapFile.close();
+
 	super.terminate();
     }
 
+    /** The owner of every physical frame. */
+    static InvertedPageTable invertedPageTable;
+    /** Guards the inverted page table and every process's page table. */
+    static Lock pageLock;
+    /** The pages of executables shared between processes. */
+    static PageCache pageCache;
+    /** Holds the pages evicted from memory. */
+    static SwapFile swapFile;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
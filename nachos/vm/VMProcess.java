@@ -1,5 +1,8 @@
 package nachos.vm;
 
+import java.util.Arrays;
+import java.util.LinkedList;
+
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -16,12 +19,30 @@ public class VMProcess extends UserProcess {
 	super();
     }
 
+    /**
+     * Execute the specified program, remembering its name so that pages of
+     * the executable already in the page cache can be shared.
+     *
+     * @param	name	the name of the file containing the executable.
+     * @param	args	the arguments to pass to the executable.
+     * @return	<tt>true</tt> if the program was successfully executed.
+     */
+    public boolean execute(String name, String[] args) {
+	executable = name;
+	return super.execute(name, args);
+    }
+
     /**
      * Save the state of this process in preparation for a context switch.
      * Called by <tt>UThread.saveState()</tt>.
      */
     public void saveState() {
 	super.saveState();
+
+	// the next process must not use our translations; interrupts are
+	// disabled, so nothing else can be looking at our page table
+	if (Machine.processor().hasTLB())
+	    flushTLB();
     }
 
     /**
@@ -29,26 +50,424 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-	super.restoreState();
+	// with a TLB, translations are loaded as they miss
+	if (!Machine.processor().hasTLB())
+	    super.restoreState();
     }
 
     /**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
+     * demand-paged. Pages of read-only sections are shared with every other
+     * process running the same executable; pages of initialized writable
+     * sections are shared too, read-only, until this process writes to them.
      *
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	pageTable = new TranslationEntry[numPages];
+	for (int vpn=0; vpn<numPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, 0, false, false,
+						  false, false);
+	copyOnWrite = new boolean[numPages];
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    Lib.debug(dbgProcess, "\tdemand paging " + section.getName()
+		      + " section (" + section.getLength() + " pages)");
+
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN()+i;
+		copyOnWrite[vpn] =
+		    !section.isReadOnly() && section.isInitialzed();
+		pageTable[vpn].readOnly =
+		    section.isReadOnly() || copyOnWrite[vpn];
+	    }
+	}
+
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-	super.unloadSections();
+	VMKernel.pageLock.acquire();
+
+	if (Machine.processor().hasTLB() &&
+	    UserKernel.currentProcess() == this)
+	    flushTLB();
+
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    if (pageTable[vpn].valid) {
+		PageCache.CachedPage page =
+		    VMKernel.invertedPageTable.getCachedPage(pageTable[vpn].ppn);
+
+		// cached pages stay resident for the next process to run
+		if (page != null)
+		    page.mappers.remove(this);
+		else
+		    VMKernel.invertedPageTable.free(pageTable[vpn].ppn);
+		pageTable[vpn].valid = false;
+	    }
+	}
+
+	if (swapBase != -1) {
+	    VMKernel.swapFile.free(swapBase, numPages);
+	    swapBase = -1;
+	}
+
+	VMKernel.pageLock.release();
     }    
 
+    /**
+     * Transfer data from this process's virtual memory to the specified
+     * array, paging in any pages that are not resident.
+     *
+     * @param	vaddr	the first byte of virtual memory to read.
+     * @param	data	the array where the data will be stored.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to transfer from virtual memory to
+     *			the array.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int readVirtualMemory(int vaddr, byte[] data, int offset,
+				 int length) {
+	return transfer(vaddr, data, offset, length, false);
+    }
+
+    /**
+     * Transfer data from the specified array to this process's virtual
+     * memory, paging in any pages that are not resident and copying any that
+     * are shared copy-on-write. Stops at the first read-only page.
+     *
+     * @param	vaddr	the first byte of virtual memory to write.
+     * @param	data	the array containing the data to transfer.
+     * @param	offset	the first byte to transfer from the array.
+     * @param	length	the number of bytes to transfer from the array to
+     *			virtual memory.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int writeVirtualMemory(int vaddr, byte[] data, int offset,
+				  int length) {
+	return transfer(vaddr, data, offset, length, true);
+    }
+
+    private int transfer(int vaddr, byte[] data, int offset, int length,
+			 boolean write) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset + length <= data.length);
+
+	byte[] memory = Machine.processor().getMemory();
+
+	if (vaddr < 0 || vaddr >= pageTable.length*pageSize)
+	    return 0;
+
+	length = Math.min(length, pageTable.length*pageSize - vaddr);
+
+	int amount = 0;
+
+	VMKernel.pageLock.acquire();
+	
+	while (amount < length) {
+	    int vpn = Processor.pageFromAddress(vaddr + amount);
+	    int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+	    int pageAmount = Math.min(pageSize - pageOffset, length - amount);
+
+	    if (!isValidPage(vpn))
+		break;
+
+	    TranslationEntry entry = pageTable[vpn];
+	    if (write && copyOnWrite[vpn] && !copyPage(vpn))
+		break;
+	    if (write && entry.readOnly)
+		break;
+	    if (!entry.valid && !pageIn(vpn))
+		break;
+
+	    int paddr = entry.ppn*pageSize + pageOffset;
+	    if (write)
+		System.arraycopy(data, offset + amount, memory, paddr,
+				 pageAmount);
+	    else
+		System.arraycopy(memory, paddr, data, offset + amount,
+				 pageAmount);
+
+	    entry.used = true;
+	    if (write)
+		entry.dirty = true;
+
+	    amount += pageAmount;
+	}
+
+	VMKernel.pageLock.release();
+
+	return amount;
+    }
+
+    /**
+     * Find the physical memory holding a range of this process's virtual
+     * memory, paging in any pages that are not resident and copying any that
+     * are shared copy-on-write if the memory is to be written. The frames are
+     * pinned until <tt>releaseSpans()</tt>, since the transfer may block, and
+     * at most <tt>maxPinnedPages</tt> pages are returned at a time.
+     *
+     * @param	vaddr	the first byte of virtual memory.
+     * @param	length	the number of bytes.
+     * @param	write	<tt>true</tt> if the memory is to be written to.
+     * @param	spans	the list to fill in with the physical spans.
+     * @return	the number of bytes the spans cover.
+     */
+    protected int getSpans(int vaddr, int length, boolean write,
+			   MemorySpans spans) {
+	spans.clear();
+
+	if (vaddr < 0 || length < 0 || vaddr >= pageTable.length*pageSize)
+	    return 0;
+
+	length = Math.min(length, pageTable.length*pageSize - vaddr);
+
+	int amount = 0, numPinned = 0;
+
+	VMKernel.pageLock.acquire();
+
+	while (amount < length && numPinned < maxPinnedPages) {
+	    int vpn = Processor.pageFromAddress(vaddr + amount);
+	    int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+	    int pageAmount = Math.min(pageSize - pageOffset, length - amount);
+
+	    if (!isValidPage(vpn))
+		break;
+
+	    TranslationEntry entry = pageTable[vpn];
+	    if (write && copyOnWrite[vpn] && !copyPage(vpn))
+		break;
+	    if (write && entry.readOnly)
+		break;
+	    if (!entry.valid && !pageIn(vpn))
+		break;
+
+	    VMKernel.invertedPageTable.pin(entry.ppn);
+	    numPinned++;
+
+	    // the page cannot be written out while pinned, so it is safe to
+	    // mark it dirty before the data arrives
+	    entry.used = true;
+	    if (write)
+		entry.dirty = true;
+
+	    spans.add(entry.ppn*pageSize + pageOffset, pageAmount);
+	    amount += pageAmount;
+	}
+
+	VMKernel.pageLock.release();
+
+	return amount;
+    }
+
+    /**
+     * Unpin the frames found by <tt>getSpans()</tt>.
+     *
+     * @param	spans	the spans to release.
+     */
+    protected void releaseSpans(MemorySpans spans) {
+	if (spans.getCount() == 0)
+	    return;
+
+	VMKernel.pageLock.acquire();
+
+	for (int i=0; i<spans.getCount(); i++) {
+	    int first = spans.getOffset(i) / pageSize;
+	    int last = (spans.getOffset(i) + spans.getLength(i) - 1) / pageSize;
+	    for (int ppn=first; ppn<=last; ppn++)
+		VMKernel.invertedPageTable.unpin(ppn);
+	}
+
+	VMKernel.pageLock.release();
+    }
+
+    private static final int
+	syscallRead = 6,
+	syscallWrite = 7,
+	syscallMmap = 10;
+
+    /**
+     * Handle a syscall exception. Called by <tt>handleException()</tt>. The
+     * <i>syscall</i> argument identifies which syscall the user executed:
+     *
+     * <table>
+     * <tr><td>syscall#</td><td>syscall prototype</td></tr>
+     * <tr><td>10</td><td><tt>int  mmap(int fd, char *address);</tt></td></tr>
+     * </table>
+     *
+     * <p>
+     * Reads and writes of a file descriptor fail while its file is mapped.
+     * 
+     * @param	syscall	the syscall number.
+     * @param	a0	the first syscall argument.
+     * @param	a1	the second syscall argument.
+     * @param	a2	the third syscall argument.
+     * @param	a3	the fourth syscall argument.
+     * @return	the value to be returned to the user.
+     */
+    public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+	switch (syscall) {
+	case syscallMmap:
+	    return handleMmap(a0, a1);
+	case syscallRead:
+	case syscallWrite:
+	    if (findFileMapping(a0) != null)
+		return -1;
+	    return super.handleSyscall(syscall, a0, a1, a2, a3);
+	default:
+	    return super.handleSyscall(syscall, a0, a1, a2, a3);
+	}
+    }
+
+    /**
+     * Handle the mmap() system call. Maps the file into this process's
+     * address space at the specified page-aligned address, above the program
+     * and its stack. The pages are loaded from the file when they are first
+     * touched, and written back to the file, rather than to swap, when they
+     * are evicted dirty or the file is closed.
+     *
+     * @return	the length of the file, or -1 on error.
+     */
+    private int handleMmap(int fd, int vaddr) {
+	OpenFile file = getOpenFile(fd);
+	if (file == null || findFileMapping(fd) != null)
+	    return -1;
+
+	if (vaddr < 0 || Processor.offsetFromAddress(vaddr) != 0)
+	    return -1;
+
+	int length = file.length();
+	if (length < 0)
+	    return -1;
+
+	int firstVPN = Processor.pageFromAddress(vaddr);
+	int count = (length + pageSize - 1) / pageSize;
+	if (firstVPN < numPages || count > maxVirtualPages - firstVPN)
+	    return -1;
+
+	VMKernel.pageLock.acquire();
+
+	for (int vpn=firstVPN; vpn<firstVPN+count; vpn++) {
+	    if (getFileMapping(vpn) != null) {
+		VMKernel.pageLock.release();
+		return -1;
+	    }
+	}
+
+	if (firstVPN + count > pageTable.length)
+	    growAddressSpace(firstVPN + count);
+
+	FileMapping mapping = new FileMapping(fd, file, firstVPN, count, length);
+	for (int vpn=firstVPN; vpn<firstVPN+count; vpn++)
+	    fileMappings[vpn] = mapping;
+	mappedFiles.add(mapping);
+
+	VMKernel.pageLock.release();
+
+	Lib.debug(dbgVM, "mapped " + file.getName() + " at page " + firstVPN
+		  + " (" + count + " pages)");
+	return length;
+    }
+
+    /**
+     * Close a file descriptor, first writing back and unmapping any pages of
+     * the file that are mapped.
+     *
+     * @param	fd	the file descriptor.
+     * @return	0 on success, or -1 on error.
+     */
+    protected int handleClose(int fd) {
+	FileMapping mapping = findFileMapping(fd);
+	if (mapping != null)
+	    unmapFile(mapping);
+
+	return super.handleClose(fd);
+    }
+
+    /**
+     * Drop any pages of a file that may be about to change from the page
+     * cache, in case it is an executable.
+     *
+     * @param	filename	the name of the file.
+     */
+    protected void fileMayChange(String filename) {
+	VMKernel.pageLock.acquire();
+	VMKernel.pageCache.invalidate(filename);
+	VMKernel.pageLock.release();
+    }
+
+    private void unmapFile(FileMapping mapping) {
+	VMKernel.pageLock.acquire();
+
+	for (int vpn=mapping.firstVPN; vpn<mapping.firstVPN+mapping.numPages;
+	     vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+	    if (entry.valid) {
+		unmap(vpn);
+		if (entry.dirty)
+		    writeBack(vpn);
+		VMKernel.invertedPageTable.free(entry.ppn);
+	    }
+
+	    entry.used = false;
+	    entry.dirty = false;
+	    fileMappings[vpn] = null;
+	}
+
+	mappedFiles.remove(mapping);
+
+	VMKernel.pageLock.release();
+    }
+
+    /**
+     * Extend the page table, with pages that are not yet part of the address
+     * space, so that a file can be mapped above the program.
+     */
+    private void growAddressSpace(int numTotalPages) {
+	int oldLength = pageTable.length;
+
+	pageTable = Arrays.copyOf(pageTable, numTotalPages);
+	for (int vpn=oldLength; vpn<numTotalPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, 0, false, false,
+						  false, false);
+
+	copyOnWrite = Arrays.copyOf(copyOnWrite, numTotalPages);
+	fileMappings = fileMappings == null ? new FileMapping[numTotalPages]
+	    : Arrays.copyOf(fileMappings, numTotalPages);
+
+	if (!Machine.processor().hasTLB())
+	    Machine.processor().setPageTable(pageTable);
+    }
+
+    private FileMapping findFileMapping(int fd) {
+	for (FileMapping mapping : mappedFiles) {
+	    if (mapping.fd == fd)
+		return mapping;
+	}
+
+	return null;
+    }
+
+    private FileMapping getFileMapping(int vpn) {
+	if (fileMappings == null || vpn >= fileMappings.length)
+	    return null;
+
+	return fileMappings[vpn];
+    }
+
+    /**
+     * Test whether a page is part of this process's address space: part of
+     * the program, its stack or arguments, or a mapped file.
+     */
+    private boolean isValidPage(int vpn) {
+	return vpn >= 0 && (vpn < numPages || getFileMapping(vpn) != null);
+    }
+
     /**
      * Handle a user exception. Called by
      * <tt>UserKernel.exceptionHandler()</tt>. The
@@ -61,12 +480,522 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	case Processor.exceptionPageFault:
+	    handleMiss(processor.readRegister(Processor.regBadVAddr));
+	    break;
+
+	case Processor.exceptionReadOnly:
+	    handleReadOnly(processor.readRegister(Processor.regBadVAddr));
+	    break;
+	    
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
+
+    /**
+     * Handle a TLB miss or page fault at the specified address, by paging in
+     * the page if it is not resident and then, with a TLB, loading its
+     * translation. Kills the process if the address is outside its address
+     * space, or if there is no frame to load the page into.
+     */
+    private void handleMiss(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (!isValidPage(vpn)) {
+	    Lib.debug(dbgVM, "bad address " + Lib.toHexString(vaddr));
+	    handleExit(-1);
+	    return;
+	}
+
+	// a resident page only needs its translation loaded; evict() marks a
+	// page invalid before it gives up the frame, so a valid entry is safe
+	boolean intStatus = Machine.interrupt().disable();
+	if (pageTable[vpn].valid) {
+	    if (Machine.processor().hasTLB())
+		loadTLBEntry(vpn);
+	    Machine.interrupt().restore(intStatus);
+	    return;
+	}
+	Machine.interrupt().restore(intStatus);
+
+	VMKernel.pageLock.acquire();
+
+	if (!pageTable[vpn].valid && !pageIn(vpn)) {
+	    VMKernel.pageLock.release();
+
+	    Lib.debug(dbgVM, "out of physical memory");
+	    handleExit(-1);
+	    return;
+	}
+
+	if (Machine.processor().hasTLB())
+	    loadTLBEntry(vpn);
+
+	VMKernel.pageLock.release();
+    }
+
+    /**
+     * Handle a write to a read-only page, by giving this process its own copy
+     * of the page if it is shared copy-on-write. Kills the process if the page
+     * really is read-only, or if there is no frame to copy the page into.
+     */
+    private void handleReadOnly(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vpn < 0 || vpn >= numPages || !copyOnWrite[vpn]) {
+	    Lib.debug(dbgVM, "write to read-only address "
+		      + Lib.toHexString(vaddr));
+	    handleExit(-1);
+	    return;
+	}
+
+	VMKernel.pageLock.acquire();
+
+	if (!copyPage(vpn)) {
+	    VMKernel.pageLock.release();
+
+	    Lib.debug(dbgVM, "out of physical memory");
+	    handleExit(-1);
+	    return;
+	}
+
+	if (Machine.processor().hasTLB())
+	    loadTLBEntry(vpn);
+
+	VMKernel.pageLock.release();
+    }
+
+    /**
+     * Replace the shared copy of a copy-on-write page with a private,
+     * writable copy.
+     *
+     * @return	<tt>true</tt> if the page was copied.
+     */
+    private boolean copyPage(int vpn) {
+	int ppn = VMKernel.invertedPageTable.allocate(this, vpn);
+	if (ppn == -1)
+	    return false;
+
+	Lib.debug(dbgVM, "copying page " + vpn + " to frame " + ppn);
+
+	// finding a frame may have evicted the shared copy, in which case the
+	// page is loaded from the executable instead
+	TranslationEntry entry = pageTable[vpn];
+	if (entry.valid) {
+	    unmap(vpn);
+
+	    byte[] memory = Machine.processor().getMemory();
+	    System.arraycopy(memory, entry.ppn*pageSize, memory, ppn*pageSize,
+			     pageSize);
+	    VMKernel.invertedPageTable.getCachedPage(entry.ppn).mappers
+		.remove(this);
+	}
+	else {
+	    CoffSection section = findSection(vpn);
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+	}
+
+	copyOnWrite[vpn] = false;
+	map(vpn, ppn);
+	entry.readOnly = false;
+	entry.dirty = true;
+	return true;
+    }
+
+    /**
+     * Load the specified page into a frame: from its file if it is a mapped
+     * page, from swap if it has been paged out, from the page cache if it is a
+     * shared page of the executable, from the executable if it is part of a
+     * section, or as zeros if it is a stack or argument page.
+     *
+     * @return	<tt>true</tt> if the page was loaded.
+     */
+    private boolean pageIn(int vpn) {
+	if (getFileMapping(vpn) != null)
+	    return readIn(vpn);
+
+	boolean inSwap = swapped != null && swapped[vpn];
+
+	CoffSection section = findSection(vpn);
+	if (!inSwap && section != null &&
+	    (section.isReadOnly() || copyOnWrite[vpn]))
+	    return mapCachedPage(vpn, section);
+
+	int ppn = VMKernel.invertedPageTable.allocate(this, vpn);
+	if (ppn == -1)
+	    return false;
+
+	Lib.debug(dbgVM, "paging in page " + vpn + " to frame " + ppn);
+
+	if (inSwap)
+	    return swapIn(vpn, ppn);
+
+	if (section != null) {
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+	}
+	else {
+	    byte[] memory = Machine.processor().getMemory();
+	    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	}
+
+	map(vpn, ppn);
+	return true;
+    }
+
+    /**
+     * Read a mapped page from its file straight into a frame. The part of the
+     * last page past the end of the file is zero-filled.
+     *
+     * @return	<tt>true</tt> if the page was loaded.
+     */
+    private boolean readIn(int vpn) {
+	FileMapping mapping = fileMappings[vpn];
+
+	int ppn = VMKernel.invertedPageTable.allocate(this, vpn);
+	if (ppn == -1)
+	    return false;
+
+	Lib.debug(dbgVM, "reading mapped page " + vpn + " to frame " + ppn);
+
+	byte[] memory = Machine.processor().getMemory();
+	int pos = (vpn - mapping.firstVPN) * pageSize;
+	int amount = mapping.file.read(pos, memory, ppn*pageSize,
+				       Math.min(pageSize, mapping.length - pos));
+	if (amount < 0) {
+	    VMKernel.invertedPageTable.free(ppn);
+	    return false;
+	}
+
+	Arrays.fill(memory, ppn*pageSize + amount, (ppn+1)*pageSize, (byte) 0);
+
+	map(vpn, ppn);
+	return true;
+    }
+
+    /**
+     * Write a mapped page straight from its frame back to its file.
+     *
+     * @return	<tt>true</tt> if the page was written.
+     */
+    private boolean writeBack(int vpn) {
+	FileMapping mapping = fileMappings[vpn];
+
+	Lib.debug(dbgVM, "writing back mapped page " + vpn);
+
+	int pos = (vpn - mapping.firstVPN) * pageSize;
+	int amount = Math.min(pageSize, mapping.length - pos);
+	return mapping.file.write(pos, Machine.processor().getMemory(),
+				  pageTable[vpn].ppn*pageSize, amount) == amount;
+    }
+
+    /**
+     * Map the page cache's copy of the specified page of the executable,
+     * loading it into the cache first if it is not there.
+     *
+     * @return	<tt>true</tt> if the page was mapped.
+     */
+    private boolean mapCachedPage(int vpn, CoffSection section) {
+	PageCache.CachedPage page = VMKernel.pageCache.lookup(executable, vpn);
+
+	if (page == null) {
+	    int ppn = VMKernel.invertedPageTable.allocate(null, vpn);
+	    if (ppn == -1)
+		return false;
+
+	    Lib.debug(dbgVM, "caching page " + vpn + " of " + executable
+		      + " in frame " + ppn);
+
+	    page = VMKernel.pageCache.insert(executable, vpn, ppn);
+	    VMKernel.invertedPageTable.share(ppn, page);
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+	}
+
+	page.mappers.add(this);
+	map(vpn, page.ppn);
+	return true;
+    }
+
+    /**
+     * Read the specified page back from swap into a frame. Neighbouring pages
+     * that are also waiting in swap are read with it, into free frames, since
+     * they are likely to be wanted soon.
+     *
+     * @return	<tt>true</tt> if the page was loaded.
+     */
+    private boolean swapIn(int vpn, int ppn) {
+	int[] ppns = new int[maxCluster];
+	int first = vpn, count = 1;
+	ppns[0] = ppn;
+
+	while (count < maxCluster && isPagedOut(first+count)) {
+	    int prefetch = VMKernel.invertedPageTable.allocateFree(this,
+								  first+count);
+	    if (prefetch == -1)
+		break;
+
+	    ppns[count++] = prefetch;
+	}
+
+	if (!VMKernel.swapFile.read(swapBase + first, ppns, count)) {
+	    for (int i=0; i<count; i++)
+		VMKernel.invertedPageTable.free(ppns[i]);
+	    return false;
+	}
+
+	for (int i=0; i<count; i++)
+	    map(first+i, ppns[i]);
+
+	return true;
+    }
+
+    private boolean isPagedOut(int vpn) {
+	return vpn < numPages && swapped[vpn] && !pageTable[vpn].valid;
+    }
+
+    private void map(int vpn, int ppn) {
+	TranslationEntry entry = pageTable[vpn];
+	entry.ppn = ppn;
+	entry.valid = true;
+	entry.used = false;
+	entry.dirty = false;
+    }
+
+    private CoffSection findSection(int vpn) {
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (vpn >= section.getFirstVPN() &&
+		vpn < section.getFirstVPN() + section.getLength())
+		return section;
+	}
+
+	return null;
+    }
+
+    /**
+     * Return the page table entry for the specified page.
+     */
+    TranslationEntry getPageTableEntry(int vpn) {
+	return pageTable[vpn];
+    }
+
+    /**
+     * Invalidate the translation for the specified page, which is about to
+     * lose its frame.
+     */
+    void unmap(int vpn) {
+	if (Machine.processor().hasTLB() &&
+	    UserKernel.currentProcess() == this)
+	    unloadTLBEntry(vpn);
+
+	pageTable[vpn].valid = false;
+    }
+
+    /**
+     * Give up the frame holding the specified page, writing the page to swap,
+     * or to its file if it is a mapped page, first if it has been written to.
+     *
+     * @return	<tt>true</tt> if the page was evicted.
+     */
+    boolean evict(int vpn) {
+	// invalidate first: writing to swap blocks, and if this process runs in
+	// the meantime it must fault and wait, not change the page
+	unmap(vpn);
+
+	TranslationEntry entry = pageTable[vpn];
+	boolean written;
+	if (!entry.dirty)
+	    written = true;
+	else if (getFileMapping(vpn) != null)
+	    written = writeBack(vpn);
+	else
+	    written = pageOut(vpn);
+
+	if (!written) {
+	    entry.valid = true;
+	    return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Write the specified page to swap. Any dirty neighbours that have not
+     * been used since the clock hand last passed them are written with it, in
+     * the same file operation, so that evicting them later is cheap.
+     *
+     * @return	<tt>true</tt> if the page was written.
+     */
+    private boolean pageOut(int vpn) {
+	if (swapBase == -1) {
+	    // slot swapBase+i holds page i, so neighbours share file operations
+	    swapBase = VMKernel.swapFile.allocate(numPages);
+	    swapped = new boolean[numPages];
+	}
+
+	int first = vpn, count = 1;
+	while (count < maxCluster && isCold(first-1)) {
+	    first--;
+	    count++;
+	}
+	while (count < maxCluster && isCold(first+count))
+	    count++;
+
+	// clear the dirty bits before the write, so that a write to a page
+	// while it is on its way out is not forgotten
+	int[] ppns = new int[count];
+	for (int i=0; i<count; i++) {
+	    ppns[i] = pageTable[first+i].ppn;
+	    pageTable[first+i].dirty = false;
+	}
+
+	if (!VMKernel.swapFile.write(swapBase + first, ppns, count)) {
+	    for (int i=0; i<count; i++)
+		pageTable[first+i].dirty = true;
+	    return false;
+	}
+
+	for (int i=0; i<count; i++)
+	    swapped[first+i] = true;
+
+	return true;
+    }
+
+    private boolean isCold(int vpn) {
+	if (vpn < 0 || vpn >= numPages)
+	    return false;
+
+	TranslationEntry entry = pageTable[vpn];
+	return entry.valid && entry.dirty && !entry.used &&
+	    !VMKernel.invertedPageTable.isPinned(entry.ppn);
+    }
+
+    /**
+     * Copy the used and dirty bits from the TLB into the page table, clearing
+     * them in the TLB so that later uses and writes are noticed again. Must
+     * only be called on the current process.
+     */
+    void syncTLB() {
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB())
+	    return;
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry = processor.readTLBEntry(i);
+	    if (entry.valid && (entry.used || entry.dirty)) {
+		pageTable[entry.vpn].used |= entry.used;
+		pageTable[entry.vpn].dirty |= entry.dirty;
+
+		entry.used = false;
+		entry.dirty = false;
+		processor.writeTLBEntry(i, entry);
+	    }
+	}
+    }
+
+    /**
+     * Load the translation for a resident page into the TLB, replacing an
+     * invalid entry if there is one, and otherwise the entries in turn.
+     */
+    private void loadTLBEntry(int vpn) {
+	Processor processor = Machine.processor();
+
+	int slot = -1;
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry = processor.readTLBEntry(i);
+	    if (!entry.valid || entry.vpn == vpn) {
+		slot = i;
+		break;
+	    }
+	}
+
+	if (slot == -1) {
+	    slot = nextTLBVictim;
+	    nextTLBVictim = (nextTLBVictim+1) % processor.getTLBSize();
+	    saveTLBEntry(slot);
+	}
+
+	processor.writeTLBEntry(slot, pageTable[vpn]);
+    }
+
+    /**
+     * Remove the translation for the specified page from the TLB, if it is
+     * there.
+     */
+    private void unloadTLBEntry(int vpn) {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry = processor.readTLBEntry(i);
+	    if (entry.valid && entry.vpn == vpn) {
+		saveTLBEntry(i);
+		processor.writeTLBEntry(i, new TranslationEntry());
+	    }
+	}
+    }
+
+    /**
+     * Remove every translation from the TLB, saving the used and dirty bits.
+     */
+    private void flushTLB() {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    saveTLBEntry(i);
+	    processor.writeTLBEntry(i, new TranslationEntry());
+	}
+    }
+
+    private void saveTLBEntry(int slot) {
+	TranslationEntry entry = Machine.processor().readTLBEntry(slot);
+	if (entry.valid) {
+	    pageTable[entry.vpn].used |= entry.used;
+	    pageTable[entry.vpn].dirty |= entry.dirty;
+	}
+    }
 	
+    private int nextTLBVictim = 0;
+
+    /** The name of the executable, which identifies its cached pages. */
+    private String executable;
+    /** Whether each page is a shared page that must be copied when written. */
+    private boolean[] copyOnWrite;
+
+    /** A file mapped into the address space by <tt>mmap()</tt>. */
+    private static class FileMapping {
+	FileMapping(int fd, OpenFile file, int firstVPN, int numPages,
+		    int length) {
+	    this.fd = fd;
+	    this.file = file;
+	    this.firstVPN = firstVPN;
+	    this.numPages = numPages;
+	    this.length = length;
+	}
+
+	int fd;
+	OpenFile file;
+	int firstVPN, numPages;
+	/** The length of the file when it was mapped. */
+	int length;
+    }
+
+    /** The mapped files. */
+    private LinkedList<FileMapping> mappedFiles = new LinkedList<FileMapping>();
+    /** The file mapping of each page, or <tt>null</tt> until a file is mapped. */
+    private FileMapping[] fileMappings = null;
+
+    /** The first swap slot of this process, or -1 if it has none. */
+    private int swapBase = -1;
+    /** Whether each page has a copy in swap. */
+    private boolean[] swapped = null;
+
+    /** The most pages read or written with one swap file operation. */
+    private static final int maxCluster = 8;
+    /** The most pages one <tt>getSpans()</tt> call pins. */
+    private static final int maxPinnedPages = 8;
+    /** The size of the largest address space, including mapped files. */
+    private static final int maxVirtualPages = 0x4000;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';